@@ -33,6 +33,14 @@ public abstract class AbstractRunner {
         return absPath;
     }
 
+    protected static String checkLocalPathForSecurity(Path path) {
+        var absPath = path.toAbsolutePath().toString();
+        if (COMMAND_INJECTION_PATTERN.matcher(absPath).find()) {
+            throw new IllegalArgumentException("Invalid local path: " + absPath);
+        }
+        return absPath;
+    }
+
     protected static String checkUserOrHostNameForSecurity(String param) {
         if (!USER_HOST_PATTERN.matcher(param).matches()) {
             throw new IllegalArgumentException("Invalid username: " + param);
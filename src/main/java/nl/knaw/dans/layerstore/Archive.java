@@ -17,8 +17,13 @@ package nl.knaw.dans.layerstore;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
 
 /**
  * An archive is a file that contains a collection of files and directories. It can be implemented as a zip file, a tar, etc.
@@ -34,6 +39,34 @@ public interface Archive {
      */
     InputStream readFile(String filePath) throws IOException;
 
+    /**
+     * Orders the given file paths in the order in which the files are stored in the archive, so that reading them in that order visits the archive sequentially. The default implementation,
+     * for archives that do not know the position of their entries, orders the paths alphabetically. Paths that are not in the archive are put last.
+     *
+     * @param filePaths the paths of the files to read
+     * @return the same paths, in the order in which they are best read
+     * @throws IOException if an I/O error occurs
+     */
+    default List<String> orderByEntryPosition(Collection<String> filePaths) throws IOException {
+        return filePaths.stream().sorted().toList();
+    }
+
+    /**
+     * Reads the files at the given paths and passes their content to the consumer, one file at a time. The default implementation reads the files one by one, in the order of
+     * {@link #orderByEntryPosition(Collection)}. Archives for which reading a file means a pass over the archive read all files in one pass instead.
+     *
+     * @param filePaths the paths of the files to read
+     * @param consumer  receives the content of each file; the stream is closed after the consumer returns
+     * @throws IOException if a file cannot be read
+     */
+    default void readFiles(Collection<String> filePaths, ItemStore.FileContentConsumer consumer) throws IOException {
+        for (var filePath : orderByEntryPosition(filePaths)) {
+            try (var content = readFile(filePath)) {
+                consumer.accept(filePath, content);
+            }
+        }
+    }
+
     /**
      * Unarchives the archive to the given staging directory. Note that the {@link #isArchived()} will <em>not</em> return {@code false} after this operation, as the archive file is not removed.
      *
@@ -41,6 +74,22 @@ public interface Archive {
      */
     void unarchiveTo(Path stagingDir);
 
+    /**
+     * Unarchives only the selected entries to the given staging directory, together with the directories that contain them. The default implementation reads the selected files one by one;
+     * implementations that can do better should override it.
+     *
+     * @param stagingDir the directory to unarchive to
+     * @param selected   selects the entries to unarchive by their path relative to the root of the archive
+     */
+    default void unarchiveTo(Path stagingDir, Predicate<String> selected) {
+        try {
+            copyItemsTo(stagingDir, selected);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not unarchive selected entries to " + stagingDir, e);
+        }
+    }
+
     /**
      * Archives the given staging directory overwriting the backing file, if it exists. If this the archive is created successfully, {@link #isArchived()} will return {@code true}.
      *
@@ -48,6 +97,52 @@ public interface Archive {
      */
     void archiveFrom(Path stagingDir);
 
+    /**
+     * Archives the given staging directory, which holds only part of the layer, together with the entries of the existing archive that it does not replace. The entries for which
+     * {@code replaced} returns {@code true} are left out; all other entries are carried over unchanged. If the archive does not exist yet, this is the same as
+     * {@link #archiveFrom(Path)}.
+     * <p>
+     * The default implementation copies the entries that are carried over into the staging directory and then archives the staging directory as a whole. Implementations that can copy entries
+     * from the existing archive directly should override it.
+     *
+     * @param stagingDir the directory to archive
+     * @param replaced   selects the entries of the existing archive that are replaced by the staging directory, by their path relative to the root of the archive
+     */
+    default void mergeFrom(Path stagingDir, Predicate<String> replaced) {
+        if (isArchived()) {
+            try {
+                copyItemsTo(stagingDir, replaced.negate());
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not copy existing entries to " + stagingDir, e);
+            }
+        }
+        archiveFrom(stagingDir);
+    }
+
+    private void copyItemsTo(Path directory, Predicate<String> selected) throws IOException {
+        var items = listAllItems();
+        while (items.hasNext()) {
+            var item = items.next();
+            if (item.getPath().isEmpty() || !selected.test(item.getPath())) {
+                continue;
+            }
+            var target = directory.resolve(item.getPath());
+            if (!target.normalize().startsWith(directory)) {
+                throw new IOException("Entry outside of target directory: " + item.getPath());
+            }
+            if (item.getType() == Item.Type.Directory) {
+                Files.createDirectories(target);
+            }
+            else if (Files.notExists(target)) {
+                Files.createDirectories(target.getParent());
+                try (var inputStream = readFile(item.getPath())) {
+                    Files.copy(inputStream, target);
+                }
+            }
+        }
+    }
+
     // TODO: is it possible that archived changes back to false? What this exact meaning of this attribute?
 
     /**
@@ -71,4 +166,14 @@ public interface Archive {
      * @return an iterator over all items in the archive
      */
     Iterator<Item> listAllItems() throws IOException;
+
+    /**
+     * Returns the {@link ArchiveManifest} that is stored in the archive. Archives that were created before manifests were introduced do not have one.
+     *
+     * @return the manifest, or an empty optional if the archive has none
+     * @throws IOException if the manifest cannot be read
+     */
+    default Optional<ArchiveManifest> getManifest() throws IOException {
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * A compact list of the items in an archive, with the size and SHA-256 checksum of every file. It is stored in the archive itself, as an entry named {@value #NAME} in the root, so that the
+ * items, sizes and checksums of an archived layer can be obtained by reading that one entry instead of going through all entries of the archive. The manifest entry itself is not an item of the
+ * layer: it is not listed, not unarchived and not copied when an archive is merged.
+ * <p>
+ * Archives that were created before manifests were introduced do not have one. The checksum of an entry may also be missing, if the entry was carried over from such an archive.
+ */
+public class ArchiveManifest {
+    /**
+     * The name of the manifest entry in the archive. Layers cannot contain a file with this name in their root.
+     */
+    public static final String NAME = ".layerstore-manifest";
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * An item in the archive.
+     *
+     * @param path   the path of the item, without a trailing slash for directories
+     * @param type   the type of the item
+     * @param size   the size of a file; 0 for directories
+     * @param sha256 the hex-encoded SHA-256 checksum of a file, or {@code null} for directories and files of which the checksum is not known
+     */
+    public record Entry(@NonNull String path, @NonNull Item.Type type, long size, String sha256) {
+    }
+
+    private final Map<String, Entry> entries;
+
+    private ArchiveManifest(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Returns the entries in the order in which they were added to the archive.
+     *
+     * @return the entries
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns the entry for the given path.
+     *
+     * @param path the path of the item, without a trailing slash for directories
+     * @return the entry, or an empty optional if there is no item with that path
+     */
+    public Optional<Entry> getEntry(String path) {
+        return Optional.ofNullable(entries.get(path));
+    }
+
+    /**
+     * Returns the total size of the files in the archive.
+     *
+     * @return the size in bytes
+     */
+    public long getTotalSize() {
+        return entries.values().stream().mapToLong(Entry::size).sum();
+    }
+
+    /**
+     * Lists the items in the same way as {@link Archive#listAllItems()}: the root of the archive first, then the other items without trailing slashes.
+     *
+     * @return the items
+     */
+    public Iterator<Item> listAllItems() {
+        return Stream.concat(Stream.of(new Item("", Item.Type.Directory)), entries.values().stream().map(entry -> new Item(entry.path(), entry.type())))
+            .iterator();
+    }
+
+    /**
+     * Returns whether the given path in an archive is that of the manifest entry.
+     *
+     * @param entryName the name of the archive entry
+     * @return whether it is the manifest
+     */
+    public static boolean isManifest(String entryName) {
+        return NAME.equals(entryName) || ("./" + NAME).equals(entryName);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param inputStream the content of the manifest entry
+     * @return the manifest
+     * @throws IOException if the manifest cannot be read
+     */
+    public static ArchiveManifest read(InputStream inputStream) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(inputStream));
+        var version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported manifest format version " + version);
+        }
+        var count = in.readInt();
+        var entries = new LinkedHashMap<String, Entry>();
+        for (int i = 0; i < count; i++) {
+            var path = in.readUTF();
+            var type = in.readBoolean() ? Item.Type.Directory : Item.Type.File;
+            var size = in.readLong();
+            String sha256 = null;
+            if (in.readBoolean()) {
+                var checksum = new byte[32];
+                in.readFully(checksum);
+                sha256 = HexFormat.of().formatHex(checksum);
+            }
+            entries.put(path, new Entry(path, type, size, sha256));
+        }
+        return new ArchiveManifest(entries);
+    }
+
+    /**
+     * Writes the manifest. The output stream is flushed, but not closed.
+     *
+     * @param outputStream the stream to write the manifest entry to
+     * @throws IOException if the manifest cannot be written
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        var out = new DataOutputStream(outputStream);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (var entry : entries.values()) {
+            out.writeUTF(entry.path());
+            out.writeBoolean(entry.type() == Item.Type.Directory);
+            out.writeLong(entry.size());
+            out.writeBoolean(entry.sha256() != null);
+            if (entry.sha256() != null) {
+                out.write(HexFormat.of().parseHex(entry.sha256()));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the manifest as bytes, for writing it as an archive entry.
+     *
+     * @return the content of the manifest entry
+     */
+    public byte[] toByteArray() {
+        var out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        }
+        catch (IOException e) {
+            // Cannot happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a message digest for the checksums in a manifest.
+     *
+     * @return a SHA-256 digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Collects the entries of a manifest while an archive is written. Entries may be added from several threads, and checksums may be set after their entry has been added, but the order of the
+     * manifest is the order in which the entries were added.
+     */
+    static class Builder {
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        synchronized void add(String path, Item.Type type, long size, String sha256) throws IOException {
+            path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            if (isManifest(path)) {
+                throw new IOException(NAME + " is reserved for the archive manifest");
+            }
+            entries.put(path, new Entry(path, type, size, sha256));
+        }
+
+        synchronized void setChecksum(String path, String sha256) {
+            entries.computeIfPresent(path, (key, entry) -> new Entry(entry.path(), entry.type(), entry.size(), sha256));
+        }
+
+        synchronized ArchiveManifest build() {
+            return new ArchiveManifest(new LinkedHashMap<>(entries));
+        }
+    }
+}
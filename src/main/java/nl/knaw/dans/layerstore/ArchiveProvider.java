@@ -16,6 +16,7 @@
 package nl.knaw.dans.layerstore;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 
 /**
@@ -23,6 +24,12 @@ import java.util.List;
  */
 public interface ArchiveProvider {
 
+    /**
+     * How long a temporary file in the archive root must have been left untouched before {@link #validateRoot()} deletes it as a leftover of an archive that was never finished. A younger
+     * temporary file may belong to an archive that another layer manager is still writing.
+     */
+    Duration LEFTOVER_TEMP_FILE_MIN_AGE = Duration.ofDays(1);
+
     /**
      * Create a new {@link Archive} instance for the given layer ID.
      *
@@ -48,7 +55,8 @@ public interface ArchiveProvider {
     List<Long> listLayerIds() throws IOException;
 
     /**
-     * Verifies that the archive root contains only valid archives.
+     * Verifies that the archive root contains only valid archives, and temporary files of archives that are being written. Temporary files that have not been modified for
+     * {@link #LEFTOVER_TEMP_FILE_MIN_AGE} are deleted.
      *
      * @throws RuntimeException if illegal files are found
      */
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of open readers for archive files, such as a parsed {@link org.apache.commons.compress.archivers.zip.ZipFile}. Opening a reader can be expensive (for a ZIP file the central
+ * directory must be parsed), so readers are shared between reads of the same archive and the least recently used reader is closed when the pool is full.
+ * <p>
+ * A reader is handed out as a {@link Lease}, which must be closed when the reader is no longer needed. A reader that is evicted or invalidated while it is leased is closed only after the last
+ * lease on it has been closed. Before a pooled reader is handed out, the archive file is checked to still be the same file (same file key, size and modification time) as when the reader was
+ * opened, so that an archive that was replaced or deleted is never read through a stale reader.
+ */
+@Slf4j
+public class ArchiveReaderPool {
+    public static final int DEFAULT_MAX_OPEN_READERS = 32;
+
+    private static final ArchiveReaderPool sharedPool = new ArchiveReaderPool(DEFAULT_MAX_OPEN_READERS);
+
+    /**
+     * Opens a reader for an archive file.
+     *
+     * @param <R> the type of reader
+     */
+    @FunctionalInterface
+    public interface ReaderOpener<R extends Closeable> {
+        R open(Path archiveFile) throws IOException;
+    }
+
+    private final int maxOpenReaders;
+
+    // Access-ordered, so that the eldest entry is the least recently used one
+    private final LinkedHashMap<Path, PooledReader> readers = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a pool that keeps at most the given number of readers open, not counting evicted readers that are still leased.
+     *
+     * @param maxOpenReaders the maximum number of readers to keep open
+     */
+    public ArchiveReaderPool(int maxOpenReaders) {
+        if (maxOpenReaders < 1) {
+            throw new IllegalArgumentException("maxOpenReaders must be at least 1");
+        }
+        this.maxOpenReaders = maxOpenReaders;
+    }
+
+    /**
+     * Returns the pool that is used by the archives if no pool is passed to them explicitly.
+     *
+     * @return the shared pool
+     */
+    public static ArchiveReaderPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Leases a reader for the given archive file, opening one if there is no open reader for the file yet. The caller must close the lease when done with the reader.
+     *
+     * @param archiveFile the archive file
+     * @param opener      opens a new reader if needed
+     * @param <R>         the type of reader; all callers must use the same type for a given archive file
+     * @return a lease on the reader
+     * @throws IOException if the archive file cannot be accessed or the reader cannot be opened
+     */
+    @SuppressWarnings("unchecked")
+    public <R extends Closeable> Lease<R> acquire(@NonNull Path archiveFile, @NonNull ReaderOpener<R> opener) throws IOException {
+        var key = archiveFile.toAbsolutePath().normalize();
+        var attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        synchronized (this) {
+            var pooled = readers.get(key);
+            if (pooled != null) {
+                if (pooled.isOpenedFrom(attributes)) {
+                    hitCount.incrementAndGet();
+                    pooled.leaseCount++;
+                    return new Lease<>(this, pooled, (R) pooled.reader);
+                }
+                retire(key, pooled);
+            }
+        }
+        missCount.incrementAndGet();
+        // Open the reader outside the lock, so that other archives can be read in the meantime
+        var reader = opener.open(key);
+        var newPooled = new PooledReader(reader, attributes);
+        List<PooledReader> evicted = new ArrayList<>();
+        PooledReader result;
+        synchronized (this) {
+            var current = readers.get(key);
+            if (current != null && current.isOpenedFrom(attributes)) {
+                // Another thread opened a reader for the same archive in the meantime, use that one
+                result = current;
+                evicted.add(newPooled);
+            }
+            else {
+                if (current != null) {
+                    retire(key, current);
+                }
+                readers.put(key, newPooled);
+                result = newPooled;
+                var iterator = readers.entrySet().iterator();
+                while (readers.size() > maxOpenReaders && iterator.hasNext()) {
+                    var eldest = iterator.next();
+                    if (eldest.getValue() != newPooled) {
+                        iterator.remove();
+                        eldest.getValue().retired = true;
+                        if (eldest.getValue().leaseCount == 0) {
+                            evicted.add(eldest.getValue());
+                        }
+                    }
+                }
+            }
+            result.leaseCount++;
+        }
+        evicted.forEach(ArchiveReaderPool::closeQuietly);
+        return new Lease<>(this, result, (R) result.reader);
+    }
+
+    /**
+     * Removes the reader for the given archive file from the pool. It is closed as soon as it is no longer leased. Call this before the archive file is overwritten or deleted.
+     *
+     * @param archiveFile the archive file
+     */
+    public void invalidate(@NonNull Path archiveFile) {
+        var key = archiveFile.toAbsolutePath().normalize();
+        PooledReader toClose = null;
+        synchronized (this) {
+            var pooled = readers.remove(key);
+            if (pooled != null) {
+                pooled.retired = true;
+                if (pooled.leaseCount == 0) {
+                    toClose = pooled;
+                }
+            }
+        }
+        if (toClose != null) {
+            closeQuietly(toClose);
+        }
+    }
+
+    /**
+     * Returns the number of times a reader was found in the pool.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times a reader had to be opened.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of readers currently in the pool.
+     *
+     * @return the number of pooled readers
+     */
+    public synchronized int getOpenReaderCount() {
+        return readers.size();
+    }
+
+    private void retire(Path key, PooledReader pooled) {
+        // Called with the lock held
+        readers.remove(key);
+        pooled.retired = true;
+        if (pooled.leaseCount == 0) {
+            closeQuietly(pooled);
+        }
+    }
+
+    private void release(PooledReader pooled) {
+        boolean close;
+        synchronized (this) {
+            pooled.leaseCount--;
+            close = pooled.retired && pooled.leaseCount == 0;
+        }
+        if (close) {
+            closeQuietly(pooled);
+        }
+    }
+
+    private static void closeQuietly(PooledReader pooled) {
+        try {
+            pooled.reader.close();
+        }
+        catch (IOException e) {
+            log.warn("Could not close archive reader: {}", e.toString());
+        }
+    }
+
+    private static class PooledReader {
+        private final Closeable reader;
+        private final Object fileKey;
+        private final long size;
+        private final long lastModifiedMillis;
+        private int leaseCount;
+        private boolean retired;
+
+        private PooledReader(Closeable reader, BasicFileAttributes attributes) {
+            this.reader = reader;
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean isOpenedFrom(BasicFileAttributes attributes) {
+            return Objects.equals(fileKey, attributes.fileKey()) && size == attributes.size() && lastModifiedMillis == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * A lease on a pooled reader. Closing the lease returns the reader to the pool; it does not close the reader itself.
+     *
+     * @param <R> the type of reader
+     */
+    public static final class Lease<R extends Closeable> implements Closeable {
+        private final ArchiveReaderPool pool;
+        private final PooledReader pooled;
+        private final R reader;
+        private boolean closed;
+
+        private Lease(ArchiveReaderPool pool, PooledReader pooled, R reader) {
+            this.pool = pool;
+            this.pooled = pooled;
+            this.reader = reader;
+        }
+
+        public R get() {
+            if (closed) {
+                throw new IllegalStateException("Lease has been closed");
+            }
+            return reader;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                pool.release(pooled);
+            }
+        }
+    }
+}
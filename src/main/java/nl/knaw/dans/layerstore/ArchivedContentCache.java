@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.io.function.IOSupplier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * A read-through cache for the content of files in archived layers. Reading a file from an archive can be very slow (for {@link DmfTarArchive} it may involve recalling the archive from tape),
+ * so files that are read repeatedly are better served from a cache.
+ * <p>
+ * Entries are keyed by layer id and path. An archived layer does not change unless it is archived again with overwrite, so {@link #invalidateLayer(long)} is only needed in that case.
+ */
+public interface ArchivedContentCache {
+
+    /**
+     * Returns the content of the file at the given path in the given layer, from the cache if possible. Otherwise, the content is read through the loader and added to the cache.
+     *
+     * @param layerId the id of the archived layer
+     * @param path    the path of the file relative to the root of the store
+     * @param loader  reads the file from the archived layer
+     * @return an input stream for reading the content; the caller is responsible for closing the stream
+     * @throws IOException if the content cannot be read
+     */
+    InputStream readFile(long layerId, String path, IOSupplier<InputStream> loader) throws IOException;
+
+    /**
+     * Returns the content of the file at the given path in the given layer if it is in the cache. Unlike {@link #readFile(long, String, IOSupplier)}, this does not load missing content, so
+     * that the caller can read the files that are not cached from the archive in one go.
+     *
+     * @param layerId the id of the archived layer
+     * @param path    the path of the file relative to the root of the store
+     * @return an input stream for reading the cached content, or an empty optional if the content is not cached; the caller is responsible for closing the stream
+     * @throws IOException if the cached content cannot be read
+     */
+    Optional<InputStream> getCachedFile(long layerId, String path) throws IOException;
+
+    /**
+     * Removes all entries for the given layer from the cache.
+     *
+     * @param layerId the id of the layer
+     * @throws IOException if the entries cannot be removed
+     */
+    void invalidateLayer(long layerId) throws IOException;
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that concurrent reads of the same file from the same archived layer result in only one read from the archive. The first caller (the leader) reads the file into a replayable copy,
+ * while callers that ask for the same file in the meantime wait for it. Every caller then gets its own stream on the copy. Small files are copied into memory, larger ones into a temporary file,
+ * which is deleted as soon as all callers have opened their streams.
+ * <p>
+ * Reads are only combined while a read is in progress; once it is done, the next caller starts a new read. Keeping content around for longer is the job of an {@link ArchivedContentCache}.
+ */
+@Slf4j
+public class ArchivedReadCoalescer {
+    public static final int DEFAULT_MAX_IN_MEMORY_BYTES = 1024 * 1024;
+
+    private final Path tempDir;
+    private final int maxInMemoryBytes;
+
+    private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private record Key(long layerId, String path) {
+    }
+
+    /*
+     * One read from the archive, with the callers that share its result.
+     */
+    private static class Flight {
+        private final CompletableFuture<Replay> result = new CompletableFuture<>();
+        private int participants = 1;
+        private boolean joinable = true;
+
+        private synchronized boolean join() {
+            if (joinable) {
+                participants++;
+            }
+            return joinable;
+        }
+
+        private synchronized void closeForJoining() {
+            joinable = false;
+        }
+
+        private synchronized boolean leave() {
+            participants--;
+            return !joinable && participants == 0;
+        }
+    }
+
+    /*
+     * A copy of the content that can be read any number of times.
+     */
+    private record Replay(byte[] bytes, Path file) {
+        private InputStream open() throws IOException {
+            return bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(file);
+        }
+
+        private void discard() {
+            if (file != null) {
+                try {
+                    // Streams that are already open remain readable
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException e) {
+                    log.warn("Could not delete temporary file {}: {}", file, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a coalescer that keeps copies of up to {@value #DEFAULT_MAX_IN_MEMORY_BYTES} bytes in memory and writes larger ones to the default temporary-file directory.
+     */
+    public ArchivedReadCoalescer() {
+        this(null, DEFAULT_MAX_IN_MEMORY_BYTES);
+    }
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param tempDir          the directory for temporary copies, or {@code null} for the default temporary-file directory
+     * @param maxInMemoryBytes the maximum size of a copy that is kept in memory
+     */
+    public ArchivedReadCoalescer(Path tempDir, int maxInMemoryBytes) {
+        if (maxInMemoryBytes < 0) {
+            throw new IllegalArgumentException("maxInMemoryBytes must not be negative");
+        }
+        this.tempDir = tempDir;
+        this.maxInMemoryBytes = maxInMemoryBytes;
+    }
+
+    /**
+     * Reads the file at the given path in the given archived layer, sharing the read with other callers that ask for the same file at the same time.
+     *
+     * @param layerId the id of the archived layer
+     * @param path    the path of the file relative to the root of the store
+     * @param loader  reads the file from the layer
+     * @return an input stream for reading the content; the caller is responsible for closing the stream
+     * @throws IOException if the content cannot be read
+     */
+    public InputStream readFile(long layerId, String path, IOSupplier<InputStream> loader) throws IOException {
+        var key = new Key(layerId, path);
+        while (true) {
+            var flight = new Flight();
+            var existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(key, flight, loader);
+            }
+            if (existing.join()) {
+                coalescedCount.incrementAndGet();
+                return follow(existing);
+            }
+            // The existing read finished just now; try again
+        }
+    }
+
+    private InputStream lead(Key key, Flight flight, IOSupplier<InputStream> loader) throws IOException {
+        Replay replay;
+        try {
+            replay = copy(loader);
+            flight.result.complete(replay);
+        }
+        catch (IOException | RuntimeException e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            flight.closeForJoining();
+            flights.remove(key, flight);
+        }
+        return open(flight, replay);
+    }
+
+    private InputStream follow(Flight flight) throws IOException {
+        Replay replay;
+        try {
+            replay = flight.result.get();
+        }
+        catch (InterruptedException e) {
+            flight.leave();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read of the same file");
+        }
+        catch (ExecutionException e) {
+            flight.leave();
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Read of the same file failed", e.getCause());
+        }
+        return open(flight, replay);
+    }
+
+    private InputStream open(Flight flight, Replay replay) throws IOException {
+        try {
+            return replay.open();
+        }
+        finally {
+            if (flight.leave()) {
+                replay.discard();
+            }
+        }
+    }
+
+    private Replay copy(IOSupplier<InputStream> loader) throws IOException {
+        try (var outputStream = DeferredFileOutputStream.builder()
+            .setThreshold(maxInMemoryBytes)
+            .setPrefix("archived-read-")
+            .setSuffix(".tmp")
+            .setDirectory(tempDir == null ? null : tempDir.toFile())
+            .get()) {
+            try (var inputStream = loader.get()) {
+                inputStream.transferTo(outputStream);
+            }
+            catch (IOException | RuntimeException e) {
+                outputStream.close();
+                if (outputStream.getFile() != null) {
+                    Files.deleteIfExists(outputStream.getFile().toPath());
+                }
+                throw e;
+            }
+            outputStream.close();
+            return outputStream.isInMemory() ? new Replay(outputStream.getData(), null) : new Replay(null, outputStream.getFile().toPath());
+        }
+    }
+
+    /**
+     * Returns the number of reads that were served by waiting for a read that was already in progress.
+     *
+     * @return the number of coalesced reads
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+}
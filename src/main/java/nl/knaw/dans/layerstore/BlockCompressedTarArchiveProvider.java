@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link ArchiveProvider} that creates and reads gzip-compressed TAR archives. The archives are compressed in independent blocks on several threads (see {@link GzipBlockCompression}), so
+ * that archiving is not limited by the speed of a single core, and reading an entry only decompresses the blocks that contain it. The archives are valid gzip files that can be read with
+ * standard tools.
+ */
+@AllArgsConstructor
+@Slf4j
+public class BlockCompressedTarArchiveProvider implements ArchiveProvider {
+    private static final String EXTENSION = ".tar.gz";
+
+    private static final Pattern LEFTOVER_TEMP_FILE = Pattern.compile(
+        "^\\d{13,}" + Pattern.quote(EXTENSION) + "\\..+\\.tmp(" + Pattern.quote(TarArchiveIndex.SUFFIX) + "|" + Pattern.quote(BlockGzipIndex.SUFFIX) + ")?$");
+
+    private final Path archiveRoot;
+
+    private final ArchiveReaderPool readerPool;
+
+    private final GzipBlockCompression compression;
+
+    private final int extractionThreads;
+
+    /**
+     * Creates a provider with the {@link GzipBlockCompression#defaults() default compression settings}, whose archives use the {@link ArchiveReaderPool#getSharedPool() shared reader pool}.
+     *
+     * @param archiveRoot the directory containing the archives
+     */
+    public BlockCompressedTarArchiveProvider(Path archiveRoot) {
+        this(archiveRoot, ArchiveReaderPool.getSharedPool(), GzipBlockCompression.defaults());
+    }
+
+    /**
+     * Creates a provider whose archives are extracted on the calling thread.
+     *
+     * @param archiveRoot the directory containing the archives
+     * @param readerPool  the pool for sharing open file channels between reads
+     * @param compression the compression settings
+     */
+    public BlockCompressedTarArchiveProvider(Path archiveRoot, ArchiveReaderPool readerPool, GzipBlockCompression compression) {
+        this(archiveRoot, readerPool, compression, 1);
+    }
+
+    @Override
+    public Archive createArchive(long layerId, boolean exists) {
+        return new TarArchive(archiveRoot.resolve(layerId + EXTENSION), readerPool, compression, TarArchive.DEFAULT_READER_THREADS, extractionThreads);
+    }
+
+    @Override
+    public boolean exists(long layerId) {
+        return archiveRoot.resolve(layerId + EXTENSION).toFile().exists();
+    }
+
+    @Override
+    public List<Long> listLayerIds() throws IOException {
+        try (var stream = Files.list(archiveRoot)) {
+            return stream
+                .map(Path::getFileName)
+                .map(Path::toString)
+                .filter(name -> name.endsWith(EXTENSION))
+                .map(name -> name.substring(0, name.length() - EXTENSION.length()))
+                .map(Long::valueOf)
+                .toList();
+        }
+    }
+
+    @Override
+    public void validateRoot() throws IOException {
+        if (Files.notExists(archiveRoot)) {
+            Files.createDirectories(archiveRoot);
+        }
+        deleteLeftoverTempFiles();
+        try (var stream = Files.list(archiveRoot)) {
+            var illegalFiles = stream
+                .filter(path -> {
+                    var name = path.getFileName().toString();
+                    // Temporary files that were too young to be deleted
+                    if (LEFTOVER_TEMP_FILE.matcher(name).matches()) {
+                        return false;
+                    }
+                    // Entry indexes and block indexes are stored next to the archives they belong to
+                    if (name.endsWith(EXTENSION + TarArchiveIndex.SUFFIX)) {
+                        name = name.substring(0, name.length() - TarArchiveIndex.SUFFIX.length());
+                    }
+                    else if (name.endsWith(EXTENSION + BlockGzipIndex.SUFFIX)) {
+                        name = name.substring(0, name.length() - BlockGzipIndex.SUFFIX.length());
+                    }
+                    return !Files.isRegularFile(path) ||
+                        !name.endsWith(EXTENSION) ||
+                        !name.substring(0, name.length() - EXTENSION.length()).matches("^\\d{13,}$");
+                })
+                .map(Path::toString)
+                .toList();
+
+            if (!illegalFiles.isEmpty()) {
+                throw new IllegalStateException(String.format("Archive root '%s' contains illegal files: %s", archiveRoot, String.join(", ", illegalFiles)));
+            }
+        }
+    }
+
+    /*
+     * Temporary files are left behind when the process stops while an archive or index is being written. They are named after the archive, with a random part and the suffix ".tmp", possibly
+     * followed by the suffix of an index.
+     */
+    private void deleteLeftoverTempFiles() throws IOException {
+        var modifiedBefore = FileTime.from(Instant.now().minus(LEFTOVER_TEMP_FILE_MIN_AGE));
+        try (var stream = Files.list(archiveRoot)) {
+            for (var path : stream.filter(path -> Files.isRegularFile(path) && LEFTOVER_TEMP_FILE.matcher(path.getFileName().toString()).matches()).toList()) {
+                try {
+                    if (Files.getLastModifiedTime(path).compareTo(modifiedBefore) < 0) {
+                        log.info("Deleting leftover temporary file {}", path);
+                        Files.deleteIfExists(path);
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    // Moved into place or deleted by its writer in the meantime
+                }
+            }
+        }
+    }
+}
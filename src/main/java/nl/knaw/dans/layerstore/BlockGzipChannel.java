@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only channel on the uncompressed content of a file written by {@link BlockGzipOutputStream}. Reading at a position only decompresses the block that contains it, which is looked up in
+ * the {@link BlockGzipIndex}. The most recently decompressed block is kept, so that reading sequentially decompresses each block once.
+ * <p>
+ * The compressed file is only read with positional reads, so the file channel may be shared with other readers.
+ */
+class BlockGzipChannel implements SeekableByteChannel {
+    private final FileChannel file;
+    private final BlockGzipIndex blocks;
+    private final Closeable onClose;
+
+    private long position;
+    private boolean open = true;
+
+    private int cachedBlock = -1;
+    private byte[] cachedData;
+
+    /**
+     * Creates a channel on a file channel that is owned by someone else.
+     *
+     * @param file    the channel on the compressed file
+     * @param blocks  the block index of the file
+     * @param onClose called when this channel is closed
+     */
+    BlockGzipChannel(FileChannel file, BlockGzipIndex blocks, Closeable onClose) {
+        this.file = file;
+        this.blocks = blocks;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Opens a channel on the given compressed file. The file is closed when the channel is closed.
+     *
+     * @param path the compressed file
+     * @return the channel
+     * @throws IOException if the file or its block index cannot be read
+     */
+    static BlockGzipChannel open(Path path) throws IOException {
+        var fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new BlockGzipChannel(fileChannel, BlockGzipIndex.load(path), fileChannel);
+        }
+        catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads bytes starting at the given uncompressed position, without changing the position of the channel.
+     *
+     * @param dst      the buffer to read into
+     * @param position the uncompressed position to start reading at
+     * @return the number of bytes read, or -1 if the position is at or after the end
+     * @throws IOException if the block cannot be read or decompressed
+     */
+    synchronized int read(ByteBuffer dst, long position) throws IOException {
+        checkOpen();
+        if (position >= blocks.getUncompressedSize()) {
+            return -1;
+        }
+        var block = (int) (position / blocks.getBlockSize());
+        var data = getBlock(block);
+        var offsetInBlock = (int) (position - (long) block * blocks.getBlockSize());
+        var n = Math.min(dst.remaining(), data.length - offsetInBlock);
+        dst.put(data, offsetInBlock, n);
+        return n;
+    }
+
+    private byte[] getBlock(int block) throws IOException {
+        if (block != cachedBlock) {
+            cachedData = decompress(block);
+            cachedBlock = block;
+        }
+        return cachedData;
+    }
+
+    private byte[] decompress(int block) throws IOException {
+        var offset = blocks.getCompressedOffset(block);
+        var member = ByteBuffer.allocate((int) blocks.getCompressedLength(block));
+        while (member.hasRemaining()) {
+            if (file.read(member, offset + member.position()) <= 0) {
+                throw new EOFException("Unexpected end of compressed archive");
+            }
+        }
+        var bytes = member.array();
+        if (bytes[0] != 0x1f || bytes[1] != (byte) 0x8b || bytes[3] != 0) {
+            throw new IOException("Unsupported gzip member at offset " + offset);
+        }
+        var headerLength = BlockGzipOutputStream.MEMBER_HEADER.length;
+        var data = new byte[blocks.getUncompressedLength(block)];
+        var inflater = new Inflater(true);
+        try {
+            // The member ends with the CRC and the size, which are not part of the deflate data
+            inflater.setInput(bytes, headerLength, bytes.length - headerLength - 8);
+            var n = 0;
+            while (n < data.length && !inflater.finished()) {
+                var inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != data.length) {
+                throw new IOException("Block " + block + " is shorter than expected");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt block " + block, e);
+        }
+        finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        checkOpen();
+        return blocks.getUncompressedSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            cachedData = null;
+            onClose.close();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
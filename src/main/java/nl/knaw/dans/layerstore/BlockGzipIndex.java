@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An index of the blocks in a file written by {@link BlockGzipOutputStream}, mapping each block to the offset of its gzip member in the file. All blocks except the last have the same
+ * uncompressed size, so the block that contains a given uncompressed offset can be computed directly. The index is stored in a sidecar file next to the compressed file (the name of the file with
+ * the suffix {@value #SUFFIX}); if the sidecar is missing or out of date, the index is rebuilt by decompressing the file once.
+ */
+@Slf4j
+class BlockGzipIndex {
+    static final String SUFFIX = ".blocks";
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Identify the file the index was built from, so that a stale sidecar is detected
+    private final long compressedSize;
+    private final long lastModified;
+
+    private final int blockSize;
+    private final long uncompressedSize;
+    private final long[] blockOffsets;
+
+    private BlockGzipIndex(long compressedSize, long lastModified, int blockSize, long uncompressedSize, long[] blockOffsets) {
+        this.compressedSize = compressedSize;
+        this.lastModified = lastModified;
+        this.blockSize = blockSize;
+        this.uncompressedSize = uncompressedSize;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Creates the index for a file that has just been written, and writes it to the sidecar file. Failing to write the sidecar is not fatal, as the index can always be rebuilt.
+     *
+     * @param file             the compressed file
+     * @param blockSize        the uncompressed size of the blocks
+     * @param uncompressedSize the total uncompressed size
+     * @param blockOffsets     the offsets of the gzip members in the file
+     * @return the index
+     * @throws IOException if the file cannot be accessed
+     */
+    static BlockGzipIndex create(@NonNull Path file, int blockSize, long uncompressedSize, List<Long> blockOffsets) throws IOException {
+        var index = new BlockGzipIndex(Files.size(file), Files.getLastModifiedTime(file).toMillis(), blockSize, uncompressedSize,
+            blockOffsets.stream().mapToLong(Long::longValue).toArray());
+        try {
+            index.writeSidecar(getSidecar(file));
+        }
+        catch (IOException e) {
+            log.warn("Could not write block index for {}: {}", file, e.toString());
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index for the given file. The sidecar file is used if it exists and matches the file; otherwise the index is built by decompressing the file.
+     *
+     * @param file the compressed file
+     * @return the index
+     * @throws IOException if the file cannot be read, or was not written in blocks of equal size
+     */
+    static BlockGzipIndex load(@NonNull Path file) throws IOException {
+        var sidecar = getSidecar(file);
+        if (Files.exists(sidecar)) {
+            try {
+                var index = readSidecar(sidecar);
+                if (index.matches(file)) {
+                    return index;
+                }
+                log.debug("Block index {} is out of date, rebuilding it", sidecar);
+            }
+            catch (IOException e) {
+                log.warn("Could not read block index {}, rebuilding it: {}", sidecar, e.toString());
+            }
+        }
+        var index = build(file);
+        try {
+            index.writeSidecar(sidecar);
+        }
+        catch (IOException e) {
+            log.warn("Could not write block index for {}: {}", file, e.toString());
+        }
+        return index;
+    }
+
+    static Path getSidecar(Path file) {
+        return file.resolveSibling(file.getFileName().toString() + SUFFIX);
+    }
+
+    /**
+     * Deletes the sidecar file of the given file, if it exists.
+     *
+     * @param file the compressed file
+     * @throws IOException if the sidecar exists but cannot be deleted
+     */
+    static void delete(@NonNull Path file) throws IOException {
+        Files.deleteIfExists(getSidecar(file));
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    int getBlockCount() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Returns the offset of the gzip member of the given block in the compressed file.
+     *
+     * @param block the number of the block
+     * @return the offset
+     */
+    long getCompressedOffset(int block) {
+        return blockOffsets[block];
+    }
+
+    /**
+     * Returns the size of the gzip member of the given block in the compressed file.
+     *
+     * @param block the number of the block
+     * @return the size in bytes
+     */
+    long getCompressedLength(int block) {
+        var end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : compressedSize;
+        return end - blockOffsets[block];
+    }
+
+    /**
+     * Returns the uncompressed size of the given block, which is the block size for all blocks but the last.
+     *
+     * @param block the number of the block
+     * @return the size in bytes
+     */
+    int getUncompressedLength(int block) {
+        return (int) Math.min(blockSize, uncompressedSize - (long) block * blockSize);
+    }
+
+    private boolean matches(Path file) throws IOException {
+        return compressedSize == Files.size(file) && lastModified == Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private static BlockGzipIndex build(Path file) throws IOException {
+        var offsets = new ArrayList<Long>();
+        var memberLengths = new ArrayList<Long>();
+        var compressedSize = Files.size(file);
+        var input = new byte[64 * 1024];
+        var output = new byte[64 * 1024];
+        var inflater = new Inflater(true);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < compressedSize) {
+                offsets.add(position);
+                checkMemberHeader(channel, position, file);
+                long inputPosition = position + BlockGzipOutputStream.MEMBER_HEADER.length;
+                long memberLength = 0;
+                inflater.reset();
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        var n = channel.read(ByteBuffer.wrap(input), inputPosition);
+                        if (n <= 0) {
+                            throw new EOFException("Unexpected end of " + file);
+                        }
+                        inflater.setInput(input, 0, n);
+                        inputPosition += n;
+                    }
+                    memberLength += inflater.inflate(output);
+                }
+                // Skip the CRC and size that follow the compressed data
+                position = inputPosition - inflater.getRemaining() + 8;
+                memberLengths.add(memberLength);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip data in " + file, e);
+        }
+        finally {
+            inflater.end();
+        }
+        if (memberLengths.isEmpty()) {
+            return new BlockGzipIndex(compressedSize, Files.getLastModifiedTime(file).toMillis(), 1, 0, new long[0]);
+        }
+        var blockSize = memberLengths.get(0);
+        for (int i = 0; i < memberLengths.size() - 1; i++) {
+            if (memberLengths.get(i).longValue() != blockSize) {
+                throw new IOException("Not written in blocks of equal size: " + file);
+            }
+        }
+        var uncompressedSize = memberLengths.stream().mapToLong(Long::longValue).sum();
+        return new BlockGzipIndex(compressedSize, Files.getLastModifiedTime(file).toMillis(), (int) Math.max(blockSize, 1), uncompressedSize,
+            offsets.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    static void checkMemberHeader(FileChannel channel, long position, Path file) throws IOException {
+        var header = ByteBuffer.allocate(BlockGzipOutputStream.MEMBER_HEADER.length);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) <= 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+        var bytes = header.array();
+        // Only the members written by BlockGzipOutputStream are supported: they have no optional header fields
+        if (bytes[0] != 0x1f || bytes[1] != (byte) 0x8b || bytes[2] != 8 || bytes[3] != 0) {
+            throw new IOException("Unsupported gzip member at offset " + position + " in " + file);
+        }
+    }
+
+    private static BlockGzipIndex readSidecar(Path sidecar) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            var version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported block index format version " + version);
+            }
+            var compressedSize = in.readLong();
+            var lastModified = in.readLong();
+            var blockSize = in.readInt();
+            var uncompressedSize = in.readLong();
+            var offsets = new long[in.readInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+            return new BlockGzipIndex(compressedSize, lastModified, blockSize, uncompressedSize, offsets);
+        }
+    }
+
+    private void writeSidecar(Path sidecar) throws IOException {
+        // Write to a temporary file first, so that a reader never sees a partially written index. Its name is unique, so that writers of the same index do not get in each other's way.
+        var tempFile = Files.createTempFile(sidecar.getParent(), sidecar.getFileName() + ".", ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(compressedSize);
+                out.writeLong(lastModified);
+                out.writeInt(blockSize);
+                out.writeLong(uncompressedSize);
+                out.writeInt(blockOffsets.length);
+                for (var offset : blockOffsets) {
+                    out.writeLong(offset);
+                }
+            }
+            Files.move(tempFile, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+}
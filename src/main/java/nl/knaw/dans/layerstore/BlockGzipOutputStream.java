@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that compresses its data in blocks of a fixed size, each as a separate gzip member, on the threads of an executor. The members are written to the underlying stream in order,
+ * so that the result is a valid (multi-member) gzip file. The offsets of the members in the output are recorded, so that they can be stored in a {@link BlockGzipIndex}.
+ */
+class BlockGzipOutputStream extends OutputStream {
+    /*
+     * The fixed gzip header that starts each member: magic number, deflate, no flags, no modification time, no extra flags, unknown operating system.
+     */
+    static final byte[] MEMBER_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+
+    private byte[] buffer;
+    private int count;
+    private long compressedSize;
+    private long uncompressedSize;
+    private boolean closed;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out         the stream to write the compressed data to
+     * @param compression the block size and compression level to use
+     * @param executor    the executor to compress the blocks on
+     */
+    BlockGzipOutputStream(OutputStream out, GzipBlockCompression compression, ExecutorService executor) {
+        this.out = out;
+        this.blockSize = compression.blockSize();
+        this.level = compression.level();
+        this.executor = executor;
+        // Keep every thread busy, without holding more than a few blocks per thread in memory
+        this.maxPendingBlocks = 2 * compression.threads();
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            var n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        var block = buffer;
+        var length = count;
+        pendingBlocks.add(executor.submit(() -> compress(block, length)));
+        uncompressedSize += length;
+        buffer = new byte[blockSize];
+        count = 0;
+        if (pendingBlocks.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        byte[] member;
+        try {
+            member = pendingBlocks.remove().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Could not compress block", e.getCause());
+        }
+        blockOffsets.add(compressedSize);
+        out.write(member);
+        compressedSize += member.length;
+    }
+
+    private byte[] compress(byte[] block, int length) {
+        var member = new ByteArrayOutputStream(length / 2 + MEMBER_HEADER.length + 8);
+        member.writeBytes(MEMBER_HEADER);
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            var chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                var n = deflater.deflate(chunk);
+                member.write(chunk, 0, n);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        var crc = new CRC32();
+        crc.update(block, 0, length);
+        writeIntLittleEndian(member, (int) crc.getValue());
+        writeIntLittleEndian(member, length);
+        return member.toByteArray();
+    }
+
+    private static void writeIntLittleEndian(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only complete blocks are written; a partial block is written on close
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                submitBlock();
+            }
+            while (!pendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+        }
+        finally {
+            pendingBlocks.forEach(block -> block.cancel(true));
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the offsets of the gzip members in the output, in order. Only complete after the stream has been closed.
+     *
+     * @return the offsets
+     */
+    List<Long> getBlockOffsets() {
+        return blockOffsets;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written to the stream.
+     *
+     * @return the uncompressed size
+     */
+    long getUncompressedSize() {
+        return uncompressedSize + count;
+    }
+}
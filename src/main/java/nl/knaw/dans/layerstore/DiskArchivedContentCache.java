@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.function.IOSupplier;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link ArchivedContentCache} that keeps the cached content in files on local disk, up to a maximum total size. When the maximum is exceeded, the least recently used entries are removed.
+ * <p>
+ * The content for path <code>p</code> in layer <code>L</code> is stored in <code>&lt;cacheRoot&gt;/L/&lt;SHA-256 of p&gt;</code>. New entries are first written to a temporary file, which is
+ * then moved into place, so that a reader never sees a partially written entry. Entries already on disk when the cache is created are kept, in the order of their modification time. Content that
+ * is larger than the maximum size of the cache is not cached at all.
+ * <p>
+ * Each layer has a generation that {@link #invalidateLayer(long)} increments. Content that was being read when the layer was invalidated is returned to its reader, but not added to the cache,
+ * because it may come from the archive that is being replaced.
+ */
+@Slf4j
+public class DiskArchivedContentCache implements ArchivedContentCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path cacheRoot;
+
+    @Getter
+    private final long maxSizeInBytes;
+
+    // Access-ordered, so that the eldest entry is the least recently used one
+    private final LinkedHashMap<Path, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long sizeInBytes;
+
+    private final HashMap<Long, Long> layerGenerations = new HashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache in the given directory. Entries left in the directory by a previous instance are reused.
+     *
+     * @param cacheRoot      the directory to store the cached content in; it is created if it does not exist
+     * @param maxSizeInBytes the maximum total size of the cached content
+     * @throws IOException if the directory cannot be created or read
+     */
+    public DiskArchivedContentCache(@NonNull Path cacheRoot, long maxSizeInBytes) throws IOException {
+        if (maxSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeInBytes must be positive");
+        }
+        this.cacheRoot = cacheRoot;
+        this.maxSizeInBytes = maxSizeInBytes;
+        Files.createDirectories(cacheRoot);
+        loadExistingEntries();
+    }
+
+    private void loadExistingEntries() throws IOException {
+        record ExistingEntry(Path file, long size, long lastModified) {
+        }
+        var existingEntries = new ArrayList<ExistingEntry>();
+        try (var files = Files.walk(cacheRoot, 2)) {
+            for (var file : files.filter(Files::isRegularFile).toList()) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    // Left behind by an interrupted population
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                existingEntries.add(new ExistingEntry(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        }
+        existingEntries.sort(Comparator.comparingLong(ExistingEntry::lastModified));
+        synchronized (this) {
+            for (var entry : existingEntries) {
+                entrySizes.put(entry.file(), entry.size());
+                sizeInBytes += entry.size();
+            }
+            evict();
+        }
+        log.debug("Found {} entries ({} bytes) in content cache {}", existingEntries.size(), sizeInBytes, cacheRoot);
+    }
+
+    @Override
+    public InputStream readFile(long layerId, String path, IOSupplier<InputStream> loader) throws IOException {
+        var cachedFile = getCachedFile(layerId, path);
+        if (cachedFile.isPresent()) {
+            return cachedFile.get();
+        }
+        missCount.incrementAndGet();
+        return populate(layerId, getCacheFile(layerId, path), loader);
+    }
+
+    @Override
+    public Optional<InputStream> getCachedFile(long layerId, String path) throws IOException {
+        var cacheFile = getCacheFile(layerId, path);
+        boolean cached;
+        synchronized (this) {
+            // Also marks the entry as most recently used
+            cached = entrySizes.get(cacheFile) != null;
+        }
+        if (cached) {
+            try {
+                var inputStream = Files.newInputStream(cacheFile);
+                hitCount.incrementAndGet();
+                return Optional.of(inputStream);
+            }
+            catch (NoSuchFileException e) {
+                // Evicted or invalidated in the meantime
+                log.debug("Cached content for {} in layer {} disappeared", path, layerId);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private InputStream populate(long layerId, Path cacheFile, IOSupplier<InputStream> loader) throws IOException {
+        long generation;
+        synchronized (this) {
+            generation = getGeneration(layerId);
+        }
+        Files.createDirectories(cacheFile.getParent());
+        var tempFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            long size;
+            try (var inputStream = loader.get()) {
+                size = Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (size > maxSizeInBytes) {
+                log.debug("Not caching {}, because its size {} exceeds the maximum cache size", cacheFile, size);
+                return deleteOnClose(tempFile);
+            }
+            InputStream inputStream;
+            List<Path> evicted;
+            synchronized (this) {
+                if (getGeneration(layerId) != generation) {
+                    log.debug("Not caching {}, because its layer was invalidated while it was being read", cacheFile);
+                    inputStream = null;
+                    evicted = List.of();
+                }
+                else {
+                    // Moved into place with the lock held, so that an invalidation cannot come between the move and the registration
+                    Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    // Open before registering, so that the entry cannot be evicted before the caller gets to read it
+                    inputStream = Files.newInputStream(cacheFile);
+                    var previousSize = entrySizes.put(cacheFile, size);
+                    sizeInBytes += size - (previousSize == null ? 0 : previousSize);
+                    evicted = evict();
+                }
+            }
+            if (inputStream == null) {
+                return deleteOnClose(tempFile);
+            }
+            deleteQuietly(evicted);
+            return inputStream;
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    // Called with the lock held
+    private List<Path> evict() {
+        var evicted = new ArrayList<Path>();
+        var iterator = entrySizes.entrySet().iterator();
+        while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            sizeInBytes -= eldest.getValue();
+            evicted.add(eldest.getKey());
+        }
+        return evicted;
+    }
+
+    private InputStream deleteOnClose(Path file) throws IOException {
+        return new FilterInputStream(Files.newInputStream(file)) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the registered entries are deleted. The temporary files of reads that are in progress are left alone; those reads see that the layer was invalidated and do not add their content.
+     */
+    @Override
+    public synchronized void invalidateLayer(long layerId) throws IOException {
+        layerGenerations.put(layerId, getGeneration(layerId) + 1);
+        var layerDir = getLayerDir(layerId);
+        var iterator = entrySizes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey().getParent().equals(layerDir)) {
+                iterator.remove();
+                sizeInBytes -= entry.getValue();
+                // Deleted with the lock held, so that a read that starts after the invalidation cannot have its new entry deleted
+                Files.deleteIfExists(entry.getKey());
+            }
+        }
+    }
+
+    // Called with the lock held
+    private long getGeneration(long layerId) {
+        return layerGenerations.getOrDefault(layerId, 0L);
+    }
+
+    /**
+     * Returns the total size of the cached content.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns the number of reads that were served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of reads that had to go to the archive.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private Path getLayerDir(long layerId) {
+        return cacheRoot.resolve(Long.toString(layerId));
+    }
+
+    private Path getCacheFile(long layerId, String path) {
+        return getLayerDir(layerId).resolve(DigestUtils.sha256Hex(path));
+    }
+
+    private void deleteQuietly(List<Path> files) {
+        for (var file : files) {
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                log.warn("Could not delete evicted cache entry {}: {}", file, e.toString());
+            }
+        }
+    }
+}
@@ -18,39 +18,167 @@ package nl.knaw.dans.layerstore;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import org.apache.commons.io.FileUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.Optional;
+import java.util.function.Predicate;
 
 /**
- * Implementation of {@link Archive} that uses the dmftar command line tool to create and read DMF TAR archives.
+ * Implementation of {@link Archive} that uses the dmftar command line tool to create and read DMF TAR archives. If a {@link DmfTarReadScheduler} is provided, files are read through it, so that
+ * reads from the same archive can be combined into one extraction pass.
  */
 public class DmfTarArchive implements Archive {
     private final DmfTarRunner dmfTarRunner;
 
+    private final DmfTarReadScheduler readScheduler;
+
     private final String path;
 
     @Getter
     private boolean archived;
 
+    /*
+     * The manifest read from the archive; null if it has not been read yet, empty if the archive has no (readable) manifest.
+     */
+    private volatile Optional<ArchiveManifest> manifest;
+
     public DmfTarArchive(@NonNull DmfTarRunner dmfTarRunner, @NonNull String path, boolean archived) {
+        this(dmfTarRunner, null, path, archived);
+    }
+
+    public DmfTarArchive(@NonNull DmfTarRunner dmfTarRunner, DmfTarReadScheduler readScheduler, @NonNull String path, boolean archived) {
         this.dmfTarRunner = dmfTarRunner;
+        this.readScheduler = readScheduler;
         this.path = path;
         this.archived = archived;
     }
 
     @Override
     public InputStream readFile(String filePath) throws IOException {
+        if (readScheduler != null) {
+            return readScheduler.readFile(path, filePath);
+        }
         return dmfTarRunner.readFile(path, filePath);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * dmftar reads the archive from the start for every extraction, so the files are not read one by one. They are extracted with as few dmftar invocations as possible into a temporary
+     * directory, and delivered from there.
+     */
+    @Override
+    public void readFiles(Collection<String> filePaths, ItemStore.FileContentConsumer consumer) throws IOException {
+        var fileNames = filePaths.stream().distinct().toList();
+        if (fileNames.isEmpty()) {
+            return;
+        }
+        var directory = Files.createTempDirectory("dmftar-read-");
+        try {
+            try {
+                dmfTarRunner.extractFiles(path, fileNames, directory);
+            }
+            catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw e;
+            }
+            for (var fileName : fileNames) {
+                var file = directory.resolve(fileName);
+                if (!file.normalize().startsWith(directory)) {
+                    throw new IOException("Entry outside of target directory: " + fileName);
+                }
+                try (var content = Files.newInputStream(file)) {
+                    consumer.accept(fileName, content);
+                }
+            }
+        }
+        finally {
+            FileUtils.deleteQuietly(directory.toFile());
+        }
+    }
+
     @Override
     public void unarchiveTo(Path stagingDir) {
         dmfTarRunner.untarArchive(path, stagingDir);
+        try {
+            // The manifest entry is not an item of the layer
+            Files.deleteIfExists(stagingDir.resolve(ArchiveManifest.NAME));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not remove manifest from " + stagingDir, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The selected files are extracted with as few dmftar invocations as possible, so that the archive does not have to be read once for every file.
+     */
+    @Override
+    public void unarchiveTo(Path stagingDir, Predicate<String> selected) {
+        extractFiles(stagingDir, selected);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As dmftar cannot copy entries from one archive to another, the entries that are carried over are extracted into the staging directory first, in the same way as
+     * {@link #unarchiveTo(Path, Predicate)}.
+     */
+    @Override
+    public void mergeFrom(Path stagingDir, Predicate<String> replaced) {
+        if (archived) {
+            extractFiles(stagingDir, replaced.negate());
+        }
+        archiveFrom(stagingDir);
+    }
+
+    private void extractFiles(Path directory, Predicate<String> selected) {
+        try {
+            var fileNames = new ArrayList<String>();
+            var items = listAllItems();
+            while (items.hasNext()) {
+                var item = items.next();
+                if (item.getPath().isEmpty() || ArchiveManifest.isManifest(item.getPath()) || !selected.test(item.getPath())) {
+                    continue;
+                }
+                var target = directory.resolve(item.getPath());
+                if (!target.normalize().startsWith(directory)) {
+                    throw new IOException("Entry outside of target directory: " + item.getPath());
+                }
+                if (item.getType() == Item.Type.Directory) {
+                    Files.createDirectories(target);
+                }
+                else if (Files.notExists(target)) {
+                    fileNames.add(item.getPath());
+                }
+            }
+            dmfTarRunner.extractFiles(path, fileNames, directory);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not extract selected files from " + path, e);
+        }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As dmftar archives the staging directory as it is, the {@link ArchiveManifest} is written to the staging directory first, so that it is archived with the files. It is stored as the first
+     * member, so that it can be read without reading the rest of the archive, and removed from the staging directory again afterward.
+     */
     @Override
     public void archiveFrom(Path stagingDir) {
         String backupPath = null;
@@ -59,8 +187,11 @@ public class DmfTarArchive implements Archive {
             dmfTarRunner.renameRemoteFile(path, backupPath);
         }
 
+        var manifestFile = stagingDir.resolve(ArchiveManifest.NAME);
         try {
-            dmfTarRunner.tarDirectory(stagingDir, path);
+            manifest = null;
+            writeManifest(stagingDir, manifestFile);
+            dmfTarRunner.tarDirectory(stagingDir, path, Files.exists(manifestFile) ? ArchiveManifest.NAME : null);
             archived = true;
             if (backupPath != null) {
                 try {
@@ -76,16 +207,107 @@ public class DmfTarArchive implements Archive {
             }
             throw e;
         }
+        finally {
+            deleteManifestFile(manifestFile);
+        }
+    }
+
+    @SneakyThrows
+    private static void writeManifest(Path stagingDir, Path manifestFile) {
+        if (Files.notExists(stagingDir)) {
+            return;
+        }
+        var builder = new ArchiveManifest.Builder();
+        StagingDirWalker.walk(stagingDir, (file, attributes) -> {
+            var name = stagingDir.relativize(file).toString();
+            if (attributes.isDirectory()) {
+                builder.add(name, Item.Type.Directory, 0, null);
+            }
+            else {
+                var digest = ArchiveManifest.newDigest();
+                try (var inputStream = new DigestInputStream(Files.newInputStream(file), digest)) {
+                    inputStream.transferTo(OutputStream.nullOutputStream());
+                }
+                builder.add(name, Item.Type.File, attributes.size(), HexFormat.of().formatHex(digest.digest()));
+            }
+        });
+        try (var outputStream = Files.newOutputStream(manifestFile)) {
+            builder.build().write(outputStream);
+        }
+    }
+
+    private static void deleteManifestFile(Path manifestFile) {
+        try {
+            Files.deleteIfExists(manifestFile);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not remove manifest file " + manifestFile, e);
+        }
     }
 
     @Override
     @SneakyThrows
     public boolean fileExists(String filePath) {
+        if (ArchiveManifest.isManifest(filePath)) {
+            return false;
+        }
+        var archiveManifest = getManifest();
+        if (archiveManifest.isPresent()) {
+            // Directories are looked up with a trailing slash, as in a tar listing
+            var type = filePath.endsWith("/") ? Item.Type.Directory : Item.Type.File;
+            var name = filePath.endsWith("/") ? filePath.substring(0, filePath.length() - 1) : filePath;
+            return archiveManifest.get().getEntry(name).filter(entry -> entry.type() == type).isPresent();
+        }
         return dmfTarRunner.fileExists(path, "./" + filePath);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the archive has an {@link ArchiveManifest}, only the manifest is read. Otherwise, all entries of the archive are listed by dmftar.
+     */
     @Override
-    public Iterator<Item> listAllItems() {
+    public Iterator<Item> listAllItems() throws IOException {
+        var archiveManifest = getManifest();
+        if (archiveManifest.isPresent()) {
+            return archiveManifest.get().listAllItems();
+        }
         return new DmfTarArchiveItemIterator(path, dmfTarRunner);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The manifest is read once and then kept in memory until the archive is written again. Only the start of the archive is read, where the manifest is stored. A failure to read it is not
+     * remembered, so that the next call tries again.
+     */
+    @Override
+    public Optional<ArchiveManifest> getManifest() throws IOException {
+        var result = manifest;
+        if (result == null) {
+            result = readManifest();
+            manifest = result;
+        }
+        return result;
+    }
+
+    private Optional<ArchiveManifest> readManifest() throws IOException {
+        if (!archived) {
+            return Optional.empty();
+        }
+        var directory = Files.createTempDirectory("dmftar-manifest-");
+        try {
+            dmfTarRunner.extractFirstOccurrence(path, ArchiveManifest.NAME, directory);
+            try (var inputStream = Files.newInputStream(directory.resolve(ArchiveManifest.NAME))) {
+                return Optional.of(ArchiveManifest.read(inputStream));
+            }
+        }
+        catch (NoSuchFileException e) {
+            // Archives created before manifests were introduced do not have one
+            return Optional.empty();
+        }
+        finally {
+            FileUtils.deleteQuietly(directory.toFile());
+        }
+    }
 }
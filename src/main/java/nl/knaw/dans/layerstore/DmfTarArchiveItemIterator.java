@@ -40,7 +40,7 @@ public class DmfTarArchiveItemIterator implements Iterator<Item> {
     public boolean hasNext() {
         while (nextItem == null && entries.hasNext()) {
             var path = getPathFromEntry(entries.next());
-            if (!isDmftarCacheEntry(path)) {
+            if (!isDmftarCacheEntry(path) && !ArchiveManifest.isManifest(path)) {
                 nextItem = new Item(removeTrailingSlash(path), path.endsWith("/") || path.isEmpty() ? Item.Type.Directory : Item.Type.File);
             }
         }
@@ -27,10 +27,21 @@ import java.util.List;
 public class DmfTarArchiveProvider implements ArchiveProvider {
     private final DmfTarRunner dmfTarRunner;
     private final SshRunner sshRunner;
+    private final DmfTarReadScheduler readScheduler;
+
+    /**
+     * Creates a provider whose archives run a dmftar process for every file that is read.
+     *
+     * @param dmfTarRunner the runner for the dmftar command
+     * @param sshRunner    the runner for commands on the archive host
+     */
+    public DmfTarArchiveProvider(DmfTarRunner dmfTarRunner, SshRunner sshRunner) {
+        this(dmfTarRunner, sshRunner, null);
+    }
 
     @Override
     public Archive createArchive(long layerId, boolean exists) {
-        return new DmfTarArchive(dmfTarRunner, layerId + ".dmftar", exists);
+        return new DmfTarArchive(dmfTarRunner, readScheduler, layerId + ".dmftar", exists);
     }
 
     @Override
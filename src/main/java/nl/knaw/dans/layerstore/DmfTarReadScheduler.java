@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.text.MessageFormat.format;
+
+/**
+ * Schedules reads of files from DMF TAR archives, so that reads from the same archive that arrive close together are served by one extraction pass. Every dmftar invocation may trigger a recall
+ * from tape and a sequential scan of the archive, so combining reads saves a lot of time when several files of the same layer are needed.
+ * <p>
+ * A read request waits for the batch window to pass, so that other requests for the same archive can join it. The batch then waits for a free pass slot; requests that arrive before the pass
+ * starts still join the batch. The number of passes running at the same time is limited, so that the tape drives are not thrashed. Each caller gets its own stream on the extracted file.
+ * <p>
+ * Every request is completed, also when the scheduler is closed before its pass could be started; in that case the caller gets an {@link IOException}.
+ */
+@Slf4j
+public class DmfTarReadScheduler implements Closeable {
+    public static final Duration DEFAULT_BATCH_WINDOW = Duration.ofMillis(200);
+    public static final int DEFAULT_MAX_CONCURRENT_PASSES = 2;
+
+    private final DmfTarRunner dmfTarRunner;
+    private final Path workDir;
+    private final Duration batchWindow;
+
+    private final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(r -> newDaemonThread(r, "dmftar-read-batch-timer"));
+    private final ExecutorService passExecutor;
+
+    // Batches that a pass has not started for yet, by archive name
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    // Guarded by openBatches
+    private boolean closed;
+
+    private static class Batch {
+        private final String archiveName;
+        private final List<Request> requests = new ArrayList<>();
+        // Whether the pass for this batch has been handed to the pass executor
+        private boolean queued;
+
+        private Batch(String archiveName) {
+            this.archiveName = archiveName;
+        }
+    }
+
+    private record Request(String fileName, CompletableFuture<InputStream> result) {
+    }
+
+    /**
+     * Creates a scheduler with the default batch window and maximum number of concurrent passes.
+     *
+     * @param dmfTarRunner the runner to extract files with
+     * @param workDir      local directory to extract files into before they are handed to the callers
+     * @throws IOException if the work directory cannot be created
+     */
+    public DmfTarReadScheduler(@NonNull DmfTarRunner dmfTarRunner, @NonNull Path workDir) throws IOException {
+        this(dmfTarRunner, workDir, DEFAULT_BATCH_WINDOW, DEFAULT_MAX_CONCURRENT_PASSES);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param dmfTarRunner         the runner to extract files with
+     * @param workDir              local directory to extract files into before they are handed to the callers
+     * @param batchWindow          how long a read request waits for other requests for the same archive
+     * @param maxConcurrentPasses  the maximum number of extraction passes running at the same time
+     * @throws IOException if the work directory cannot be created
+     */
+    public DmfTarReadScheduler(@NonNull DmfTarRunner dmfTarRunner, @NonNull Path workDir, @NonNull Duration batchWindow, int maxConcurrentPasses) throws IOException {
+        if (batchWindow.isNegative()) {
+            throw new IllegalArgumentException("batchWindow must not be negative");
+        }
+        if (maxConcurrentPasses < 1) {
+            throw new IllegalArgumentException("maxConcurrentPasses must be at least 1");
+        }
+        this.dmfTarRunner = dmfTarRunner;
+        this.workDir = workDir;
+        this.batchWindow = batchWindow;
+        this.passExecutor = Executors.newFixedThreadPool(maxConcurrentPasses, r -> newDaemonThread(r, "dmftar-read-pass"));
+        Files.createDirectories(workDir);
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        var thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Reads a file from an archive. Blocks until the pass that extracts the file has completed.
+     *
+     * @param archiveName the name of the archive to read from
+     * @param fileName    the name of the file in the archive
+     * @return an input stream for reading the file; the caller is responsible for closing the stream
+     * @throws IOException if the file cannot be read
+     */
+    public InputStream readFile(@NonNull String archiveName, @NonNull String fileName) throws IOException {
+        var request = new Request(fileName, new CompletableFuture<>());
+        synchronized (openBatches) {
+            if (closed) {
+                throw new IOException(format("Could not read {0} from {1}: the read scheduler is closed", fileName, archiveName));
+            }
+            var batch = openBatches.get(archiveName);
+            if (batch == null) {
+                var newBatch = new Batch(archiveName);
+                try {
+                    batchTimer.schedule(() -> queuePass(newBatch), batchWindow.toNanos(), TimeUnit.NANOSECONDS);
+                }
+                catch (RejectedExecutionException e) {
+                    throw new IOException(format("Could not read {0} from {1}: the read scheduler is closed", fileName, archiveName), e);
+                }
+                openBatches.put(archiveName, newBatch);
+                batch = newBatch;
+            }
+            batch.requests.add(request);
+        }
+        try {
+            return request.result().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + fileName + " from " + archiveName);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(format("Could not read {0} from {1}", fileName, archiveName), e.getCause());
+        }
+    }
+
+    private void queuePass(Batch batch) {
+        synchronized (openBatches) {
+            try {
+                passExecutor.execute(() -> runPass(batch));
+                batch.queued = true;
+            }
+            catch (RejectedExecutionException e) {
+                failBatch(batch, new IOException("The read scheduler was closed before " + batch.archiveName + " could be read", e));
+            }
+        }
+    }
+
+    // Called with the lock on openBatches held
+    private void failBatch(Batch batch, IOException e) {
+        openBatches.remove(batch.archiveName, batch);
+        batch.requests.forEach(request -> request.result().completeExceptionally(e));
+    }
+
+    private void runPass(Batch batch) {
+        List<Request> requests;
+        synchronized (openBatches) {
+            // From now on, new requests for this archive start a new batch
+            openBatches.remove(batch.archiveName, batch);
+            requests = List.copyOf(batch.requests);
+        }
+        var fileNames = new LinkedHashSet<String>();
+        requests.forEach(request -> fileNames.add(request.fileName()));
+        log.debug("Extracting {} file(s) for {} request(s) from {}", fileNames.size(), requests.size(), batch.archiveName);
+        Path passDir = null;
+        try {
+            passDir = Files.createTempDirectory(workDir, batch.archiveName + ".");
+            extract(batch.archiveName, fileNames, passDir);
+            for (var request : requests) {
+                try {
+                    request.result().complete(Files.newInputStream(passDir.resolve(request.fileName())));
+                }
+                catch (NoSuchFileException e) {
+                    request.result().completeExceptionally(new IOException(format("{0} not found in {1}", request.fileName(), batch.archiveName)));
+                }
+                catch (IOException e) {
+                    request.result().completeExceptionally(e);
+                }
+            }
+        }
+        catch (Exception e) {
+            requests.forEach(request -> request.result().completeExceptionally(e));
+        }
+        finally {
+            if (passDir != null) {
+                // The streams handed out remain readable after the files are deleted
+                try {
+                    FileUtils.deleteDirectory(passDir.toFile());
+                }
+                catch (IOException e) {
+                    log.warn("Could not delete extraction directory {}: {}", passDir, e.toString());
+                }
+            }
+        }
+    }
+
+    /*
+     * A file that is not in the archive makes the whole pass fail. The files are then extracted one by one, so that the other requests can still be served; the requests for the missing files
+     * find no extracted file. Any other failure fails the whole batch, because extracting the files one by one would most likely fail in the same way, once for every file.
+     */
+    private void extract(String archiveName, LinkedHashSet<String> fileNames, Path directory) {
+        try {
+            dmfTarRunner.extractFiles(archiveName, fileNames, directory);
+        }
+        catch (RuntimeException e) {
+            if (!isMissingFile(e)) {
+                throw e;
+            }
+            if (fileNames.size() == 1) {
+                return;
+            }
+            log.debug("Extracting {} files from {} in one pass failed, extracting them one by one: {}", fileNames.size(), archiveName, e.getCause().getMessage());
+            for (var fileName : fileNames) {
+                try {
+                    dmfTarRunner.extractFiles(archiveName, List.of(fileName), directory);
+                }
+                catch (RuntimeException fileException) {
+                    if (!isMissingFile(fileException)) {
+                        throw fileException;
+                    }
+                    log.debug("{} is not in {}", fileName, archiveName);
+                }
+            }
+        }
+    }
+
+    private static boolean isMissingFile(RuntimeException e) {
+        // DmfTarRunner reports a file that is not in the archive with a NoSuchFileException
+        return e.getCause() instanceof NoSuchFileException;
+    }
+
+    /**
+     * Stops accepting new requests. Passes that have already been scheduled are still run; requests whose pass has not been handed to a pass thread by the time the batch timer has stopped are
+     * completed with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        synchronized (openBatches) {
+            closed = true;
+        }
+        batchTimer.shutdown();
+        try {
+            batchTimer.awaitTermination(batchWindow.toMillis() + 1000, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (openBatches) {
+            passExecutor.shutdown();
+            for (var batch : List.copyOf(openBatches.values())) {
+                if (!batch.queued) {
+                    failBatch(batch, new IOException("The read scheduler was closed before " + batch.archiveName + " could be read"));
+                }
+            }
+        }
+    }
+}
@@ -19,16 +19,23 @@ import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.lib.util.ProcessInputStream;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -41,7 +48,17 @@ import java.util.regex.Pattern;
 public class DmfTarRunner extends AbstractRunner {
     // Only allow safe archive names: alphanumeric, dash, underscore, dot
     private static final Pattern SAFE_ARCHIVE_NAME = Pattern.compile("[a-zA-Z0-9._-]+$");
-    private static final Pattern SAFE_FILE_NAME = Pattern.compile("[a-zA-Z0-9._/-]+$");
+    // File names are passed to dmftar as separate arguments, without a shell, so only names that tar cannot take as a member name are refused
+    private static final Pattern UNSAFE_FILE_NAME = Pattern.compile("(^/|^\\./|(^|/)\\.\\.(/|$)|\\p{Cntrl})");
+
+    /*
+     * The maximum number of bytes of file names passed to one dmftar invocation, to stay well below the limit on the size of the arguments of a process (ARG_MAX, which also covers the
+     * environment).
+     */
+    private static final int MAX_FILE_NAME_BYTES_PER_EXTRACTION = 512 * 1024;
+
+    // What tar reports for a file to extract that is not in the archive
+    private static final String NOT_FOUND_IN_ARCHIVE = "Not found in archive";
 
     private final Path dmfTarExecutable;
     private final SshRunner sshRunner;
@@ -75,13 +92,30 @@ public class DmfTarRunner extends AbstractRunner {
      * @param archiveName the name of the archive to create on the remote host
      */
     public void tarDirectory(Path directory, String archiveName) {
+        tarDirectory(directory, archiveName, null);
+    }
+
+    /**
+     * Create a DMF TAR archive from the contents of the given directory, with the given file as the first member. Otherwise, the files are archived in the order in which the directory lists
+     * them, so this is the only way to be able to find a file without reading the rest of the archive (see {@link #extractFirstOccurrence(String, String, Path)}). As the directory is archived as
+     * a whole after it, the file is stored a second time at its place in the directory.
+     *
+     * @param directory   the directory to archive
+     * @param archiveName the name of the archive to create on the remote host
+     * @param firstFile   the path of the file in the directory to store as the first member, or {@code null} to store the files in directory order
+     */
+    public void tarDirectory(Path directory, String archiveName, String firstFile) {
         checkForDmftarCacheDirectories(directory);
         validateArchiveName(archiveName);
         // Use CommandLine with addArgument to avoid command injection
         var commandLine = new CommandLine(dmfTarExecutable.toAbsolutePath().toString())
             .addArgument("-cf")
-            .addArgument(getRemotePath(archiveName), false) // remote path is validated
-            .addArgument(".");
+            .addArgument(getRemotePath(archiveName), false); // remote path is validated
+        if (firstFile != null) {
+            validateFileName(firstFile);
+            commandLine.addArgument(addPrefix(firstFile), false);
+        }
+        commandLine.addArgument(".");
         var executor = DefaultExecutor.builder()
             .setWorkingDirectory(directory.toAbsolutePath().toFile())
             .get();
@@ -147,10 +181,101 @@ public class DmfTarRunner extends AbstractRunner {
             .addArgument("--quiet")
             .addArgument("--extract")
             .addArgument("--archive=" + getRemotePath(archiveName))
-            .addArgument(addPrefix(fileName));
+            .addArgument(addPrefix(fileName), false);
         return ProcessInputStream.start(commandLine);
     }
 
+    /**
+     * Extracts several files from a DMF TAR archive on the remote host. The files are written to the given directory, at their paths in the archive. The names are passed to dmftar on its command
+     * line, so a long list of names is split over several invocations, each of which extracts its files in one pass.
+     *
+     * @param archiveName the name of the archive to extract from
+     * @param fileNames   the names of the files to extract
+     * @param directory   the directory to extract the files into; must exist
+     */
+    public void extractFiles(String archiveName, Collection<String> fileNames, Path directory) {
+        validateArchiveName(archiveName);
+        fileNames.forEach(this::validateFileName);
+        var batch = new ArrayList<String>();
+        long batchBytes = 0;
+        for (var fileName : fileNames) {
+            // Each argument also takes a terminating NUL and a pointer in the argument vector
+            var argumentBytes = addPrefix(fileName).getBytes(StandardCharsets.UTF_8).length + 1 + Long.BYTES;
+            if (!batch.isEmpty() && batchBytes + argumentBytes > MAX_FILE_NAME_BYTES_PER_EXTRACTION) {
+                extractBatch(archiveName, batch, directory);
+                batch.clear();
+                batchBytes = 0;
+            }
+            batch.add(fileName);
+            batchBytes += argumentBytes;
+        }
+        if (!batch.isEmpty()) {
+            extractBatch(archiveName, batch, directory);
+        }
+    }
+
+    private void extractBatch(String archiveName, List<String> fileNames, Path directory) {
+        var commandLine = new CommandLine(dmfTarExecutable.toAbsolutePath().toString())
+            .addArgument("-xf")
+            .addArgument(getRemotePath(archiveName), false)
+            .addArgument("--options=--directory=" + directory.toAbsolutePath(), false);
+        for (var fileName : fileNames) {
+            // Not quoted: the arguments are passed to the process as they are, so quotes would become part of the name
+            commandLine.addArgument(addPrefix(fileName), false);
+        }
+        try {
+            executeExtraction(commandLine, archiveName, directory);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to extract files from tar archive: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Extracts one file from a DMF TAR archive on the remote host, reading the archive only up to the first occurrence of the file. This is cheap for a file that was stored as the first member
+     * (see {@link #tarDirectory(Path, String, String)}).
+     *
+     * @param archiveName the name of the archive to extract from
+     * @param fileName    the name of the file to extract
+     * @param directory   the directory to extract the file into; must exist
+     * @throws NoSuchFileException if the archive does not contain the file
+     * @throws IOException         if the file could not be extracted for another reason
+     */
+    public void extractFirstOccurrence(String archiveName, String fileName, Path directory) throws IOException {
+        validateArchiveName(archiveName);
+        validateFileName(fileName);
+        var commandLine = new CommandLine(dmfTarExecutable.toAbsolutePath().toString())
+            .addArgument("-xf")
+            .addArgument(getRemotePath(archiveName), false)
+            .addArgument("--options=--directory=" + directory.toAbsolutePath(), false)
+            // Stop reading as soon as the file has been found
+            .addArgument("--options=--occurrence")
+            .addArgument(addPrefix(fileName), false);
+        executeExtraction(commandLine, archiveName, directory);
+    }
+
+    /*
+     * Runs an extraction. tar reports a requested file that is not in the archive on its standard error, which is told apart from other failures, such as a failing connection, with a
+     * NoSuchFileException.
+     */
+    private void executeExtraction(CommandLine commandLine, String archiveName, Path directory) throws IOException {
+        var errors = new ByteArrayOutputStream();
+        var executor = DefaultExecutor.builder()
+            .setWorkingDirectory(directory.toAbsolutePath().toFile())
+            .get();
+        executor.setStreamHandler(new PumpStreamHandler(System.out, errors));
+        try {
+            executor.execute(commandLine);
+        }
+        catch (ExecuteException e) {
+            var message = errors.toString(StandardCharsets.UTF_8).trim();
+            if (message.contains(NOT_FOUND_IN_ARCHIVE)) {
+                throw new NoSuchFileException(archiveName, null, message);
+            }
+            throw new IOException(message.isEmpty() ? e.getMessage() : message, e);
+        }
+    }
+
     /*
      * dmftar wants ./<filename>
      */
@@ -228,7 +353,7 @@ public class DmfTarRunner extends AbstractRunner {
     }
 
     private void validateFileName(String name) {
-        if (name == null || name.startsWith("./") || !SAFE_FILE_NAME.matcher(name).matches() || name.startsWith("../")) {
+        if (name == null || name.isEmpty() || UNSAFE_FILE_NAME.matcher(name).find()) {
             throw new IllegalArgumentException("Invalid file name: " + name);
         }
     }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings for compressing an archive in independently compressed gzip blocks, in the way <code>pigz</code> does. The uncompressed archive is cut into blocks of a fixed size, each of which is
+ * compressed as a separate gzip member on one of several threads. The result is an ordinary gzip file, but because the blocks do not depend on each other, a reader can start decompressing at
+ * any block boundary.
+ *
+ * @param blockSize the number of uncompressed bytes per block
+ * @param level     the deflate compression level, from 0 to 9, or -1 for the default level
+ * @param threads   the number of threads to compress blocks on
+ */
+public record GzipBlockCompression(int blockSize, int level, int threads) {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    public GzipBlockCompression {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("level must be between -1 and 9");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+    }
+
+    /**
+     * Returns the default settings: blocks of {@value #DEFAULT_BLOCK_SIZE} bytes, compressed at the default level on as many threads as there are processors.
+     *
+     * @return the default settings
+     */
+    public static GzipBlockCompression defaults() {
+        return new GzipBlockCompression(DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -15,26 +15,39 @@
  */
 package nl.knaw.dans.layerstore;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 
+import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
-import javax.persistence.Lob;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Table;
 
 /**
  * A record in the database that represents a file or directory (i.e., {@link Item}) in a layer.
  */
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
-@Builder
 @Entity(name = "listing_record")
+@Table(indexes = {
+    @Index(name = "listing_record_path_index", columnList = "path"),
+    @Index(name = "listing_record_parent_path_index", columnList = "parent_path")
+})
 public class ItemRecord {
     @Id
     @Column(name = "generated_id")
@@ -47,12 +60,95 @@ public class ItemRecord {
     @Column(nullable = false, length = 4096)
     private String path;
 
+    /**
+     * The path of the directory that contains the item, or {@code null} for the root directory. It is derived from the path, so that the children of a directory can be found with an equality
+     * lookup.
+     */
+    @Setter(AccessLevel.NONE)
+    @Column(name = "parent_path", length = 4096)
+    private String parentPath;
+
     @Column(nullable = false)
     private Item.Type type;
 
-    @Column
-    @Lob
-    private byte[] content;
+    /**
+     * The copy of the content that is stored in the database, if any. It is fetched lazily, so that only {@link #getContent()} reads it.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL, orphanRemoval = true)
+    @JoinColumn(name = "content_id")
+    private ItemRecordContent storedContent;
+
+    @Builder
+    public ItemRecord(Long generatedId, Long layerId, String path, Item.Type type, byte[] content) {
+        this.generatedId = generatedId;
+        this.layerId = layerId;
+        this.path = path;
+        this.parentPath = getParentPath(path);
+        this.type = type;
+        setContent(content);
+    }
+
+    /**
+     * Returns whether a copy of the content is stored in the database. Unlike {@link #getContent()}, this does not read the content.
+     *
+     * @return true if the content is stored in the database, false otherwise
+     */
+    public boolean hasContent() {
+        return storedContent != null;
+    }
+
+    /**
+     * Returns the copy of the content that is stored in the database. If the record was loaded from the database, the content is read at this point.
+     *
+     * @return the content, or {@code null} if it is not stored in the database
+     */
+    public byte[] getContent() {
+        return storedContent == null ? null : storedContent.getContent();
+    }
+
+    public void setContent(byte[] content) {
+        if (content == null) {
+            storedContent = null;
+        }
+        else if (storedContent == null) {
+            storedContent = new ItemRecordContent(content);
+        }
+        else {
+            storedContent.setContent(content);
+        }
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+        this.parentPath = getParentPath(path);
+    }
+
+    /*
+     * Records created before the parent path was stored get it when they are saved again.
+     */
+    @PrePersist
+    @PreUpdate
+    void updateParentPath() {
+        parentPath = getParentPath(path);
+    }
+
+    /**
+     * Returns the path of the directory that contains the item at the given path.
+     *
+     * @param path the path of the item relative to the storage root
+     * @return the path of the parent directory, the empty string for items in the root directory, or {@code null} for the root directory itself
+     */
+    public static String getParentPath(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash == -1 ? "" : path.substring(0, lastSlash);
+    }
 
     public Item toItem() {
         return new Item(path, type);
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+/**
+ * The content of a file that is stored in the database, in addition to the layer. It is kept apart from the {@link ItemRecord} of the file, so that queries for the records do not read the content
+ * unless it is actually needed.
+ */
+@Data
+@NoArgsConstructor
+@Entity(name = "listing_record_content")
+public class ItemRecordContent {
+    @Id
+    @Column(name = "generated_id")
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long generatedId;
+
+    @Column
+    @Lob
+    @ToString.Exclude
+    private byte[] content;
+
+    public ItemRecordContent(byte[] content) {
+        this.content = content;
+    }
+}
@@ -18,7 +18,9 @@ package nl.knaw.dans.layerstore;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * <p>
@@ -30,6 +32,21 @@ import java.util.List;
  * </p>
  */
 public interface ItemStore {
+    /**
+     * Receives the content of a file read by {@link #readFiles(Collection, FileContentConsumer)}.
+     */
+    @FunctionalInterface
+    interface FileContentConsumer {
+        /**
+         * Accepts the content of one file. The stream is closed by the store after this method returns, so it must not be used afterwards.
+         *
+         * @param path    the path of the file relative to the storage root
+         * @param content the content of the file
+         * @throws IOException if the content cannot be processed
+         */
+        void accept(String path, InputStream content) throws IOException;
+    }
+
     /**
      * Returns the items in the given directory, taking into account the complete stack of layers.
      *
@@ -50,6 +67,31 @@ public interface ItemStore {
      */
     List<Item> listRecursive(String directoryPath) throws IOException;
 
+    /**
+     * Streams the items in the given directory, like {@link #listDirectory(String)}, but without necessarily holding all of them in memory. The stream must be closed after use.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @return the items in the directory
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    default Stream<Item> streamDirectory(String directoryPath) throws IOException {
+        return listDirectory(directoryPath).stream();
+    }
+
+    /**
+     * Streams the files and directories in the given directory and its subdirectories, like {@link #listRecursive(String)}, but without necessarily holding all of them in memory. The stream must be
+     * closed after use.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @return the items in the directory and its subdirectories
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    default Stream<Item> streamRecursive(String directoryPath) throws IOException {
+        return listRecursive(directoryPath).stream();
+    }
+
     /**
      * Returns whether a path with the given pattern exists in the store.
      *
@@ -67,6 +109,23 @@ public interface ItemStore {
      */
     InputStream readFile(String path) throws IOException;
 
+    /**
+     * Reads the files at the given paths and passes their content to the consumer, one file at a time. Implementations may deliver the files in any order, for example the order in which they
+     * can be read most efficiently. Each file is delivered once, even if its path is given more than once.
+     *
+     * @param paths    the paths of the files relative to the storage root
+     * @param consumer receives the content of each file
+     * @throws java.nio.file.NoSuchFileException if one of the paths does not exist; in that case no files are delivered
+     * @throws IOException                       if one of the paths is a directory, or a file could not be read
+     */
+    default void readFiles(Collection<String> paths, FileContentConsumer consumer) throws IOException {
+        for (var path : paths.stream().distinct().toList()) {
+            try (var content = readFile(path)) {
+                consumer.accept(path, content);
+            }
+        }
+    }
+
     /**
      * Writes the given content to the file at the given path. If the file does not exist yet, it is created. Note that this is different from the behavior of
      * io.ocfl.core.storage.common.Storage#write(java.lang.String, byte[], java.lang.String), which throws an exception if the file already exists.
@@ -16,9 +16,10 @@
 package nl.knaw.dans.layerstore;
 
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.IteratorUtils;
 
 import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Checks that the items found on storage are the same as the items found in the database for the layer.
@@ -51,10 +52,14 @@ class ItemsMatchDbConsistencyChecker implements LayerConsistencyChecker {
 
     private void checkSameItemsFoundOnStorageAsInDatabase(Layer layer) throws IOException, ItemsMismatchException {
         log.debug("Checking consistency of items found on storage for layer {}", layer.getId());
-        var itemsInDb = database.getRecordsByLayerId(layer.getId()).stream().map(ItemRecord::toItem).toList();
-        var itemsOnStorage = IteratorUtils.toList(layer.listAllItems());
-        var missingOnStorage = itemsInDb.stream().filter(item -> !itemsOnStorage.contains(item)).toList();
-        var missingInDb = itemsOnStorage.stream().filter(item -> !itemsInDb.contains(item)).toList();
+        var itemsOnStorage = new LinkedHashSet<Item>();
+        layer.listAllItems().forEachRemaining(itemsOnStorage::add);
+        // Stream the items in the database, crossing off the ones found on storage, so that only the items on storage are held in memory
+        List<Item> missingOnStorage;
+        try (var itemsInDb = database.streamItemsByLayerId(layer.getId())) {
+            missingOnStorage = itemsInDb.filter(item -> !itemsOnStorage.remove(item)).toList();
+        }
+        var missingInDb = List.copyOf(itemsOnStorage);
         if (!missingInDb.isEmpty() || !missingOnStorage.isEmpty()) {
             throw new ItemsMismatchException(missingInDb, missingOnStorage);
         }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * A row in the projection of the {@link ItemRecord}s that contains, for every path in the layered storage, only the record in the highest layer. The projection is maintained by the
+ * {@link LayerDatabase} whenever it saves or deletes records, so that listing a directory or resolving a path does not have to look at the whole stack of layers. It can be recreated from the
+ * records with {@link LayerDatabase#rebuildLatestItemRecords()}.
+ */
+@Data
+@NoArgsConstructor
+@Entity(name = "latest_listing_record")
+@Table(indexes = {
+    @Index(name = "latest_listing_record_path_index", columnList = "path", unique = true),
+    @Index(name = "latest_listing_record_parent_path_index", columnList = "parent_path"),
+    @Index(name = "latest_listing_record_record_id_index", columnList = "record_id")
+})
+public class LatestItemRecord {
+    @Id
+    @Column(name = "generated_id")
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long generatedId;
+
+    @Column(nullable = false, length = 4096)
+    private String path;
+
+    @Column(name = "parent_path", length = 4096)
+    private String parentPath;
+
+    @Column(name = "layer_id", nullable = false)
+    private Long layerId;
+
+    @Column(nullable = false)
+    private Item.Type type;
+
+    /**
+     * The generatedId of the {@link ItemRecord} in the highest layer.
+     */
+    @Column(name = "record_id", nullable = false)
+    private Long recordId;
+
+    /**
+     * The generatedId of the {@link ItemRecordContent} of the record in the highest layer, or {@code null} if its content is not stored in the database.
+     */
+    @Column(name = "content_id")
+    private Long contentId;
+
+    public LatestItemRecord(Long recordId, Long layerId, String path, Item.Type type, Long contentId) {
+        this.recordId = recordId;
+        this.layerId = layerId;
+        this.path = path;
+        this.parentPath = ItemRecord.getParentPath(path);
+        this.type = type;
+        this.contentId = contentId;
+    }
+
+    /**
+     * Returns whether the content of the record in the highest layer is stored in the database.
+     *
+     * @return true if the content is stored in the database, false otherwise
+     */
+    public boolean hasContent() {
+        return contentId != null;
+    }
+
+    public Item toItem() {
+        return new Item(path, type);
+    }
+}
@@ -18,6 +18,7 @@ package nl.knaw.dans.layerstore;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -72,6 +73,18 @@ interface Layer {
      */
     void reopen() throws IOException;
 
+    /**
+     * Changes the state of the layer to open, staging only the subtrees at the given paths. The other content of the layer stays in the archive, from where it is read, until it is changed: a file
+     * or directory that is written, moved or deleted is staged at that moment (copy-on-write), and deletions of archived content are recorded, so that they hide it. When the layer is archived
+     * again, the content that was not staged is carried over from the old archive. With an empty collection of paths nothing is extracted at all, so that the staging directory only receives the
+     * changes. For a CLOSED layer this is the same as {@link #reopen()}.
+     *
+     * @param paths the paths of the files and directories to stage, relative to the root of the layer
+     * @throws IllegalStateException if the layer is not in the CLOSED or ARCHIVED state
+     * @throws IOException           if the layer cannot be reopened
+     */
+    void reopen(Collection<String> paths) throws IOException;
+
     /**
      * Turns the layer into an archive file. This operation is only allowed when the layer is in the CLOSED state.
      *
@@ -115,6 +128,26 @@ interface Layer {
      */
     InputStream readFile(String path) throws IOException;
 
+    /**
+     * Orders the given paths so that reading the files in that order visits the layer's storage sequentially. For an archived layer this is the order of the entries in the archive; for a staged
+     * layer it is the order of the paths.
+     *
+     * @param paths the paths of the files to read, relative to the storage root
+     * @return the same paths, in the order in which they are best read
+     * @throws IOException if the order cannot be determined
+     */
+    List<String> orderForReading(Collection<String> paths) throws IOException;
+
+    /**
+     * Reads the files at the given paths and passes their content to the consumer, one file at a time, in the order in which they are best read (see {@link #orderForReading(Collection)}). For an
+     * archived layer the files are read with {@link Archive#readFiles(Collection, ItemStore.FileContentConsumer)}, so that an archive that has to be read in full is read once for all of them.
+     *
+     * @param paths    the paths of the files to read, relative to the storage root
+     * @param consumer receives the content of each file; the stream is closed after the consumer returns
+     * @throws IOException if a file cannot be read
+     */
+    void readFiles(Collection<String> paths, ItemStore.FileContentConsumer consumer) throws IOException;
+
     /**
      * Writes the content of the given input stream to the file at the given path. Not allowed when the layer is closed. If the file already exists, it is overwritten.
      *
@@ -151,7 +184,7 @@ interface Layer {
     void moveDirectoryInternal(String source, String destination) throws IOException;
 
     /**
-     * Returns the size of the layer in bytes. If the layer is archived, this may take a long time, especially when the archive is stored on tape.
+     * Returns the size of the layer in bytes. If the layer is archived, the size is read from the {@link ArchiveManifest} of the archive; archives without a manifest are not supported.
      *
      * @return the size of the layer in bytes
      * @throws IOException if the size cannot be determined
@@ -16,28 +16,66 @@
 package nl.knaw.dans.layerstore;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
  * Provides access to the database that contains an {@link ItemRecord} for every file and directory (i.e., {@link Item}) stored in the layered storage. Contains methods to add, delete and find
  * information about these files and directories.
+ * <p>
+ * For every path, the record in the highest layer is also kept in a projection of {@link LatestItemRecord}s. The methods that save or delete records keep this projection up to date, and the
+ * listings and {@link #getLatestRecord(String)} read it instead of comparing the records in all layers.
  */
 public interface LayerDatabase {
 
     /**
-     * Save records to the database. The records may be new or existing. If a record already exists, it is updated.
+     * Save records to the database. The records may be new or existing. If a record already exists, it is updated. New records are inserted in the order in which they are passed.
      *
      * @param records the records to save
      */
     void saveRecords(ItemRecord... records);
 
     /**
-     * Deletes the records with the given ids.
+     * Deletes the records with the given ids. The records are deleted with bulk statements, so any instances of them that are still loaded are not updated.
      *
      * @param ids the ids of the records to delete
+     * @return the number of records that were deleted
      */
-    void deleteRecordsById(long... ids);
+    int deleteRecordsById(long... ids);
+
+    /**
+     * Deletes the records of the given directory and all its descendants in the given layer. Records in other layers are left alone.
+     *
+     * @param layerId       the layer to delete the records from
+     * @param directoryPath the directory path relative to the storage root
+     * @return the number of records that were deleted
+     */
+    int deleteDirectoryRecords(long layerId, String directoryPath);
+
+    /**
+     * Deletes the records of the given directory and all its descendants in the given layer, but only if there are exactly <code>expectedCount</code> records. Otherwise
+     * nothing is deleted.
+     *
+     * @param layerId       the layer to delete the records from
+     * @param directoryPath the directory path relative to the storage root
+     * @param expectedCount the number of records that is expected to be deleted
+     * @return the number of records that were deleted
+     * @throws IllegalStateException if the number of records differs from <code>expectedCount</code>
+     */
+    int deleteDirectoryRecords(long layerId, String directoryPath, long expectedCount);
+
+    /**
+     * Finds the descendants of <code>directoryPath</code> that have a record in another layer than the given one.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @param layerId       the layer id
+     * @return the paths of the descendants that have a record in another layer, in ascending order
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    List<String> findDescendantsInOtherLayers(String directoryPath, long layerId) throws IOException;
 
     /**
      * Retrieves a stream of all the records in the database.
@@ -62,6 +100,54 @@ public interface LayerDatabase {
      */
     List<Item> listRecursive(String directoryPath) throws IOException;
 
+    /**
+     * Streams the items in <code>directoryPath</code>, ordered by path. The rows are read from a database cursor while the stream is consumed, so the items are not all held in memory. The stream
+     * must be closed after use and consumed within the transaction in which it was opened.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @return the items in the directory
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    Stream<Item> streamDirectory(String directoryPath) throws IOException;
+
+    /**
+     * Streams the items in <code>directoryPath</code> and its subdirectories, ordered by path. Parent directories therefore come before their descendants. As with
+     * {@link #streamDirectory(String)}, the stream must be closed after use.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @return the items in the directory and its subdirectories
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    Stream<Item> streamRecursive(String directoryPath) throws IOException;
+
+    /**
+     * Counts the items in <code>directoryPath</code> and its subdirectories, without the directory itself. It takes into account the complete stack of layers.
+     *
+     * @param directoryPath the directory path relative to the storage root
+     * @return the number of items in the directory and its subdirectories
+     * @throws java.nio.file.NoSuchFileException   if the directory does not exist in any of the layers
+     * @throws java.nio.file.NotDirectoryException if the path exists but is not a directory
+     */
+    long countDescendants(String directoryPath) throws IOException;
+
+    /**
+     * Fills in the parent path of records that were saved by a version of this library that did not store it yet. This only needs to be done once, after the <code>parent_path</code> column has
+     * been added to an existing database. Until then, {@link #listDirectory(String)} does not return the items of these records.
+     *
+     * @return the number of records that were updated
+     */
+    int fillMissingParentPaths();
+
+    /**
+     * Recreates the {@link LatestItemRecord}s from the records in the database. This is only needed if the records were changed without using this interface, or after the
+     * <code>latest_listing_record</code> table has been added to an existing database.
+     *
+     * @return the number of latest item records that were created
+     */
+    int rebuildLatestItemRecords();
+
     /**
      * Adds a directory to the database. Ancestor directories are added automatically if they do not exist in the same layer yet.
      *
@@ -87,6 +173,48 @@ public interface LayerDatabase {
      */
     List<ItemRecord> getRecordsByPath(String path);
 
+    /**
+     * Returns the record for the given path in the highest layer that contains it.
+     *
+     * @param path path relative to the root of the storage
+     * @return the record in the highest layer, or an empty optional if the path does not exist in any layer
+     */
+    Optional<ItemRecord> getLatestRecord(String path);
+
+    /**
+     * Resolves the given path to the {@link LatestItemRecord}, which holds the layer id, type and content-presence of the record in the highest layer. This is a single lookup by path, which does not
+     * load any record or content.
+     *
+     * @param path path relative to the root of the storage
+     * @return the latest item record, or an empty optional if the path does not exist in any layer
+     */
+    Optional<LatestItemRecord> getLatestItemRecord(String path);
+
+    /**
+     * Resolves all the given paths to their {@link LatestItemRecord}s, using as few queries as possible. Paths that do not exist in any layer are not included in the result.
+     *
+     * @param paths paths relative to the root of the storage
+     * @return the latest item records, ordered by path
+     */
+    List<LatestItemRecord> getLatestItemRecords(Collection<String> paths);
+
+    /**
+     * Returns the content that is stored in the database with the given id.
+     *
+     * @param contentId the id of the stored content, as found in {@link LatestItemRecord#getContentId()}
+     * @return the content
+     * @throws IllegalArgumentException if there is no stored content with the given id
+     */
+    byte[] getStoredContent(long contentId);
+
+    /**
+     * Returns the records for all the given paths in any layer. The records are ordered by path and then by layer id, with the newest layer first.
+     *
+     * @param paths paths relative to the root of the storage
+     * @return the records for the given paths
+     */
+    List<ItemRecord> getRecordsByPaths(Collection<String> paths);
+
     /**
      * Returns whether the path pattern matches any path in the database.
      *
@@ -110,4 +238,13 @@ public interface LayerDatabase {
      */
     List<ItemRecord> getRecordsByLayerId(long layerId);
 
+    /**
+     * Streams the items that have a record in the given layer, ordered by path. Unlike {@link #getRecordsByLayerId(long)}, this only reads the path and type of the records. The stream must be
+     * closed after use.
+     *
+     * @param layerId the layer id to get the items for
+     * @return the items in the given layer
+     */
+    Stream<Item> streamItemsByLayerId(long layerId);
+
 }
@@ -15,13 +15,26 @@
  */
 package nl.knaw.dans.layerstore;
 
-import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.lib.util.PersistenceProvider;
+import nl.knaw.dans.lib.util.PersistenceProviderImpl;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.annotations.QueryHints;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.query.criteria.internal.CriteriaBuilderImpl;
 
+import javax.persistence.LockModeType;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Subquery;
@@ -29,7 +42,17 @@ import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,100 +60,584 @@ import static nl.knaw.dans.layerstore.Item.Type;
 
 /**
  * An implementation of {@link LayerDatabase} that uses a {@link PersistenceProvider} to store {@link ItemRecord}s.
+ * <p>
+ * All operations take part in the transaction of the caller, through the current session of the session factory. Operations that write to the database run in a transaction of their own if
+ * the caller has none. Bulk operations are split into batches of {@link #getBatchSize()} records. After each full batch the persistence context is flushed and the records of the batch are
+ * detached, so that it does not grow with the number of records written. Records that the caller has loaded stay managed. For the inserts and updates to be sent to the database as JDBC
+ * batches, the session factory must be configured with a matching <code>hibernate.jdbc.batch_size</code>.
+ * <p>
+ * Every operation that saves or deletes records also updates the {@link LatestItemRecord}s of the affected paths, so that listings and path lookups only have to read that projection.
  */
-@AllArgsConstructor
 @Slf4j
 public class LayerDatabaseImpl implements LayerDatabase {
-    private PersistenceProvider<ItemRecord> persistenceProvider;
+    /**
+     * The default number of records per batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final char LIKE_ESCAPE_CHAR = '\\';
+
+    private final PersistenceProvider<ItemRecord> persistenceProvider;
+
+    private final SessionFactory sessionFactory;
+
+    /**
+     * The number of records per batch in bulk operations.
+     */
+    @Getter
+    private final int batchSize;
+
+    /**
+     * Creates a new LayerDatabaseImpl with the default batch size, that uses the session factory behind the given persistence provider.
+     *
+     * @param persistenceProvider a persistence provider backed by Hibernate
+     * @throws IllegalArgumentException if the persistence provider is not backed by Hibernate
+     * @deprecated use {@link #LayerDatabaseImpl(SessionFactory)} instead; the session factory is needed for batching and transactions
+     */
+    @Deprecated
+    public LayerDatabaseImpl(@NonNull PersistenceProvider<ItemRecord> persistenceProvider) {
+        this.persistenceProvider = persistenceProvider;
+        this.sessionFactory = getSessionFactory(persistenceProvider);
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Creates a new LayerDatabaseImpl with the default batch size.
+     *
+     * @param sessionFactory the session factory whose current session is used
+     */
+    public LayerDatabaseImpl(@NonNull SessionFactory sessionFactory) {
+        this(sessionFactory, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new LayerDatabaseImpl.
+     *
+     * @param sessionFactory the session factory whose current session is used
+     * @param batchSize      the number of records per batch in bulk operations; must be at least 1
+     */
+    public LayerDatabaseImpl(@NonNull SessionFactory sessionFactory, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.persistenceProvider = new PersistenceProviderImpl<>(sessionFactory, ItemRecord.class);
+        this.sessionFactory = sessionFactory;
+        this.batchSize = batchSize;
+    }
+
+    private static SessionFactory getSessionFactory(PersistenceProvider<ItemRecord> persistenceProvider) {
+        if (persistenceProvider.getCriteriaBuilder() instanceof CriteriaBuilderImpl criteriaBuilder) {
+            return criteriaBuilder.getEntityManagerFactory();
+        }
+        throw new IllegalArgumentException("Cannot find the session factory of " + persistenceProvider.getClass().getName());
+    }
 
     @Override
     public void saveRecords(ItemRecord... records) {
+        inTransaction(() -> {
+            if (records.length == 0) {
+                return;
+            }
+            // Find out in one query per batch which of the records that have a generatedId are actually in the database.
+            var existingIds = findExistingIds(records);
+            // The latest version may change for the paths of the saved records, and for the old paths of existing records that are moved to another path.
+            var affectedPaths = new LinkedHashSet<>(findLatestPathsByRecordIds(existingIds));
+            var session = getCurrentSession();
+            // Only needed if a batch is going to be detached before the end of the call
+            var managedIds = records.length > batchSize ? getManagedRecordIds(session) : Set.of();
+            var batch = new ArrayList<ItemRecord>();
+            for (int i = 0; i < records.length; i++) {
+                var record = records[i];
+                if (record.getGeneratedId() != null && existingIds.contains(record.getGeneratedId())) {
+                    // An existing record, so we must merge the changes into the database.
+                    persistenceProvider.update(record);
+                }
+                else {
+                    // Either the record has no generatedId, or it is not in the database. In both cases it is new, and we can persist it.
+                    persistenceProvider.persist(record);
+                }
+                affectedPaths.add(record.getPath());
+                batch.add(record);
+                if (batch.size() == batchSize && i < records.length - 1) {
+                    log.debug("Flushing batch of {} records", batch.size());
+                    session.flush();
+                    detachRecords(session, batch, managedIds);
+                    batch.clear();
+                }
+            }
+            updateLatestItemRecords(affectedPaths);
+        });
+    }
+
+    /*
+     * Returns the ids of the records that are in the persistence context, so that records that the caller has loaded are not detached when a batch has been flushed.
+     */
+    private static Set<Object> getManagedRecordIds(Session session) {
+        var ids = new HashSet<>();
+        for (var key : session.getStatistics().getEntityKeys()) {
+            var entityKey = (EntityKey) key;
+            if (entityKey.getEntityName().equals(ItemRecord.class.getName())) {
+                ids.add(entityKey.getIdentifier());
+            }
+        }
+        return ids;
+    }
+
+    /*
+     * Detaches the flushed records of a batch, so that the persistence context does not grow with the number of records written, but leaves the records that were managed before alone. A record
+     * that was merged is detached through the managed copy; getReference returns that copy without querying the database.
+     */
+    private static void detachRecords(Session session, List<ItemRecord> records, Set<Object> managedIds) {
         for (var record : records) {
-            // If the record has no generatedId, then it is new, and we can persist it.
-            if (record.getGeneratedId() == null) {
-                persistenceProvider.persist(record);
+            if (record.getGeneratedId() == null || managedIds.contains(record.getGeneratedId())) {
+                continue;
             }
-            // If the record has a generatedId, but it is not in the database, then it is new and we can persist it.
-            else if (persistenceProvider.get(record.getGeneratedId()) == null) {
-                persistenceProvider.persist(record);
+            session.detach(session.contains(record) ? record : session.getReference(ItemRecord.class, record.getGeneratedId()));
+        }
+    }
+
+    private Set<Long> findExistingIds(ItemRecord... records) {
+        var ids = Arrays.stream(records)
+            .map(ItemRecord::getGeneratedId)
+            .filter(Objects::nonNull)
+            .distinct()
+            .toList();
+        var existingIds = new HashSet<Long>();
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            var idsInBatch = ids.subList(start, Math.min(start + batchSize, ids.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+            Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+            cq.select(itemRecordRoot.get("generatedId")).where(itemRecordRoot.get("generatedId").in(idsInBatch));
+            existingIds.addAll(persistenceProvider.createQuery(cq).getResultList());
+        }
+        return existingIds;
+    }
+
+    private List<String> findLatestPathsByRecordIds(Collection<Long> recordIds) {
+        var idList = List.copyOf(recordIds);
+        var paths = new ArrayList<String>();
+        for (int start = 0; start < idList.size(); start += batchSize) {
+            var idsInBatch = idList.subList(start, Math.min(start + batchSize, idList.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaQuery<String> cq = cb.createQuery(String.class);
+            Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+            cq.select(latestRoot.get("path")).where(latestRoot.get("recordId").in(idsInBatch));
+            paths.addAll(persistenceProvider.createQuery(cq).getResultList());
+        }
+        return paths;
+    }
+
+    /*
+     * Points the LatestItemRecords of the given paths to the record in the highest layer, or removes them if there are no records for the path anymore. Existing rows are locked and updated in
+     * place, so that transactions that save the same paths at the same time wait for each other instead of both deleting and inserting the row. The rows are flushed and detached per batch, so
+     * that the persistence context does not grow with the number of paths.
+     */
+    private void updateLatestItemRecords(Collection<String> paths) {
+        var session = getCurrentSession();
+        // Make sure the queries below see the pending changes to the records, also if the flush mode does not flush before queries.
+        session.flush();
+        var pathList = List.copyOf(paths);
+        for (int start = 0; start < pathList.size(); start += batchSize) {
+            var pathsInBatch = pathList.subList(start, Math.min(start + batchSize, pathList.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaQuery<LatestItemRecord> lq = cb.createQuery(LatestItemRecord.class);
+            Root<LatestItemRecord> latestRoot = lq.from(LatestItemRecord.class);
+            lq.select(latestRoot).where(latestRoot.get("path").in(pathsInBatch));
+            var existingByPath = new HashMap<String, LatestItemRecord>();
+            for (var existing : session.createQuery(lq).setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList()) {
+                existingByPath.put(existing.getPath(), existing);
+            }
+
+            CriteriaQuery<LatestItemRecord> cq = cb.createQuery(LatestItemRecord.class);
+            Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+            selectLatestItemRecordCandidates(cb, cq, itemRecordRoot).where(itemRecordRoot.get("path").in(pathsInBatch));
+            var latest = getFirstCandidatePerPath(persistenceProvider.createQuery(cq).getResultList());
+            var touched = new ArrayList<LatestItemRecord>(existingByPath.values());
+            for (var candidate : latest) {
+                var existing = existingByPath.remove(candidate.getPath());
+                if (existing == null) {
+                    session.persist(candidate);
+                    touched.add(candidate);
+                }
+                else {
+                    existing.setRecordId(candidate.getRecordId());
+                    existing.setLayerId(candidate.getLayerId());
+                    existing.setType(candidate.getType());
+                    existing.setContentId(candidate.getContentId());
+                }
+            }
+            // What is left has no records anymore
+            existingByPath.values().forEach(session::remove);
+            session.flush();
+            detachLatestItemRecords(session, touched);
+        }
+    }
+
+    private static void detachLatestItemRecords(Session session, List<LatestItemRecord> latestItemRecords) {
+        for (var latestItemRecord : latestItemRecords) {
+            if (session.contains(latestItemRecord)) {
+                session.detach(latestItemRecord);
             }
-            else {
-                // If the record has a generatedId, and it is in the database, then it is an existing record, and we must
-                // merge the changes into the database.
-                persistenceProvider.update(record);
+        }
+    }
+
+    /*
+     * Selects a LatestItemRecord for every record, ordered by path and then by layer id, with the highest layer first.
+     */
+    private static CriteriaQuery<LatestItemRecord> selectLatestItemRecordCandidates(CriteriaBuilder cb, CriteriaQuery<LatestItemRecord> cq, Root<ItemRecord> itemRecordRoot) {
+        Join<ItemRecord, ItemRecordContent> contentJoin = itemRecordRoot.join("storedContent", JoinType.LEFT);
+        return cq.select(cb.construct(LatestItemRecord.class,
+                itemRecordRoot.get("generatedId"),
+                itemRecordRoot.get("layerId"),
+                itemRecordRoot.get("path"),
+                itemRecordRoot.get("type"),
+                contentJoin.get("generatedId")))
+            .orderBy(cb.asc(itemRecordRoot.get("path")), cb.desc(itemRecordRoot.get("layerId")));
+    }
+
+    /*
+     * Returns the first of the candidates for each path. The candidates must be ordered as by selectLatestItemRecordCandidates.
+     */
+    private static List<LatestItemRecord> getFirstCandidatePerPath(List<LatestItemRecord> candidates) {
+        var first = new ArrayList<LatestItemRecord>();
+        String previousPath = null;
+        for (var candidate : candidates) {
+            if (!candidate.getPath().equals(previousPath)) {
+                first.add(candidate);
             }
+            previousPath = candidate.getPath();
         }
+        return first;
     }
 
     @Override
-    public void deleteRecordsById(long... id) {
-        for (long i : id) {
-            persistenceProvider.delete(persistenceProvider.get(i));
+    public int rebuildLatestItemRecords() {
+        return inTransaction(() -> {
+            var session = getCurrentSession();
+            session.flush();
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaDelete<LatestItemRecord> cd = cb.createCriteriaDelete(LatestItemRecord.class);
+            cd.from(LatestItemRecord.class);
+            session.createQuery(cd).executeUpdate();
+
+            // Page through the records by path, so that the rest of the records of a path that is split over two pages are skipped.
+            int rebuilt = 0;
+            String lastPath = null;
+            List<LatestItemRecord> candidates;
+            do {
+                CriteriaQuery<LatestItemRecord> cq = cb.createQuery(LatestItemRecord.class);
+                Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+                selectLatestItemRecordCandidates(cb, cq, itemRecordRoot);
+                if (lastPath != null) {
+                    cq.where(cb.greaterThan(itemRecordRoot.get("path"), lastPath));
+                }
+                candidates = persistenceProvider.createQuery(cq).setMaxResults(batchSize).getResultList();
+                var latest = getFirstCandidatePerPath(candidates);
+                latest.forEach(session::persist);
+                rebuilt += latest.size();
+                if (!candidates.isEmpty()) {
+                    lastPath = candidates.get(candidates.size() - 1).getPath();
+                }
+                session.flush();
+                detachLatestItemRecords(session, latest);
+            }
+            while (candidates.size() == batchSize);
+            log.info("Rebuilt {} latest item records", rebuilt);
+            return rebuilt;
+        });
+    }
+
+    /*
+     * Bulk statements and flushes need a transaction. An operation takes part in the transaction of the caller, or runs in a transaction of its own if the caller has none.
+     */
+    private <T> T inTransaction(Supplier<T> operation) {
+        var transaction = getCurrentSession().getTransaction();
+        if (transaction.isActive()) {
+            return operation.get();
+        }
+        transaction.begin();
+        try {
+            var result = operation.get();
+            transaction.commit();
+            return result;
+        }
+        catch (RuntimeException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw e;
         }
     }
 
+    private void inTransaction(Runnable operation) {
+        inTransaction(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private Session getCurrentSession() {
+        return sessionFactory.getCurrentSession();
+    }
+
     @Override
-    public List<Item> listDirectory(String directoryPath) throws IOException {
-        directoryPath = preprocessDirectoryArgument(directoryPath);
+    public int deleteRecordsById(long... ids) {
+        return inTransaction(() -> {
+            var idList = Arrays.stream(ids).boxed().distinct().toList();
+            var affectedPaths = new LinkedHashSet<String>();
+            var contentIds = new ArrayList<Long>();
+            int deleted = 0;
+            for (int start = 0; start < idList.size(); start += batchSize) {
+                var idsInBatch = idList.subList(start, Math.min(start + batchSize, idList.size()));
+                CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+                CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+                Root<ItemRecord> pathRoot = cq.from(ItemRecord.class);
+                cq.where(pathRoot.get("generatedId").in(idsInBatch));
+                collectPathsAndContentIds(cq, pathRoot, affectedPaths, contentIds);
+
+                CriteriaDelete<ItemRecord> cd = cb.createCriteriaDelete(ItemRecord.class);
+                Root<ItemRecord> itemRecordRoot = cd.from(ItemRecord.class);
+                cd.where(itemRecordRoot.get("generatedId").in(idsInBatch));
+                deleted += getCurrentSession().createQuery(cd).executeUpdate();
+            }
+            deleteContents(contentIds);
+            updateLatestItemRecords(affectedPaths);
+            log.debug("Deleted {} records by id", deleted);
+            return deleted;
+        });
+    }
+
+    @Override
+    public int deleteDirectoryRecords(long layerId, String directoryPath) {
+        return inTransaction(() -> deleteDirectoryRecordsInTransaction(layerId, directoryPath));
+    }
+
+    @Override
+    public int deleteDirectoryRecords(long layerId, String directoryPath, long expectedCount) {
+        return inTransaction(() -> {
+            int deleted = deleteDirectoryRecordsInTransaction(layerId, directoryPath);
+            if (deleted != expectedCount) {
+                // Rolls back the delete, unless the caller's transaction is in charge of that
+                throw new IllegalStateException("Expected to delete %d records for directory %s, but deleted %d".formatted(expectedCount, directoryPath, deleted));
+            }
+            return deleted;
+        });
+    }
+
+    private int deleteDirectoryRecordsInTransaction(long layerId, String path) {
+        var directoryPath = removeTrailingSlash(path);
         CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
-        CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+        Root<ItemRecord> pathRoot = cq.from(ItemRecord.class);
+        cq.where(cb.and(
+            cb.equal(pathRoot.get("layerId"), layerId),
+            isSelfOrDescendant(cb, pathRoot.get("path"), directoryPath)));
+        var affectedPaths = new LinkedHashSet<String>();
+        var contentIds = new ArrayList<Long>();
+        collectPathsAndContentIds(cq, pathRoot, affectedPaths, contentIds);
+
+        CriteriaDelete<ItemRecord> cd = cb.createCriteriaDelete(ItemRecord.class);
+        Root<ItemRecord> itemRecordRoot = cd.from(ItemRecord.class);
+        cd.where(cb.and(
+            cb.equal(itemRecordRoot.get("layerId"), layerId),
+            isSelfOrDescendant(cb, itemRecordRoot.get("path"), directoryPath)));
+        int deleted = getCurrentSession().createQuery(cd).executeUpdate();
+        deleteContents(contentIds);
+        updateLatestItemRecords(affectedPaths);
+        log.debug("Deleted {} records for directory {} in layer {}", deleted, directoryPath, layerId);
+        return deleted;
+    }
+
+    /*
+     * Bulk deletes do not cascade, so before deleting records we must find out which stored contents they refer to.
+     */
+    private void collectPathsAndContentIds(CriteriaQuery<Tuple> cq, Root<ItemRecord> itemRecordRoot, Collection<String> paths, Collection<Long> contentIds) {
+        Join<ItemRecord, ItemRecordContent> contentJoin = itemRecordRoot.join("storedContent", JoinType.LEFT);
+        cq.multiselect(itemRecordRoot.get("path"), contentJoin.get("generatedId"));
+        for (var tuple : persistenceProvider.createQuery(cq).getResultList()) {
+            paths.add(tuple.get(0, String.class));
+            var contentId = tuple.get(1, Long.class);
+            if (contentId != null) {
+                contentIds.add(contentId);
+            }
+        }
+    }
+
+    private void deleteContents(List<Long> contentIds) {
+        for (int start = 0; start < contentIds.size(); start += batchSize) {
+            var contentIdsInBatch = contentIds.subList(start, Math.min(start + batchSize, contentIds.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaDelete<ItemRecordContent> cd = cb.createCriteriaDelete(ItemRecordContent.class);
+            Root<ItemRecordContent> contentRoot = cd.from(ItemRecordContent.class);
+            cd.where(contentRoot.get("generatedId").in(contentIdsInBatch));
+            getCurrentSession().createQuery(cd).executeUpdate();
+        }
+    }
+
+    @Override
+    public List<String> findDescendantsInOtherLayers(String directoryPath, long layerId) throws IOException {
+        directoryPath = removeTrailingSlash(preprocessDirectoryArgument(directoryPath));
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<String> cq = cb.createQuery(String.class);
         Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
-        Predicate hasParentPath = cb.like(itemRecordRoot.get("path"), directoryPath + "%");
-        Predicate notSubdirectory = cb.notLike(itemRecordRoot.get("path"), directoryPath + "%/%");
-        Predicate notSamePath = cb.notEqual(itemRecordRoot.get("path"), directoryPath);
-        Predicate hasMaxLayerId = cb.equal(itemRecordRoot.get("layerId"), getMaxLayerIdSubquery(cq, cb, itemRecordRoot));
-        cq.where(cb.and(hasParentPath, notSubdirectory, notSamePath, hasMaxLayerId));
+        cq.select(itemRecordRoot.get("path")).distinct(true).where(cb.and(
+            cb.notEqual(itemRecordRoot.get("layerId"), layerId),
+            isDescendant(cb, itemRecordRoot.get("path"), directoryPath)));
+        cq.orderBy(cb.asc(itemRecordRoot.get("path")));
+        return persistenceProvider.createQuery(cq).getResultList();
+    }
 
-        TypedQuery<ItemRecord> query = persistenceProvider.createQuery(cq);
-        return query.getResultStream().map(ItemRecord::toItem).collect(Collectors.toList());
+    /*
+     * Matches the paths of the descendants of directoryPath. The root directory is represented by the empty string, so all other paths are its descendants.
+     */
+    private static Predicate isDescendant(CriteriaBuilder cb, Expression<String> path, String directoryPath) {
+        if (directoryPath.isEmpty()) {
+            return cb.notEqual(path, "");
+        }
+        return cb.like(path, escapeLikePattern(directoryPath) + "/%", LIKE_ESCAPE_CHAR);
+    }
+
+    private static Predicate isSelfOrDescendant(CriteriaBuilder cb, Expression<String> path, String directoryPath) {
+        if (directoryPath.isEmpty()) {
+            return cb.conjunction();
+        }
+        return cb.or(cb.equal(path, directoryPath), isDescendant(cb, path, directoryPath));
+    }
+
+    private static String removeTrailingSlash(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /*
+     * Escapes the LIKE wildcards in a literal path, so that it can be used as (the start of) a pattern.
+     */
+    private static String escapeLikePattern(String path) {
+        return path
+            .replace(String.valueOf(LIKE_ESCAPE_CHAR), String.valueOf(LIKE_ESCAPE_CHAR) + LIKE_ESCAPE_CHAR)
+            .replace("%", LIKE_ESCAPE_CHAR + "%")
+            .replace("_", LIKE_ESCAPE_CHAR + "_");
+    }
+
+    @Override
+    public List<Item> listDirectory(String directoryPath) throws IOException {
+        try (var items = streamDirectory(directoryPath)) {
+            return items.collect(Collectors.toList());
+        }
     }
 
     @Override
     public List<Item> listRecursive(String directoryPath) throws IOException {
-        directoryPath = preprocessDirectoryArgument(directoryPath);
+        try (var items = streamRecursive(directoryPath)) {
+            return items.collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Stream<Item> streamDirectory(String directoryPath) throws IOException {
+        directoryPath = removeTrailingSlash(preprocessDirectoryArgument(directoryPath));
         CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
-        CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+        Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+        cq.where(cb.equal(latestRoot.get("parentPath"), directoryPath));
+        return streamItems(cb, cq, latestRoot);
+    }
+
+    @Override
+    public Stream<Item> streamRecursive(String directoryPath) throws IOException {
+        directoryPath = removeTrailingSlash(preprocessDirectoryArgument(directoryPath));
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+        Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+        cq.where(isDescendant(cb, latestRoot.get("path"), directoryPath));
+        return streamItems(cb, cq, latestRoot);
+    }
+
+    @Override
+    public long countDescendants(String directoryPath) throws IOException {
+        directoryPath = removeTrailingSlash(preprocessDirectoryArgument(directoryPath));
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+        Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+        cq.select(cb.count(latestRoot)).where(isDescendant(cb, latestRoot.get("path"), directoryPath));
+        return persistenceProvider.createQuery(cq).getSingleResult();
+    }
+
+    @Override
+    public Stream<Item> streamItemsByLayerId(long layerId) {
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
         Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
-        Predicate hasParentPath = cb.like(itemRecordRoot.get("path"), directoryPath + "%");
-        Predicate notSamePath = cb.notEqual(itemRecordRoot.get("path"), directoryPath);
-        Predicate hasMaxLayerId = cb.equal(itemRecordRoot.get("layerId"), getMaxLayerIdSubquery(cq, cb, itemRecordRoot));
-        cq.where(cb.and(hasParentPath, notSamePath, hasMaxLayerId));
+        cq.where(cb.equal(itemRecordRoot.get("layerId"), layerId));
+        return streamItems(cb, cq, itemRecordRoot);
+    }
 
-        TypedQuery<ItemRecord> query = persistenceProvider.createQuery(cq);
-        return query.getResultStream().map(ItemRecord::toItem).collect(Collectors.toList());
+    /*
+     * Only the path and type are selected, so that no entities pile up in the persistence context, and the rows are fetched from the cursor batchSize at a time.
+     */
+    private Stream<Item> streamItems(CriteriaBuilder cb, CriteriaQuery<Tuple> cq, Root<?> root) {
+        cq.multiselect(root.get("path"), root.get("type")).orderBy(cb.asc(root.get("path")));
+        return persistenceProvider.createQuery(cq)
+            .setHint(QueryHints.FETCH_SIZE, batchSize)
+            .getResultStream()
+            .map(tuple -> new Item(tuple.get(0, String.class), tuple.get(1, Type.class)));
     }
 
-    private static Subquery<Long> getMaxLayerIdSubquery(CriteriaQuery<ItemRecord> cq, CriteriaBuilder cb, Root<ItemRecord> itemRecordRoot) {
-        Subquery<Long> subquery = cq.subquery(Long.class);
-        Root<ItemRecord> subRoot = subquery.from(ItemRecord.class);
-        subquery.select(cb.max(subRoot.get("layerId"))).where(cb.equal(subRoot.get("path"), itemRecordRoot.get("path")));
-        return subquery;
+    @Override
+    public int fillMissingParentPaths() {
+        return inTransaction(() -> {
+            var session = getCurrentSession();
+            // Only needed if a batch is going to be detached before the end of the call
+            var managedIds = records.length > batchSize ? getManagedRecordIds(session) : Set.of();
+            int updated = 0;
+            List<ItemRecord> records;
+            do {
+                CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+                CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+                Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+                cq.select(itemRecordRoot).where(cb.and(
+                    cb.isNull(itemRecordRoot.get("parentPath")),
+                    cb.notEqual(itemRecordRoot.get("path"), "")));
+                records = persistenceProvider.createQuery(cq).setMaxResults(batchSize).getResultList();
+                for (var record : records) {
+                    record.setPath(record.getPath());
+                }
+                session.flush();
+                detachRecords(session, records, managedIds);
+                updated += records.size();
+            }
+            while (records.size() == batchSize);
+            log.info("Filled in the parent path of {} records", updated);
+            return updated;
+        });
     }
 
     @Override
     public List<ItemRecord> addDirectory(long layerId, String path) {
-        String[] pathComponents = getPathComponents(path);
-        String currentPath = "";
-        List<ItemRecord> newRecords = new ArrayList<>();
+        return inTransaction(() -> {
+            String[] pathComponents = getPathComponents(path);
+            String currentPath = "";
+            List<ItemRecord> newRecords = new ArrayList<>();
 
-        for (String component : pathComponents) {
-            currentPath = currentPath.isEmpty() ? component : currentPath + "/" + component;
-            List<ItemRecord> records = getRecordsByPath(currentPath);
-            if (records.stream().anyMatch(r -> r.getType() == Type.File)) {
-                throw new IllegalArgumentException("Cannot add directory " + records.get(0).getPath() + " because it is already occupied by a file.");
-            }
-            var recordsInLayer = records.stream().filter(r -> r.getLayerId() == layerId).toList();
-            if (recordsInLayer.isEmpty()) {
-                ItemRecord newRecord = ItemRecord.builder()
-                    .layerId(layerId)
-                    .path(currentPath)
-                    .type(Type.Directory)
-                    .build();
-                newRecords.add(newRecord);
-                saveRecords(newRecord);
+            for (String component : pathComponents) {
+                currentPath = currentPath.isEmpty() ? component : currentPath + "/" + component;
+                List<ItemRecord> records = getRecordsByPath(currentPath);
+                if (records.stream().anyMatch(r -> r.getType() == Type.File)) {
+                    throw new IllegalArgumentException("Cannot add directory " + records.get(0).getPath() + " because it is already occupied by a file.");
+                }
+                var recordsInLayer = records.stream().filter(r -> r.getLayerId() == layerId).toList();
+                if (recordsInLayer.isEmpty()) {
+                    ItemRecord newRecord = ItemRecord.builder()
+                        .layerId(layerId)
+                        .path(currentPath)
+                        .type(Type.Directory)
+                        .build();
+                    newRecords.add(newRecord);
+                    saveRecords(newRecord);
+                }
             }
-        }
-        return newRecords;
+            return newRecords;
+        });
     }
 
     private String[] getPathComponents(String path) {
@@ -163,6 +670,68 @@ public class LayerDatabaseImpl implements LayerDatabase {
         return query.getResultList();
     }
 
+    @Override
+    public List<ItemRecord> getRecordsByPaths(Collection<String> paths) {
+        var pathList = paths.stream().distinct().toList();
+        var records = new ArrayList<ItemRecord>();
+        for (int start = 0; start < pathList.size(); start += batchSize) {
+            var pathsInBatch = pathList.subList(start, Math.min(start + batchSize, pathList.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+            Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+            cq.select(itemRecordRoot).where(itemRecordRoot.get("path").in(pathsInBatch));
+            records.addAll(persistenceProvider.createQuery(cq).getResultList());
+        }
+        records.sort(Comparator.comparing(ItemRecord::getPath).thenComparing(ItemRecord::getLayerId, Comparator.reverseOrder()));
+        return records;
+    }
+
+    @Override
+    public Optional<ItemRecord> getLatestRecord(String path) {
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+        Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+        Subquery<Long> latestRecordId = cq.subquery(Long.class);
+        Root<LatestItemRecord> latestRoot = latestRecordId.from(LatestItemRecord.class);
+        latestRecordId.select(latestRoot.get("recordId")).where(cb.equal(latestRoot.get("path"), path));
+        cq.select(itemRecordRoot).where(cb.equal(itemRecordRoot.get("generatedId"), latestRecordId));
+        return persistenceProvider.createQuery(cq).getResultStream().findFirst();
+    }
+
+    @Override
+    public Optional<LatestItemRecord> getLatestItemRecord(String path) {
+        CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+        CriteriaQuery<LatestItemRecord> cq = cb.createQuery(LatestItemRecord.class);
+        Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+        cq.select(latestRoot).where(cb.equal(latestRoot.get("path"), path));
+        return persistenceProvider.createQuery(cq).getResultStream().findFirst();
+    }
+
+    @Override
+    public List<LatestItemRecord> getLatestItemRecords(Collection<String> paths) {
+        var pathList = paths.stream().distinct().toList();
+        var records = new ArrayList<LatestItemRecord>();
+        for (int start = 0; start < pathList.size(); start += batchSize) {
+            var pathsInBatch = pathList.subList(start, Math.min(start + batchSize, pathList.size()));
+            CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
+            CriteriaQuery<LatestItemRecord> cq = cb.createQuery(LatestItemRecord.class);
+            Root<LatestItemRecord> latestRoot = cq.from(LatestItemRecord.class);
+            cq.select(latestRoot).where(latestRoot.get("path").in(pathsInBatch));
+            records.addAll(persistenceProvider.createQuery(cq).getResultList());
+        }
+        records.sort(Comparator.comparing(LatestItemRecord::getPath));
+        return records;
+    }
+
+    @Override
+    public byte[] getStoredContent(long contentId) {
+        var content = getCurrentSession().find(ItemRecordContent.class, contentId);
+        if (content == null) {
+            throw new IllegalArgumentException("No stored content with id " + contentId);
+        }
+        return content.getContent();
+    }
+
     @Override
     public Stream<ItemRecord> getAllRecords() {
         CriteriaBuilder cb = persistenceProvider.getCriteriaBuilder();
@@ -210,11 +779,11 @@ public class LayerDatabaseImpl implements LayerDatabase {
         }
 
         if (!directoryPath.isBlank()) {
-            var records = getRecordsByPath(directoryPath);
-            if (records.isEmpty()) {
+            var latestRecord = getLatestItemRecord(directoryPath);
+            if (latestRecord.isEmpty()) {
                 throw new NoSuchFileException("No such directory: " + directoryPath);
             }
-            if (records.stream().anyMatch(r -> r.getType() != Type.Directory)) {
+            if (latestRecord.get().getType() != Type.Directory) {
                 throw new NotDirectoryException("Not a directory: " + directoryPath);
             }
             // Add an ending slash to directoryPath, if it doesn't have one yet.
@@ -22,11 +22,22 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Slf4j
 class LayerImpl implements Layer {
@@ -40,14 +51,67 @@ class LayerImpl implements Layer {
     @NonNull
     private final Archive archive;
 
+    /*
+     * Records which part of the layer is in the staging directory if the layer was reopened without extracting the whole archive.
+     */
+    private final StagingOverlay overlay;
+
+    /*
+     * The state is kept in memory, so that checking it does not require probing the file system on every operation. It is read from storage on first use and when reconcileState is
+     * called. Only this class changes the state on storage, so after that the state transitions below keep it up to date.
+     */
+    private final AtomicReference<State> state = new AtomicReference<>();
+
+    /*
+     * Guards the staging directory against being moved or deleted by a state transition while a reader is choosing between the staging directory and the archive and opening the file.
+     * Readers share the lock, so they do not block each other.
+     */
+    private final ReadWriteLock stagingDirLock = new ReentrantReadWriteLock();
+
+    /*
+     * Serializes the state transitions. Archiving holds it for as long as it takes to write the archive, so it is not used by readers.
+     */
+    private final ReentrantLock transitionLock = new ReentrantLock();
+
     LayerImpl(long id, @NonNull StagingDir stagingDir, @NonNull Archive archive) {
         this.id = id;
         this.stagingDir = stagingDir;
         this.archive = archive;
+        this.overlay = new StagingOverlay(stagingDir);
     }
 
     @Override
-    public synchronized State getState() {
+    public State getState() {
+        return state.updateAndGet(currentState -> currentState == null ? readStateFromStorage() : currentState);
+    }
+
+    /**
+     * Discards the state kept in memory and reads it from storage again. Use this if the staging directory or the archive may have been changed by something other than this layer. While a state
+     * transition of this layer is running, the state is left as it is: storage is then in between two states, and the transition sets the state itself when it is done.
+     *
+     * @return true if the state was read from storage, false if a transition was running
+     */
+    boolean reconcileState() {
+        if (!transitionLock.tryLock()) {
+            return false;
+        }
+        try {
+            stagingDirLock.writeLock().lock();
+            try {
+                overlay.reload();
+                state.set(readStateFromStorage());
+                return true;
+            }
+            finally {
+                stagingDirLock.writeLock().unlock();
+            }
+        }
+        finally {
+            transitionLock.unlock();
+        }
+    }
+
+    private State readStateFromStorage() {
         if (stagingDir.isStaged()) {
             if (stagingDir.isOpen()) {
                 return State.OPEN;
@@ -79,6 +143,46 @@ class LayerImpl implements Layer {
         }
     }
 
+    /*
+     * The methods below implement copy-on-write for a layer that was reopened with an overlay: a path that is changed is recorded in the overlay, so that from then on its content is taken from
+     * the staging directory, hiding what is in the archive. A path that is recorded but not in the staging directory has been deleted. For a layer without an overlay all paths are staged, so
+     * these methods do nothing.
+     */
+    private void stage(String path) throws IOException {
+        if (!overlay.isStaged(path)) {
+            overlay.add(path);
+        }
+    }
+
+    private void copyUp(String path) throws IOException {
+        if (!overlay.isStaged(path)) {
+            // Do not overwrite or bring back what has already been changed below the path
+            archive.unarchiveTo(stagingDir.getPath(), archivedPath -> StagingOverlay.isAtOrBelow(archivedPath, path) && !overlay.isStaged(archivedPath));
+            overlay.add(path);
+        }
+    }
+
+    private void createParentInStaging(String path) throws IOException {
+        var parent = stagingDir.getPath().resolve(path).getParent();
+        if (Files.notExists(parent)) {
+            var parentPath = stagingDir.getPath().relativize(parent).toString();
+            if (!overlay.isStaged(parentPath) && existsInArchive(parentPath)) {
+                Files.createDirectories(parent);
+            }
+        }
+    }
+
+    private void checkNotInArchive(String path) throws IOException {
+        if (!overlay.isStaged(path) && existsInArchive(path)) {
+            throw new FileAlreadyExistsException(path);
+        }
+    }
+
+    private boolean existsInArchive(String path) {
+        // Directory entries may be stored with a trailing slash
+        return archive.fileExists(path) || archive.fileExists(path + "/");
+    }
+
     @Override
     public void deleteFiles(List<String> paths) throws IOException {
         checkState(State.OPEN);
@@ -86,21 +190,57 @@ class LayerImpl implements Layer {
             throw new IllegalArgumentException("Paths cannot be null");
         for (String path : paths) {
             validatePath(path);
-            Files.delete(stagingDir.getPath().resolve(path));
+            if (overlay.isStaged(path)) {
+                Files.delete(stagingDir.getPath().resolve(path));
+            }
+            else {
+                if (!fileExistsInStaging(path) && !existsInArchive(path)) {
+                    throw new NoSuchFileException(path);
+                }
+                Files.deleteIfExists(stagingDir.getPath().resolve(path));
+                stage(path);
+            }
         }
     }
 
     /*
-     * This method is synchronized because the layer might otherwise be closed just after the check. Note, that after the file handle is returned, the layer may be closed, but
+     * The read lock is held because the layer might otherwise be closed or archived just after the check. Note, that after the file handle is returned, the layer may be closed, but
      * that is not a problem because the file handle is still valid until it is closed, even if the directory containing the file is deleted.
      */
     @Override
-    public synchronized InputStream readFile(String path) throws IOException {
+    public InputStream readFile(String path) throws IOException {
+        stagingDirLock.readLock().lock();
+        try {
+            if (getState() == State.ARCHIVED || !overlay.isStaged(path)) {
+                return archive.readFile(path);
+            }
+            else {
+                return readFromStaging(path);
+            }
+        }
+        finally {
+            stagingDirLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> orderForReading(Collection<String> paths) throws IOException {
         if (getState() == State.ARCHIVED) {
-            return archive.readFile(path);
+            return archive.orderByEntryPosition(paths);
         }
-        else {
-            return readFromStaging(path);
+        return paths.stream().sorted().toList();
+    }
+
+    @Override
+    public void readFiles(Collection<String> paths, ItemStore.FileContentConsumer consumer) throws IOException {
+        if (getState() == State.ARCHIVED) {
+            archive.readFiles(paths, consumer);
+            return;
+        }
+        for (var path : orderForReading(paths)) {
+            try (var content = readFile(path)) {
+                consumer.accept(path, content);
+            }
         }
     }
 
@@ -109,32 +249,77 @@ class LayerImpl implements Layer {
     }
 
     @Override
-    public synchronized void close() {
-        checkState(State.OPEN);
+    public void close() {
+        transitionLock.lock();
         try {
-            stagingDir.close();
+            checkState(State.OPEN);
+            stagingDirLock.writeLock().lock();
+            try {
+                stagingDir.close();
+                state.set(State.CLOSED);
+            }
+            catch (IOException e) {
+                log.error("Error closing layer", e);
+                throw new RuntimeException(e);
+            }
+            finally {
+                stagingDirLock.writeLock().unlock();
+            }
         }
-        catch (IOException e) {
-            log.error("Error closing layer", e);
-            throw new RuntimeException(e);
+        finally {
+            transitionLock.unlock();
         }
     }
 
     @Override
-    public synchronized void reopen() throws IOException {
+    public void reopen() throws IOException {
+        transitionLock.lock();
+        try {
+            reopenWith(null);
+        }
+        finally {
+            transitionLock.unlock();
+        }
+    }
+
+    @Override
+    public void reopen(@NonNull Collection<String> paths) throws IOException {
+        paths.forEach(this::validatePath);
+        transitionLock.lock();
+        try {
+            reopenWith(paths);
+        }
+        finally {
+            transitionLock.unlock();
+        }
+    }
+
+    /*
+     * Reopens the layer, staging only the given paths, or the whole layer if paths is null.
+     */
+    private void reopenWith(Collection<String> paths) throws IOException {
         State currentState = getState();
         if (currentState == State.CLOSED) {
-            stagingDir.open();
+            openStagingDir();
         }
         else if (currentState == State.ARCHIVED) {
+            // Readers keep using the archive until the staging directory is complete
             stagingDir.partial();
             try {
-                archive.unarchiveTo(stagingDir.getPath());
-                stagingDir.open();
+                if (paths == null) {
+                    overlay.delete();
+                    archive.unarchiveTo(stagingDir.getPath());
+                }
+                else {
+                    overlay.create(paths);
+                    archive.unarchiveTo(stagingDir.getPath(), overlay::isStaged);
+                }
+                openStagingDir();
             }
             catch (Exception e) {
                 try {
                     stagingDir.delete();
+                    overlay.delete();
                 }
                 catch (Exception cleanupEx) {
                     log.error("Error deleting staging directory after failed reopen", cleanupEx);
@@ -147,18 +332,56 @@ class LayerImpl implements Layer {
         }
     }
 
+    private void openStagingDir() throws IOException {
+        stagingDirLock.writeLock().lock();
+        try {
+            stagingDir.open();
+            state.set(State.OPEN);
+        }
+        finally {
+            stagingDirLock.writeLock().unlock();
+        }
+    }
+
     @Override
-    public synchronized void archive(boolean overwrite) {
+    public void archive(boolean overwrite) {
+        transitionLock.lock();
+        try {
+            doArchive(overwrite);
+        }
+        finally {
+            transitionLock.unlock();
+        }
+    }
+
+    private void doArchive(boolean overwrite) {
         checkState(State.CLOSED);
         if (!overwrite && archive.isArchived()) {
             throw new IllegalArgumentException("Layer " + id + " is already archived");
         }
         try {
             log.debug("Start archiving layer {}", id);
-            archive.archiveFrom(stagingDir.getPath());
+            // Readers keep using the staging directory until the archive is complete. Reads of items that are not staged go to the existing archive, which mergeFrom only replaces
+            // once the merged archive has been written in full.
+            var stagingPath = stagingDir.getPath();
+            if (overlay.exists()) {
+                // Only part of the layer is staged, so the rest is carried over from the existing archive
+                archive.mergeFrom(stagingPath, path -> overlay.isStaged(path) || Files.exists(stagingPath.resolve(path)));
+            }
+            else {
+                archive.archiveFrom(stagingPath);
+            }
+            stagingDirLock.writeLock().lock();
+            try {
+                state.set(State.ARCHIVED);
+            }
+            finally {
+                stagingDirLock.writeLock().unlock();
+            }
             log.debug("Deleting staging directory {}", stagingDir.getPath());
             stagingDir.delete();
             log.debug("Staging directory {} deleted", stagingDir.getPath());
+            overlay.delete();
         }
         catch (IOException e) {
             log.error("Error archiving layer", e);
@@ -170,25 +393,40 @@ class LayerImpl implements Layer {
     public void writeFile(String filePath, InputStream content) throws IOException {
         checkState(State.OPEN);
         validatePath(filePath);
+        createParentInStaging(filePath);
         Files.copy(content, stagingDir.getPath().resolve(filePath), StandardCopyOption.REPLACE_EXISTING);
+        stage(filePath);
     }
 
     @Override
     public void moveDirectoryInto(Path source, String destination) throws IOException {
         checkState(State.OPEN);
         validatePath(destination);
+        checkNotInArchive(destination);
+        createParentInStaging(destination);
         var destinationPath = stagingDir.getPath().resolve(destination);
         Files.move(source, destinationPath);
+        stage(destination);
     }
 
     @Override
     public boolean fileExists(String path) throws IOException {
         validatePath(path);
-        if (getState() == State.ARCHIVED) {
-            return archive.fileExists(path);
+        stagingDirLock.readLock().lock();
+        try {
+            if (getState() == State.ARCHIVED) {
+                return archive.fileExists(path);
+            }
+            else if (overlay.isStaged(path)) {
+                return fileExistsInStaging(path);
+            }
+            else {
+                // The directories containing the staged subtrees are also in the staging directory
+                return fileExistsInStaging(path) || existsInArchive(path);
+            }
         }
-        else {
-            return fileExistsInStaging(path);
+        finally {
+            stagingDirLock.readLock().unlock();
         }
     }
 
@@ -201,7 +439,11 @@ class LayerImpl implements Layer {
         checkState(State.OPEN);
         validatePath(source);
         validatePath(destination);
+        checkNotInArchive(destination);
+        copyUp(source);
+        createParentInStaging(destination);
         Files.move(stagingDir.getPath().resolve(source), stagingDir.getPath().resolve(destination));
+        stage(destination);
     }
 
     @Override
@@ -209,16 +451,23 @@ class LayerImpl implements Layer {
         checkState(State.OPEN);
         validatePath(path);
         FileUtils.deleteDirectory(stagingDir.getPath().resolve(path).toFile());
+        stage(path);
     }
 
     @Override
     public long getSizeInBytes() throws IOException {
-        if (getState() == State.OPEN || getState() == State.CLOSED) {
+        var currentState = getState();
+        if (overlay.exists() && currentState != State.ARCHIVED) {
+            throw new UnsupportedOperationException("Layer " + id + " is only partially staged");
+        }
+        if (currentState == State.OPEN || currentState == State.CLOSED) {
             return FileUtils.sizeOfDirectory(stagingDir.getPath().toFile());
         }
         else {
-            // TODO: replace with implementation that reads total size from database?
-            throw new UnsupportedOperationException("Layer is ARCHIVED");
+            // Only the manifest entry has to be read, not the whole archive
+            return archive.getManifest()
+                .map(ArchiveManifest::getTotalSize)
+                .orElseThrow(() -> new UnsupportedOperationException("Layer is ARCHIVED"));
         }
     }
 
@@ -231,6 +480,9 @@ class LayerImpl implements Layer {
         // Check if the path is outside the staging dir
         if (!pathInStagingDir.startsWith(stagingDir.getPath()))
             throw new IllegalArgumentException("Path is outside staging directory");
+        // The archives store their manifest under this name, so it would be overwritten
+        if (pathInStagingDir.equals(stagingDir.getPath().resolve(ArchiveManifest.NAME)))
+            throw new IllegalArgumentException("Path " + ArchiveManifest.NAME + " is reserved");
     }
 
     // Cannot be reliably called during archiving, because the layer might be closed just after the check
@@ -239,8 +491,18 @@ class LayerImpl implements Layer {
         if (getState() == State.ARCHIVED) {
             return archive.listAllItems();
         }
+        else if (overlay.exists()) {
+            var stagingPath = stagingDir.getPath();
+            var archivedItems = toStream(archive.listAllItems())
+                .filter(item -> !overlay.isStaged(item.getPath()) && Files.notExists(stagingPath.resolve(item.getPath())));
+            return Stream.concat(toStream(new DirectoryTreeItemIterator(stagingPath)), archivedItems).iterator();
+        }
         else {
             return new DirectoryTreeItemIterator(stagingDir.getPath());
         }
     }
+
+    private static Stream<Item> toStream(Iterator<Item> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+    }
 }
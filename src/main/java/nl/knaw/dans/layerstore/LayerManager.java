@@ -52,6 +52,19 @@ interface LayerManager {
      */
     Layer getLayer(long id);
 
+    /**
+     * Makes the layer manager forget what it knows about the layer with the given id, so that the next call to {@link #getLayer(long)} looks for it on storage again. This is only needed if the
+     * layer has been changed on storage by other means than this layer manager. A handle to the layer that was obtained before stays valid; it is brought up to date with storage by that call.
+     *
+     * @param id the id of the layer
+     */
+    void invalidateLayer(long id);
+
+    /**
+     * Makes the layer manager forget what it knows about all layers other than the top layer. See {@link #invalidateLayer(long)}.
+     */
+    void invalidateLayers();
+
     /**
      * Request for the archiving of the given layer. The operation may be performed asynchronously, so the caller should check the layer's state to determine when the archiving is complete.
      *
@@ -22,13 +22,20 @@ import lombok.extern.slf4j.Slf4j;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 /**
  * Default implementation of the {@link LayerManager} interface.
+ * <p>
+ * The layers are kept in a registry, so that {@link #getLayer(long)} does not have to look for the layer on storage every time it is called. A layer handle tracks its own state as the layer goes
+ * through its transitions, so the registry only has to check the storage again after the revalidation interval has passed, or after the handle has been invalidated explicitly. There is at most
+ * one handle per layer: on revalidation the registered handle reconciles its state with storage, so that its transitions stay serialized and its state is not replaced by that of a second handle.
  */
 @Slf4j
 class LayerManagerImpl implements LayerManager {
@@ -44,8 +51,24 @@ class LayerManagerImpl implements LayerManager {
 
     private final LayerArchiver layerArchiver;
 
+    /**
+     * The default time after which the registry checks again whether a layer still exists on storage.
+     */
+    public static final Duration DEFAULT_REVALIDATION_INTERVAL = Duration.ofMinutes(5);
+
+    /**
+     * The time after which the registry checks again whether a layer still exists on storage.
+     */
     @Getter
-    private Layer topLayer;
+    private final Duration revalidationInterval;
+
+    private final ConcurrentMap<Long, RegisteredLayer> layers = new ConcurrentHashMap<>();
+
+    private record RegisteredLayer(LayerImpl layer, long registeredAtNanos) {
+    }
+
+    @Getter
+    private volatile LayerImpl topLayer;
 
     /**
      * Creates a new LayerManagerImpl and validates the archive root.
@@ -69,9 +92,28 @@ class LayerManagerImpl implements LayerManager {
      * @throws IOException if the staging root directory cannot be created.
      */
     public LayerManagerImpl(@NonNull Path stagingRoot, @NonNull ArchiveProvider archiveProvider, @NonNull LayerArchiver layerArchiver, boolean validateArchiveRoot) throws IOException {
+        this(stagingRoot, archiveProvider, layerArchiver, validateArchiveRoot, DEFAULT_REVALIDATION_INTERVAL);
+    }
+
+    /**
+     * Creates a new LayerManagerImpl.
+     *
+     * @param stagingRoot          the root directory for staging layers.
+     * @param archiveProvider      the archive provider to use.
+     * @param layerArchiver        the layer archiver to use.
+     * @param validateArchiveRoot  validate that the directory containing the archived layers does not contain other files
+     * @param revalidationInterval the time after which a registered layer is checked against storage again; {@link Duration#ZERO} checks on every call
+     * @throws IOException if the staging root directory cannot be created.
+     */
+    public LayerManagerImpl(@NonNull Path stagingRoot, @NonNull ArchiveProvider archiveProvider, @NonNull LayerArchiver layerArchiver, boolean validateArchiveRoot,
+        @NonNull Duration revalidationInterval) throws IOException {
+        if (revalidationInterval.isNegative()) {
+            throw new IllegalArgumentException("revalidationInterval must not be negative");
+        }
         this.stagingRoot = stagingRoot;
         this.layerArchiver = layerArchiver;
         this.archiveProvider = archiveProvider;
+        this.revalidationInterval = revalidationInterval;
         if (Files.notExists(this.stagingRoot)) {
             Files.createDirectories(this.stagingRoot);
         }
@@ -81,6 +123,7 @@ class LayerManagerImpl implements LayerManager {
         }
         try (var pathStream = Files.list(this.stagingRoot)) {
             pathStream
+                .filter(Files::isDirectory)
                 .map(StagingDir::new)
                 .max(Comparator.comparingLong(StagingDir::getId))
                 .ifPresent(maxDir -> {
@@ -109,6 +152,8 @@ class LayerManagerImpl implements LayerManager {
         topLayer = newLayer;
 
         if (oldTopLayer != null) {
+            // From now on the old top layer is found through the registry, so that it is the same handle that is archived and read from
+            register(oldTopLayer);
             if (oldTopLayer.getState() == Layer.State.OPEN) {
                 oldTopLayer.close();
             }
@@ -139,6 +184,7 @@ class LayerManagerImpl implements LayerManager {
     public List<Long> listLayerIds() throws IOException {
         try (var pathStream = Files.list(stagingRoot)) {
             var allIds = new HashSet<>(pathStream
+                .filter(Files::isDirectory)
                 .map(StagingDir::new)
                 .map(StagingDir::getId)
                 .toList());
@@ -149,24 +195,61 @@ class LayerManagerImpl implements LayerManager {
 
     @Override
     public Layer getLayer(long id) {
-        if (topLayer != null && id == topLayer.getId()) {
-            return topLayer;
+        var currentTopLayer = topLayer;
+        if (currentTopLayer != null && id == currentTopLayer.getId()) {
+            return currentTopLayer;
         }
-        else {
-            var stagingDir = new StagingDir(stagingRoot, id);
-            boolean archiveFileExists = archiveProvider.exists(id);
-            if (stagingDir.isStaged() || archiveFileExists) {
-                return new LayerImpl(id, stagingDir, archiveProvider.createArchive(id, archiveFileExists));
-            }
-            else {
-                throw new IllegalArgumentException("No layer found with id " + id);
+        var registered = layers.get(id);
+        if (registered != null && System.nanoTime() - registered.registeredAtNanos() < revalidationInterval.toNanos()) {
+            return registered.layer();
+        }
+        // Not registered yet or due for revalidation, so look for the layer on storage
+        var stagingDir = new StagingDir(stagingRoot, id);
+        boolean archiveFileExists = archiveProvider.exists(id);
+        if (!stagingDir.isStaged() && !archiveFileExists) {
+            if (registered != null) {
+                layers.remove(id, registered);
             }
+            throw new IllegalArgumentException("No layer found with id " + id);
         }
+        if (registered != null) {
+            // Keep the handle, so that there is only one per layer; an archive job that is running on it sets the state itself when it is done
+            registered.layer().reconcileState();
+            layers.replace(id, registered, new RegisteredLayer(registered.layer(), System.nanoTime()));
+            return registered.layer();
+        }
+        var newRegistered = new RegisteredLayer(new LayerImpl(id, stagingDir, archiveProvider.createArchive(id, archiveFileExists)), System.nanoTime());
+        // If another thread registered the layer in the meantime, use its handle
+        var existing = layers.putIfAbsent(id, newRegistered);
+        return existing == null ? newRegistered.layer() : existing.layer();
+    }
+
+    @Override
+    public void invalidateLayer(long id) {
+        layers.computeIfPresent(id, (layerId, registered) -> expire(registered));
+    }
+
+    @Override
+    public void invalidateLayers() {
+        layers.replaceAll((layerId, registered) -> expire(registered));
+    }
+
+    /*
+     * Keeps the handle, so that there is still only one per layer, but makes the next getLayer check it against storage.
+     */
+    private RegisteredLayer expire(RegisteredLayer registered) {
+        return new RegisteredLayer(registered.layer(), System.nanoTime() - revalidationInterval.toNanos());
+    }
+
+    private void register(LayerImpl layer) {
+        layers.put(layer.getId(), new RegisteredLayer(layer, System.nanoTime()));
     }
 
     private void validateStagingRoot() throws IOException {
         try (var pathStream = Files.list(stagingRoot)) {
             var illegalFiles = pathStream
+                // Layers that were reopened without extracting the whole archive have an overlay file next to their staging directory
+                .filter(path -> !StagingOverlay.isOverlayFile(path))
                 .filter(path -> !Files.isDirectory(path) || !validLayerNamePattern.matcher(path.getFileName().toString()).matches())
                 .map(Path::toString)
                 .toList();
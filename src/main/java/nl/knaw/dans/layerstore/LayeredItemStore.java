@@ -28,12 +28,18 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * An implementation of {@link ItemStore} that organizes files and directories ({@link Item}s) in an ordered stack of {@link Layer}s. Layers are either staged or archived. Staged layers can be
@@ -52,6 +58,10 @@ public class LayeredItemStore implements ItemStore {
     private final LayerManager layerManager;
     private final DatabaseBackedContentManager databaseBackedContentManager;
     private final LayerConsistencyChecker layerConsistencyChecker;
+    private final ArchivedContentCache archivedContentCache;
+    // Layers that are archived again with overwrite; their cached content is discarded once more when they are first read after reaching ARCHIVED
+    private final Set<Long> layersToInvalidate = ConcurrentHashMap.newKeySet();
+    private final ArchivedReadCoalescer archivedReadCoalescer;
 
     @Getter
     @Setter
@@ -104,10 +114,50 @@ public class LayeredItemStore implements ItemStore {
         LayerManager layerManager,
         DatabaseBackedContentManager databaseBackedContentManager,
         LayerConsistencyChecker layerConsistencyChecker) {
+        this(database, layerManager, databaseBackedContentManager, layerConsistencyChecker, null);
+    }
+
+    /**
+     * Creates a new LayeredItemStore with a custom consistency checker and a cache for content read from archived layers.
+     *
+     * @param database                     the database to use
+     * @param layerManager                 the layer manager to use
+     * @param databaseBackedContentManager the database-backed content manager to use
+     * @param layerConsistencyChecker      the consistency checker to use
+     * @param archivedContentCache         the cache for content read from archived layers, or {@code null} for no caching
+     */
+    LayeredItemStore(
+        LayerDatabase database,
+        LayerManager layerManager,
+        DatabaseBackedContentManager databaseBackedContentManager,
+        LayerConsistencyChecker layerConsistencyChecker,
+        ArchivedContentCache archivedContentCache) {
+        this(database, layerManager, databaseBackedContentManager, layerConsistencyChecker, archivedContentCache, null);
+    }
+
+    /**
+     * Creates a new LayeredItemStore with a custom consistency checker, a cache for content read from archived layers and a coalescer for concurrent reads from archived layers.
+     *
+     * @param database                     the database to use
+     * @param layerManager                 the layer manager to use
+     * @param databaseBackedContentManager the database-backed content manager to use
+     * @param layerConsistencyChecker      the consistency checker to use
+     * @param archivedContentCache         the cache for content read from archived layers, or {@code null} for no caching
+     * @param archivedReadCoalescer        the coalescer for concurrent reads of the same file from an archived layer, or {@code null} to read from the archive for every caller
+     */
+    LayeredItemStore(
+        LayerDatabase database,
+        LayerManager layerManager,
+        DatabaseBackedContentManager databaseBackedContentManager,
+        LayerConsistencyChecker layerConsistencyChecker,
+        ArchivedContentCache archivedContentCache,
+        ArchivedReadCoalescer archivedReadCoalescer) {
         this.database = database;
         this.layerManager = layerManager;
         this.databaseBackedContentManager = Optional.ofNullable(databaseBackedContentManager).orElse(new NoopDatabaseBackedContentManager());
         this.layerConsistencyChecker = layerConsistencyChecker;
+        this.archivedContentCache = Optional.ofNullable(archivedContentCache).orElse(new NoopArchivedContentCache());
+        this.archivedReadCoalescer = archivedReadCoalescer;
     }
 
     /**
@@ -124,14 +174,25 @@ public class LayeredItemStore implements ItemStore {
 
     /**
      * Requests the archiving of the layer with the specified id. The operation may be performed asynchronously, so the caller should check the layer's status to determine when the archiving is
-     * complete.
+     * complete. When overwriting an existing archive, any content of the layer in the archived content cache is discarded, both now and when the layer is first read after it
+     * has been archived again, so that content read from the old archive in the meantime is not served.
      *
      * @param layerId   the id of the layer to archive
      * @param overwrite whether to overwrite an existing archive
      * @throws IllegalArgumentException if no layer with the specified id exists
      */
     public void archiveLayer(long layerId, boolean overwrite) {
-        layerManager.archive(layerManager.getLayer(layerId), overwrite);
+        var layer = layerManager.getLayer(layerId);
+        if (overwrite) {
+            try {
+                archivedContentCache.invalidateLayer(layerId);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not invalidate cached content of layer " + layerId, e);
+            }
+            layersToInvalidate.add(layerId);
+        }
+        layerManager.archive(layer, overwrite);
     }
 
     /**
@@ -216,6 +277,16 @@ public class LayeredItemStore implements ItemStore {
         return database.listRecursive(directoryPath);
     }
 
+    @Override
+    public Stream<Item> streamDirectory(String directoryPath) throws IOException {
+        return database.streamDirectory(directoryPath);
+    }
+
+    @Override
+    public Stream<Item> streamRecursive(String directoryPath) throws IOException {
+        return database.streamRecursive(directoryPath);
+    }
+
     @Override
     public boolean existsPathLike(String path) {
         return database.existsPathLike(path);
@@ -223,26 +294,124 @@ public class LayeredItemStore implements ItemStore {
 
     @Override
     public InputStream readFile(String path) throws IOException {
-        // Check that the file exists and is a file
-        if (!database.existsPathLike(path)) {
+        // Check that the file exists and is a file, and find out where its content is, all in one lookup
+        var latestRecord = database.getLatestItemRecord(path)
             // Emulate the behavior of Files.readAllBytes(Path) by throwing a NoSuchFileException
-            throw new NoSuchFileException(path);
-        }
-        var latestRecord = database.getRecordsByPath(path).get(0);
+            .orElseThrow(() -> new NoSuchFileException(path));
         if (latestRecord.getType() == Item.Type.Directory) {
             // Emulate the behavior of Files.readAllBytes(Path) by throwing a generic IOException
             throw new IOException("Path is a directory: " + path);
         }
-        if (latestRecord.getContent() == null) {
+        if (!latestRecord.hasContent()) {
             log.debug("Reading file {} from layer {}", path, latestRecord.getLayerId());
-            if (!allowReadingContentFromArchives && layerManager.getLayer(latestRecord.getLayerId()).getState() == Layer.State.ARCHIVED) {
-                throw new IOException("Reading from archived layer not allowed: " + latestRecord.getLayerId());
-            }
-            return layerManager.getLayer(latestRecord.getLayerId()).readFile(path);
+            var layer = layerManager.getLayer(latestRecord.getLayerId());
+            checkReadAllowed(layer);
+            return readFromLayer(layer, path);
         }
         else {
-            log.debug("Reading file {} from database", path);
-            return new ByteArrayInputStream(databaseBackedContentManager.postRetrieve(path, latestRecord.getContent()));
+            return readFromDatabase(latestRecord);
+        }
+    }
+
+    private void checkReadAllowed(Layer layer) throws IOException {
+        if (!allowReadingContentFromArchives && layer.getState() == Layer.State.ARCHIVED) {
+            throw new IOException("Reading from archived layer not allowed: " + layer.getId());
+        }
+    }
+
+    private InputStream readFromLayer(Layer layer, String path) throws IOException {
+        if (layer.getState() == Layer.State.ARCHIVED) {
+            invalidateIfArchivedAgain(layer);
+            if (archivedReadCoalescer == null) {
+                return archivedContentCache.readFile(layer.getId(), path, () -> layer.readFile(path));
+            }
+            return archivedContentCache.readFile(layer.getId(), path, () -> archivedReadCoalescer.readFile(layer.getId(), path, () -> layer.readFile(path)));
+        }
+        return layer.readFile(path);
+    }
+
+    private void invalidateIfArchivedAgain(Layer layer) throws IOException {
+        if (layersToInvalidate.contains(layer.getId())) {
+            // Removed only after the invalidation, so that concurrent readers cannot get to the cache before it is done
+            archivedContentCache.invalidateLayer(layer.getId());
+            layersToInvalidate.remove(layer.getId());
+        }
+    }
+
+    private InputStream readFromDatabase(LatestItemRecord latestRecord) {
+        log.debug("Reading file {} from database", latestRecord.getPath());
+        // Only here is the content actually fetched from the database
+        return new ByteArrayInputStream(databaseBackedContentManager.postRetrieve(latestRecord.getPath(), database.getStoredContent(latestRecord.getContentId())));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All paths are resolved with one database lookup, and checked before any content is delivered. The files with content in the database are delivered first. The other files are delivered layer
+     * by layer, so that each staging directory or archive is visited once, and within a layer in the order in which they are stored in the archive.
+     */
+    @Override
+    public void readFiles(Collection<String> paths, FileContentConsumer consumer) throws IOException {
+        var latestRecords = database.getLatestItemRecords(paths);
+        var foundPaths = latestRecords.stream().map(LatestItemRecord::getPath).collect(Collectors.toSet());
+        for (var path : paths) {
+            if (!foundPaths.contains(path)) {
+                throw new NoSuchFileException(path);
+            }
+        }
+        var pathsByLayerId = new TreeMap<Long, List<String>>();
+        var recordsWithContent = new ArrayList<LatestItemRecord>();
+        for (var latestRecord : latestRecords) {
+            if (latestRecord.getType() == Item.Type.Directory) {
+                throw new IOException("Path is a directory: " + latestRecord.getPath());
+            }
+            if (latestRecord.hasContent()) {
+                recordsWithContent.add(latestRecord);
+            }
+            else {
+                pathsByLayerId.computeIfAbsent(latestRecord.getLayerId(), id -> new ArrayList<>()).add(latestRecord.getPath());
+            }
+        }
+        var layers = new ArrayList<Layer>();
+        for (var layerId : pathsByLayerId.keySet()) {
+            var layer = layerManager.getLayer(layerId);
+            checkReadAllowed(layer);
+            layers.add(layer);
+        }
+        for (var latestRecord : recordsWithContent) {
+            try (var content = readFromDatabase(latestRecord)) {
+                consumer.accept(latestRecord.getPath(), content);
+            }
+        }
+        for (var layer : layers) {
+            var layerPaths = pathsByLayerId.get(layer.getId());
+            log.debug("Reading {} file(s) from layer {}", layerPaths.size(), layer.getId());
+            if (layer.getState() == Layer.State.ARCHIVED) {
+                invalidateIfArchivedAgain(layer);
+                // Files that are already cached are served from the cache, so that the archive is only read, once, for the others
+                var uncachedPaths = new ArrayList<String>();
+                for (var path : layerPaths) {
+                    var cachedFile = archivedContentCache.getCachedFile(layer.getId(), path);
+                    if (cachedFile.isPresent()) {
+                        try (var cachedContent = cachedFile.get()) {
+                            consumer.accept(path, cachedContent);
+                        }
+                    }
+                    else {
+                        uncachedPaths.add(path);
+                    }
+                }
+                if (!uncachedPaths.isEmpty()) {
+                    layer.readFiles(uncachedPaths, (path, content) -> {
+                        try (var cachedContent = archivedContentCache.readFile(layer.getId(), path, () -> content)) {
+                            consumer.accept(path, cachedContent);
+                        }
+                    });
+                }
+            }
+            else {
+                layer.readFiles(layerPaths, consumer);
+            }
         }
     }
 
@@ -252,11 +421,9 @@ public class LayeredItemStore implements ItemStore {
         Path parentPath = Path.of(path).getParent();
         if (parentPath != null) {
             String parent = parentPath.toString();
-            var parentRecords = database.getRecordsByPath(parent);
-            if (parentRecords.isEmpty()) {
-                throw new IllegalArgumentException("Parent directory does not exist in item store: " + parent);
-            }
-            if (parentRecords.get(0).getType() != Item.Type.Directory) {
+            var parentRecord = database.getLatestItemRecord(parent)
+                .orElseThrow(() -> new IllegalArgumentException("Parent directory does not exist in item store: " + parent));
+            if (parentRecord.getType() != Item.Type.Directory) {
                 throw new IllegalArgumentException("Parent path is not a directory in item store: " + parent);
             }
         }
@@ -361,28 +528,24 @@ public class LayeredItemStore implements ItemStore {
     @Override
     public void moveDirectoryInternal(String source, String destination) throws IOException {
         checkAllSourceFilesOnlyInTopLayer(source, "moveDirectoryInternal");
+        var topLayerId = layerManager.getTopLayer().getId();
         layerManager.getTopLayer().moveDirectoryInternal(source, destination);
-        // Update listing records for all files in the moved directory
-        var items = database.listRecursive(source);
-        for (var item : items) {
-            var newPath = destination + "/" + item.getPath().substring(source.length() + 1);
-            var records = database.getRecordsByPath(item.getPath());
-            for (var record : records) {
-                record.setPath(newPath);
-            }
-            database.saveRecords(records.toArray(ItemRecord[]::new));
+        // Update listing records for the moved directory itself and all files in it. Other layers may contain the source directory as well, but not its descendants.
+        var paths = new ArrayList<String>();
+        paths.add(source);
+        database.listRecursive(source).forEach(item -> paths.add(item.getPath()));
+        var records = database.getRecordsByPaths(paths).stream()
+            .filter(r -> r.getLayerId() == topLayerId)
+            .toList();
+        for (var record : records) {
+            record.setPath(destination + record.getPath().substring(source.length()));
         }
+        database.saveRecords(records.toArray(ItemRecord[]::new));
     }
 
     private void checkAllSourceFilesOnlyInTopLayer(String source, String methodName) throws IOException {
-        List<String> itemsWithRecordsInOtherLayers = new ArrayList<>();
-        for (var item : database.listRecursive(source)) {
-            // The only layer that may contain records for the source directory is the top layer
-            List<Long> layersContainingItem = database.findLayersContaining(item.getPath());
-            if (layersContainingItem.size() > 1 || layersContainingItem.get(0) != layerManager.getTopLayer().getId()) {
-                itemsWithRecordsInOtherLayers.add(item.getPath());
-            }
-        }
+        // The only layer that may contain records for the descendants of the source directory is the top layer
+        var itemsWithRecordsInOtherLayers = database.findDescendantsInOtherLayers(source, layerManager.getTopLayer().getId());
         if (!itemsWithRecordsInOtherLayers.isEmpty()) {
             String message = "Cannot %s because the following items are in multiple layers: %s"
                 .formatted(methodName, itemsWithRecordsInOtherLayers);
@@ -393,49 +556,65 @@ public class LayeredItemStore implements ItemStore {
     @Override
     public void deleteDirectory(String path) throws IOException {
         checkAllSourceFilesOnlyInTopLayer(path, "deleteDirectory");
-        layerManager.getTopLayer().deleteDirectory(path);
-        var items = database.listRecursive(path);
-        items.add(new Item(path, Item.Type.Directory));
-        var idsToDelete = items.stream()
-            .map(item -> getIdFromDb(item.getPath()))
-            .mapToLong(Long::longValue).toArray();
-        database.deleteRecordsById(idsToDelete);
-    }
-
-    private Long getIdFromDb(String path) {
-        var records = database.getRecordsByPath(path);
-        if (records.size() != 1) {
-            var message = "Expecting 1 but got %d records for %s"
-                .formatted(records.size(), path);
-            throw new IllegalStateException(message);
-        }
-        return records.get(0).getGeneratedId();
+        var topLayer = layerManager.getTopLayer();
+        var layersContainingDirectory = database.findLayersContaining(path);
+        if (layersContainingDirectory.size() != 1) {
+            throw new IllegalStateException(getRecordCountMismatchMessage(layersContainingDirectory.size(), path));
+        }
+        if (layersContainingDirectory.get(0) != topLayer.getId()) {
+            throw new IllegalStateException("Cannot deleteDirectory because %s is not in the top layer".formatted(path));
+        }
+        // The directory itself and all its descendants, which are only in the top layer. The records are checked and deleted before the layer is touched.
+        long expected = database.countDescendants(path) + 1;
+        int deleted = database.deleteDirectoryRecords(topLayer.getId(), path, expected);
+        topLayer.deleteDirectory(path);
+        log.debug("Deleted {} records for directory {}", deleted, path);
+    }
+
+    private static String getRecordCountMismatchMessage(int numberOfRecords, String path) {
+        return "Expecting 1 but got %d records for %s".formatted(numberOfRecords, path);
     }
 
     @Override
     public void deleteFiles(List<String> paths) throws IOException {
-        var layerPaths = new HashMap<Long, List<String>>();
-        for (String path : paths) {
-            var layers = database.findLayersContaining(path);
-            for (Long layerId : layers) {
-                layerPaths.computeIfAbsent(layerId, k -> new ArrayList<>()).add(path);
+        // A path that is listed twice is deleted once
+        var distinctPaths = List.copyOf(new LinkedHashSet<>(paths));
+        // One query for all paths, instead of one per path
+        var records = database.getRecordsByPaths(distinctPaths);
+
+        // Check the records and layers before anything is deleted, so that a failing check leaves both the layers and the database untouched
+        var recordsByPath = records.stream().collect(Collectors.groupingBy(ItemRecord::getPath));
+        var idsToDelete = new long[distinctPaths.size()];
+        for (int i = 0; i < distinctPaths.size(); i++) {
+            var recordsForPath = recordsByPath.getOrDefault(distinctPaths.get(i), List.of());
+            if (recordsForPath.size() != 1) {
+                throw new IllegalStateException(getRecordCountMismatchMessage(recordsForPath.size(), distinctPaths.get(i)));
             }
+            idsToDelete[i] = recordsForPath.get(0).getGeneratedId();
         }
-        // Delete the files in each layer, assuming old layers are closed
-        for (var entry : layerPaths.entrySet().stream().sorted().toList()) {
-            var layer = layerManager.getLayer(entry.getKey());
-            if (layer.getState() == Layer.State.OPEN) {
-                layer.deleteFiles(entry.getValue());
-            }
-            else {
+        var layerPaths = new TreeMap<Long, List<String>>();
+        for (var record : records) {
+            layerPaths.computeIfAbsent(record.getLayerId(), k -> new ArrayList<>()).add(record.getPath());
+        }
+        var layers = new ArrayList<Layer>();
+        for (var layerId : layerPaths.keySet()) {
+            var layer = layerManager.getLayer(layerId);
+            if (layer.getState() != Layer.State.OPEN) {
                 throw new IllegalStateException("Cannot delete files from closed layer " + layer.getId());
             }
+            layers.add(layer);
+        }
+
+        // Delete the files in each layer
+        for (var layer : layers) {
+            layer.deleteFiles(layerPaths.get(layer.getId()));
         }
 
         // Delete the records from the database
-        var idsToDelete = paths.stream().map(this::getIdFromDb)
-            .mapToLong(Long::longValue).toArray();
-        database.deleteRecordsById(idsToDelete);
+        int deleted = database.deleteRecordsById(idsToDelete);
+        if (deleted != idsToDelete.length) {
+            throw new IllegalStateException("Expected to delete %d records, but deleted %d".formatted(idsToDelete.length, deleted));
+        }
     }
 
     @Override
@@ -446,23 +625,19 @@ public class LayeredItemStore implements ItemStore {
 
     @Override
     public void copyDirectoryOutOf(String source, Path destination) throws IOException {
-        var items = database.listRecursive(source);
-        // Sort by ascending path length so that we start with the deepest directories
-        items.sort(Comparator.comparingInt(listingRecord -> Path.of(listingRecord.getPath()).getNameCount()));
-        if (!items.isEmpty()) {
-            var deepestDirectory = Path.of(items.get(0).getPath()).getParent();
-            if (source.equals(deepestDirectory.toString())) {
-                // the source is a leaf directory
-                Files.createDirectories(destination.resolve(source));
-            }
-        }
-        for (Item item : items) {
-            if (item.getType().equals(Item.Type.Directory)) {
-                Files.createDirectories(destination.resolve(item.getPath()));
-            }
-            else {
-                try (OutputStream os = Files.newOutputStream(destination.resolve(item.getPath()))) {
-                    IOUtils.copy(readFile(item.getPath()), os);
+        // Stream the items, so that large directories do not have to be listed in memory first. An empty source directory is not copied.
+        try (var items = database.streamRecursive(source)) {
+            for (var iterator = items.iterator(); iterator.hasNext(); ) {
+                var item = iterator.next();
+                var target = destination.resolve(item.getPath());
+                if (item.getType().equals(Item.Type.Directory)) {
+                    Files.createDirectories(target);
+                }
+                else {
+                    Files.createDirectories(target.getParent());
+                    try (InputStream is = readFile(item.getPath()); OutputStream os = Files.newOutputStream(target)) {
+                        IOUtils.copy(is, os);
+                    }
                 }
             }
         }
@@ -476,6 +651,9 @@ public class LayeredItemStore implements ItemStore {
         private Function<LayerConsistencyChecker, LayerConsistencyChecker> layerConsistencyCheckerProxyFactory = Function.identity();
         private DatabaseBackedContentManager databaseBackedContentManager;
         private boolean validateArchiveRoot = true;
+        private Duration layerRevalidationInterval = LayerManagerImpl.DEFAULT_REVALIDATION_INTERVAL;
+        private ArchivedContentCache archivedContentCache;
+        private ArchivedReadCoalescer archivedReadCoalescer;
 
         public Builder database(LayerDatabase database) {
             this.database = database;
@@ -517,6 +695,21 @@ public class LayeredItemStore implements ItemStore {
             return this;
         }
 
+        public Builder layerRevalidationInterval(Duration layerRevalidationInterval) {
+            this.layerRevalidationInterval = layerRevalidationInterval;
+            return this;
+        }
+
+        public Builder archivedContentCache(ArchivedContentCache archivedContentCache) {
+            this.archivedContentCache = archivedContentCache;
+            return this;
+        }
+
+        public Builder archivedReadCoalescer(ArchivedReadCoalescer archivedReadCoalescer) {
+            this.archivedReadCoalescer = archivedReadCoalescer;
+            return this;
+        }
+
         public LayeredItemStore build() throws IOException {
             if (database == null) {
                 throw new IllegalStateException("database is required");
@@ -531,10 +724,10 @@ public class LayeredItemStore implements ItemStore {
             var originalChecker = new ItemsMatchDbConsistencyChecker(database);
             var usedChecker = layerConsistencyCheckerProxyFactory.apply(originalChecker);
             var layerArchiver = layerArchiverFactory.apply(usedChecker);
-            var layerManager = new LayerManagerImpl(stagingRoot, archiveProvider, layerArchiver, validateArchiveRoot);
+            var layerManager = new LayerManagerImpl(stagingRoot, archiveProvider, layerArchiver, validateArchiveRoot, layerRevalidationInterval);
             originalChecker.setLayerManager(layerManager);
 
-            return new LayeredItemStore(database, layerManager, databaseBackedContentManager, usedChecker);
+            return new LayeredItemStore(database, layerManager, databaseBackedContentManager, usedChecker, archivedContentCache, archivedReadCoalescer);
         }
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.io.function.IOSupplier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * An {@link ArchivedContentCache} that does not cache anything.
+ */
+public class NoopArchivedContentCache implements ArchivedContentCache {
+    @Override
+    public InputStream readFile(long layerId, String path, IOSupplier<InputStream> loader) throws IOException {
+        return loader.get();
+    }
+
+    @Override
+    public Optional<InputStream> getCachedFile(long layerId, String path) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void invalidateLayer(long layerId) {
+    }
+}
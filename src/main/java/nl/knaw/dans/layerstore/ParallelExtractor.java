@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.text.MessageFormat.format;
+
+/**
+ * Extracts files from an archive on a bounded number of threads. Each file is created at its final size before its content is copied into it, so that the file system can allocate it in one go,
+ * and the content is copied from channel to channel. The directories for the files must have been created before. With one thread, the files are extracted on the calling thread.
+ * <p>
+ * At most two files per thread are queued, so that the number of pending extractions does not depend on the size of the archive. The first failure is reported by {@link #await()}; files that
+ * are queued after it are skipped. The extracting threads are never interrupted, because interrupting a thread that reads from a {@link FileChannel} closes the channel, and the archive channels
+ * may be shared with other readers.
+ */
+@Slf4j
+class ParallelExtractor implements AutoCloseable {
+
+    /**
+     * Copies the content of one entry.
+     */
+    interface EntryCopier {
+        /**
+         * Copies the content to the output file, starting at position 0.
+         *
+         * @param out the output file
+         * @return the number of bytes copied
+         * @throws IOException if the content could not be copied
+         */
+        long copyTo(FileChannel out) throws IOException;
+    }
+
+    private final ExecutorService executor;
+
+    private final int maxQueued;
+
+    private final Semaphore queued;
+
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    private volatile boolean closed;
+
+    ParallelExtractor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads);
+        this.maxQueued = 2 * threads;
+        this.queued = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Extracts a file, possibly on another thread.
+     *
+     * @param file   the file to create or overwrite
+     * @param size   the size of the entry
+     * @param copier copies the content of the entry
+     * @throws IOException if an earlier extraction failed, or if this one fails on the calling thread
+     */
+    void extract(Path file, long size, EntryCopier copier) throws IOException {
+        throwIfFailed();
+        if (executor == null) {
+            extractFile(file, size, copier);
+            return;
+        }
+        try {
+            queued.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting " + file);
+        }
+        executor.execute(() -> {
+            try {
+                if (failure.get() == null && !closed) {
+                    extractFile(file, size, copier);
+                }
+            }
+            catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+            catch (RuntimeException e) {
+                failure.compareAndSet(null, new IOException("Could not extract " + file, e));
+            }
+            finally {
+                queued.release();
+            }
+        });
+    }
+
+    /**
+     * Waits until all files have been extracted.
+     *
+     * @throws IOException if an extraction failed
+     */
+    void await() throws IOException {
+        if (executor != null) {
+            try {
+                queued.acquire(maxQueued);
+                queued.release(maxQueued);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for extractions to finish");
+            }
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        var e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private static void extractFile(Path file, long size, EntryCopier copier) throws IOException {
+        try (var out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (size > 0) {
+                // Extend the file to its final size before writing it
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            var copied = copier.copyTo(out);
+            if (copied != size) {
+                throw new IOException(format("Extracted {0} bytes instead of {1} to {2}", copied, size, file));
+            }
+        }
+    }
+
+    /**
+     * Copies a range of a file to the output file, without copying the data through the Java heap where the platform supports it.
+     *
+     * @param source   the source file
+     * @param position the position of the range in the source file
+     * @param size     the size of the range
+     * @param out      the output file
+     * @return the number of bytes copied, which is less than {@code size} only if the source file ends before the range does
+     * @throws IOException if the range could not be copied
+     */
+    static long transfer(FileChannel source, long position, long size, FileChannel out) throws IOException {
+        long copied = 0;
+        while (copied < size) {
+            var n = source.transferTo(position + copied, size - copied, out);
+            if (n <= 0) {
+                break;
+            }
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Copies a channel to the output file.
+     *
+     * @param source the source channel
+     * @param size   the number of bytes to copy
+     * @param out    the output file
+     * @return the number of bytes copied, which is less than {@code size} only if the source ends early
+     * @throws IOException if the content could not be copied
+     */
+    static long transfer(ReadableByteChannel source, long size, FileChannel out) throws IOException {
+        long copied = 0;
+        while (copied < size) {
+            var n = out.transferFrom(source, copied, size - copied);
+            if (n <= 0) {
+                break;
+            }
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Skips the files that have not been extracted yet, and waits for the ones that are being extracted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Still waiting for extractions to finish");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -16,21 +16,33 @@
 package nl.knaw.dans.layerstore;
 
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.lib.util.ProcessInputStream;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A runner for the ssh command line tool, which executes commands on a remote host via SSH.
+ * <p>
+ * If a control directory is given, the commands share one SSH connection, so that they do not each pay for a full handshake. The runner starts a master connection
+ * ({@code ssh -M -N}) with its control socket in the control directory, and the commands are sent over that socket. The master is started when it is first needed and restarted when it has
+ * stopped, for example because the keep-alive messages were not answered after a network failure. Commands never start a master themselves: if the master cannot be started, they connect directly,
+ * as they do without a control directory. The same goes for commands that are run while another command is waiting for the master to come up. The master is stopped when the runner is closed.
+ * <p>
+ * The path of the control socket must fit in a Unix domain socket address (about 100 characters), so the control directory should have a short path. Each runner needs its own control directory.
  */
-public class SshRunner extends AbstractRunner {
+@Slf4j
+public class SshRunner extends AbstractRunner implements Closeable {
     private final Path sshExecutable;
     private final String user;
     @Getter
@@ -38,6 +50,13 @@ public class SshRunner extends AbstractRunner {
     @Getter
     private final Path remoteBaseDir;
     private final int connectionTimeout; // seconds
+    private final Path controlSocket; // null if connections are not shared
+
+    private Process master;
+    private boolean masterStarting;
+    private boolean masterFailed;
+    private long masterFailureTime; // System.nanoTime() of the last failed attempt to start the master
+    private boolean closed;
 
     /**
      * Creates a new SshRunner.
@@ -61,11 +80,26 @@ public class SshRunner extends AbstractRunner {
      * @param connectionTimeout connection timeout in seconds
      */
     public SshRunner(Path sshExecutable, String user, String host, Path remoteBaseDir, int connectionTimeout) {
+        this(sshExecutable, user, host, remoteBaseDir, connectionTimeout, null);
+    }
+
+    /**
+     * Creates a new SshRunner that sends its commands over one shared master connection.
+     *
+     * @param sshExecutable path to the ssh executable
+     * @param user username for the remote host
+     * @param host host name or IP address of the remote host
+     * @param remoteBaseDir base directory on the remote host where archives are stored
+     * @param connectionTimeout connection timeout in seconds; also the interval of the keep-alive messages of the master connection
+     * @param controlDir local directory for the control socket of the master connection, or {@code null} to connect separately for every command
+     */
+    public SshRunner(Path sshExecutable, String user, String host, Path remoteBaseDir, int connectionTimeout, Path controlDir) {
         this.sshExecutable = Path.of(checkExecutableForSecurity(sshExecutable));
         this.user = checkUserOrHostNameForSecurity(user);
         this.host = checkUserOrHostNameForSecurity(host);
         this.remoteBaseDir = Path.of(checkRemoteBaseDirForSecurity(remoteBaseDir.toString()));
         this.connectionTimeout = connectionTimeout;
+        this.controlSocket = controlDir == null ? null : Path.of(checkLocalPathForSecurity(controlDir)).resolve(this.user + "@" + this.host);
     }
 
     /**
@@ -75,11 +109,7 @@ public class SshRunner extends AbstractRunner {
      * @return true if the archive exists, false otherwise
      */
     public boolean fileExists(String archiveName) {
-        var cmdLine = new CommandLine(sshExecutable.toAbsolutePath().toString())
-            .addArgument("-o")
-            .addArgument("BatchMode=yes")
-            .addArgument("-o")
-            .addArgument("ConnectTimeout=" + connectionTimeout)
+        var cmdLine = newSshCommandLine()
             .addArgument(user + "@" + host)
             .addArgument("/usr/bin/test -e '" + remoteBaseDir.resolve(archiveName) + "'", false);
         var executor = DefaultExecutor.builder().get();
@@ -110,11 +140,7 @@ public class SshRunner extends AbstractRunner {
      */
     public List<String> listFiles(String flags) {
         try {
-            var cmdLine = new CommandLine(sshExecutable.toAbsolutePath().toString())
-                .addArgument("-o")
-                .addArgument("BatchMode=yes")
-                .addArgument("-o")
-                .addArgument("ConnectTimeout=" + connectionTimeout)
+            var cmdLine = newSshCommandLine()
                 .addArgument(user + "@" + host)
                 .addArgument("ls -1 " + flags, false)
                 .addArgument(remoteBaseDir.toString());
@@ -129,11 +155,7 @@ public class SshRunner extends AbstractRunner {
     }
 
     public void runCommand(String command) {
-        var cmdLine = new CommandLine(sshExecutable.toAbsolutePath().toString())
-            .addArgument("-o")
-            .addArgument("BatchMode=yes")
-            .addArgument("-o")
-            .addArgument("ConnectTimeout=" + connectionTimeout)
+        var cmdLine = newSshCommandLine()
             .addArgument(user + "@" + host)
             .addArgument(command, false);
         var executor = DefaultExecutor.builder().get();
@@ -145,4 +167,179 @@ public class SshRunner extends AbstractRunner {
         }
     }
 
+    /**
+     * Checks whether the master connection is up and accepts commands. Always returns false if the runner does not share its connection.
+     *
+     * @return true if the master connection is up, false otherwise
+     */
+    public boolean isConnected() {
+        if (controlSocket == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (master == null || !master.isAlive()) {
+                return false;
+            }
+        }
+        var executor = DefaultExecutor.builder().get();
+        executor.setExitValues(null);
+        try {
+            return executor.execute(newControlCommandLine("check")) == 0;
+        }
+        catch (IOException e) {
+            log.debug("Could not check master connection to {}", host, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the master connection, if there is one. Commands that are run after the runner has been closed connect directly.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        stopMaster();
+    }
+
+    private CommandLine newSshCommandLine() {
+        var cmdLine = new CommandLine(sshExecutable.toAbsolutePath().toString())
+            .addArgument("-o")
+            .addArgument("BatchMode=yes")
+            .addArgument("-o")
+            .addArgument("ConnectTimeout=" + connectionTimeout);
+        if (controlSocket != null && ensureMaster()) {
+            // Never become a master; if the socket is gone after all, ssh connects directly
+            cmdLine.addArgument("-o")
+                .addArgument("ControlMaster=no")
+                .addArgument("-o")
+                .addArgument("ControlPath=" + controlSocket, false);
+        }
+        return cmdLine;
+    }
+
+    private CommandLine newControlCommandLine(String controlCommand) {
+        return new CommandLine(sshExecutable.toAbsolutePath().toString())
+            .addArgument("-o")
+            .addArgument("ControlPath=" + controlSocket, false)
+            .addArgument("-O")
+            .addArgument(controlCommand)
+            .addArgument(user + "@" + host);
+    }
+
+    /*
+     * Starts the master connection if it is not running, and returns whether it is running. Only one caller starts the master and waits for it, without holding the lock; other callers connect
+     * directly in the meantime.
+     */
+    private boolean ensureMaster() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (masterStarting) {
+                return false;
+            }
+            if (master != null && master.isAlive()) {
+                return true;
+            }
+            if (masterFailed && System.nanoTime() - masterFailureTime < TimeUnit.SECONDS.toNanos(connectionTimeout)) {
+                // Do not make every command wait for a master that just failed
+                return false;
+            }
+            masterStarting = true;
+        }
+        boolean started = false;
+        try {
+            started = startMaster();
+            return started;
+        }
+        finally {
+            synchronized (this) {
+                masterStarting = false;
+                masterFailed = !started;
+                if (!started) {
+                    masterFailureTime = System.nanoTime();
+                    // Destroyed, but possibly not yet dead
+                    master = null;
+                }
+            }
+        }
+    }
+
+    private boolean startMaster() {
+        Process process = null;
+        try {
+            // A master that was killed leaves its socket behind, which would keep a new master from listening
+            Files.deleteIfExists(controlSocket);
+            Files.createDirectories(controlSocket.getParent());
+            var command = new ProcessBuilder(sshExecutable.toAbsolutePath().toString(),
+                "-M", "-N",
+                "-o", "BatchMode=yes",
+                "-o", "ConnectTimeout=" + connectionTimeout,
+                "-o", "ServerAliveInterval=" + connectionTimeout,
+                "-o", "ServerAliveCountMax=3",
+                "-o", "ControlPersist=no",
+                "-o", "ControlPath=" + controlSocket,
+                user + "@" + host);
+            // The master outlives the commands, so it must not hold on to any of their output streams
+            process = command.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            synchronized (this) {
+                if (closed) {
+                    process.destroy();
+                    return false;
+                }
+                master = process;
+            }
+            log.debug("Starting master connection to {}", host);
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(connectionTimeout);
+            while (!Files.exists(controlSocket)) {
+                if (!process.isAlive() || System.nanoTime() > deadline) {
+                    log.warn("Could not start master connection to {}; connecting separately for every command", host);
+                    process.destroy();
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            return false;
+        }
+        catch (IOException e) {
+            log.warn("Could not start master connection to {}; connecting separately for every command", host, e);
+            if (process != null) {
+                process.destroy();
+            }
+            return false;
+        }
+    }
+
+    private void stopMaster() {
+        if (master == null) {
+            return;
+        }
+        try {
+            if (master.isAlive()) {
+                var executor = DefaultExecutor.builder().get();
+                executor.setExitValues(null);
+                executor.execute(newControlCommandLine("exit"));
+                if (!master.waitFor(connectionTimeout, TimeUnit.SECONDS)) {
+                    master.destroy();
+                }
+            }
+            Files.deleteIfExists(controlSocket);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            master.destroy();
+        }
+        catch (IOException e) {
+            log.warn("Could not stop master connection to {}", host, e);
+            master.destroy();
+        }
+        master = null;
+    }
 }
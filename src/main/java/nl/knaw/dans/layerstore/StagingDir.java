@@ -36,7 +36,7 @@ public class StagingDir {
     private static final Pattern validLayerNamePattern = Pattern.compile("^\\d{13,}(\\.(closed|partial))?$");
 
     @Getter
-    private Path path;
+    private volatile Path path;
 
     /**
      * Creates a new StagingDir for the given layer id.
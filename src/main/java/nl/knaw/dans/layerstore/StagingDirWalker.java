@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.io.function.IOBiConsumer;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Walks a staging directory for archiving, passing each file and directory to a visitor as soon as it is found, together with the attributes that were read while walking. Unlike collecting
+ * {@link Files#walk(Path, java.nio.file.FileVisitOption...)} into a list, this does not hold all paths of a layer in memory, and the archiver can start writing before the walk is done.
+ * <p>
+ * The entries are visited in the same order as {@link Files#walk(Path, java.nio.file.FileVisitOption...)} would return them: each directory before its contents. Symbolic links are not followed;
+ * their attributes are those of the link itself. The staging directory itself is not visited.
+ */
+class StagingDirWalker {
+
+    private StagingDirWalker() {
+    }
+
+    /**
+     * Walks the staging directory. A staging directory that does not exist is treated as empty, which supports archiving an empty top layer.
+     *
+     * @param stagingDir the staging directory
+     * @param visitor    receives each file and directory below the staging directory, with its attributes
+     * @throws IOException if the directory cannot be read, or the visitor throws
+     */
+    static void walk(Path stagingDir, IOBiConsumer<Path, BasicFileAttributes> visitor) throws IOException {
+        if (Files.notExists(stagingDir)) {
+            return;
+        }
+        Files.walkFileTree(stagingDir, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(stagingDir)) {
+                    visitor.accept(dir, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                visitor.accept(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
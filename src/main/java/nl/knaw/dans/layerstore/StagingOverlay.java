@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Records which parts of a layer are in its staging directory, for a layer that was reopened without extracting its whole archive. The content at or below the recorded paths is in the staging
+ * directory; everything else is still read from the archive, and is carried over from the old archive when the layer is archived again. A recorded path that is not in the staging directory has
+ * been deleted, so the path doubles as a whiteout for the archived content. The paths are stored in a file next to the staging directory, so that they survive a restart. If there is no such
+ * file, the staging directory holds the whole layer.
+ */
+class StagingOverlay {
+    static final String SUFFIX = ".overlay";
+
+    private static final Pattern overlayFileNamePattern = Pattern.compile("^\\d{13,}\\.overlay(\\.tmp)?$");
+
+    private final Path file;
+
+    private volatile Snapshot snapshot;
+
+    /*
+     * The contents of the overlay file, as last read or written. If the file does not exist, paths is empty.
+     */
+    private record Snapshot(boolean exists, Set<String> paths) {
+    }
+
+    StagingOverlay(@NonNull StagingDir stagingDir) {
+        this.file = stagingDir.getPath().resolveSibling(stagingDir.getId() + SUFFIX);
+    }
+
+    /**
+     * Returns whether the given file in the staging root is an overlay file (or a temporary file left over from writing one).
+     *
+     * @param path the file to check
+     * @return whether the file belongs to an overlay
+     */
+    static boolean isOverlayFile(Path path) {
+        return Files.isRegularFile(path) && overlayFileNamePattern.matcher(path.getFileName().toString()).matches();
+    }
+
+    /**
+     * Returns whether the layer has an overlay, i.e., whether part of its content is still only in the archive.
+     *
+     * @return whether the overlay exists
+     */
+    boolean exists() {
+        return getSnapshot().exists();
+    }
+
+    /**
+     * Returns the paths of the subtrees that are in the staging directory.
+     *
+     * @return the paths, sorted
+     */
+    Set<String> getPaths() {
+        return getSnapshot().paths();
+    }
+
+    /**
+     * Returns whether the content at the given path is in the staging directory rather than in the archive. This is the case if there is no overlay, or if the path is at or below one of the
+     * recorded paths.
+     *
+     * @param path the path relative to the staging directory
+     * @return whether the path is staged
+     */
+    boolean isStaged(String path) {
+        var currentSnapshot = getSnapshot();
+        if (!currentSnapshot.exists()) {
+            return true;
+        }
+        for (var stagedPath : currentSnapshot.paths()) {
+            if (isAtOrBelow(path, stagedPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isAtOrBelow(String path, String ancestor) {
+        return ancestor.isEmpty() || path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+
+    /**
+     * Creates the overlay with the given paths, replacing any existing overlay.
+     *
+     * @param paths the paths of the subtrees that are in the staging directory
+     * @throws IOException if the overlay file cannot be written
+     */
+    synchronized void create(Collection<String> paths) throws IOException {
+        write(new TreeSet<>(paths.stream().map(StagingOverlay::normalize).toList()));
+    }
+
+    /**
+     * Adds a path to the overlay, so that from now on the content at or below it is taken from the staging directory. If nothing is staged at the path, it has been deleted.
+     *
+     * @param path the path relative to the staging directory
+     * @throws IOException if the overlay file cannot be written
+     */
+    synchronized void add(String path) throws IOException {
+        var normalized = normalize(path);
+        if (isStaged(normalized)) {
+            return;
+        }
+        var paths = new TreeSet<String>();
+        for (var stagedPath : getPaths()) {
+            // Paths below the new one are now covered by it
+            if (!isAtOrBelow(stagedPath, normalized)) {
+                paths.add(stagedPath);
+            }
+        }
+        paths.add(normalized);
+        write(paths);
+    }
+
+    private void write(Set<String> paths) throws IOException {
+        // Write to a temporary file first, so that a crash cannot leave a truncated path, which would cover a different subtree
+        var tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmpFile, paths, StandardCharsets.UTF_8);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshot = new Snapshot(true, Collections.unmodifiableSortedSet(new TreeSet<>(paths)));
+    }
+
+    /**
+     * Deletes the overlay, if it exists. After this, the staging directory is considered to hold the whole layer.
+     *
+     * @throws IOException if the overlay file cannot be deleted
+     */
+    synchronized void delete() throws IOException {
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+        Files.deleteIfExists(file);
+        snapshot = new Snapshot(false, Set.of());
+    }
+
+    /**
+     * Discards the paths kept in memory, so that they are read from the overlay file again on next use.
+     */
+    void reload() {
+        snapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        var currentSnapshot = snapshot;
+        if (currentSnapshot == null) {
+            synchronized (this) {
+                currentSnapshot = snapshot;
+                if (currentSnapshot == null) {
+                    currentSnapshot = read();
+                    snapshot = currentSnapshot;
+                }
+            }
+        }
+        return currentSnapshot;
+    }
+
+    private Snapshot read() {
+        if (Files.notExists(file)) {
+            return new Snapshot(false, Set.of());
+        }
+        try {
+            return new Snapshot(true, Collections.unmodifiableSortedSet(new TreeSet<>(Files.readAllLines(file, StandardCharsets.UTF_8))));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read overlay file " + file, e);
+        }
+    }
+
+    private static String normalize(String path) {
+        var normalized = path;
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
@@ -24,59 +24,272 @@ import org.apache.commons.compress.archivers.tar.TarFile;
 import org.apache.commons.io.IOUtils;
 
 import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilterInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import static java.text.MessageFormat.format;
 
 /**
- * Implementation of {@link Archive} for TAR archives.
+ * Implementation of {@link Archive} for TAR archives. Entries are looked up in a {@link TarArchiveIndex}, which is written next to the archive when it is created, and built on first use for
+ * archives that do not have one yet. The file channels used for reading are shared between reads through an
+ * {@link ArchiveReaderPool}.
  */
 @Slf4j
 public class TarArchive implements Archive {
+    /**
+     * The default number of threads that read the files to archive.
+     */
+    public static final int DEFAULT_READER_THREADS = 4;
+
+    private static final int LARGE_FILE_BUFFER_SIZE = 1024 * 1024;
+
     @NonNull
     private final Path tarFile;
 
+    @NonNull
+    private final ArchiveReaderPool readerPool;
+
+    /*
+     * If not null, the archive is compressed in gzip blocks, and the offsets in the index are offsets in the uncompressed data.
+     */
+    private final GzipBlockCompression compression;
+
+    private final int readerThreads;
+
+    private final int extractionThreads;
+
     private boolean archived;
 
+    private volatile TarArchiveIndex index;
+
+    private volatile BlockGzipIndex blocks;
+
+    /*
+     * Held for writing while a rewritten archive is moved into place, and for reading while a read resolves its entry and opens its channel.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
     public TarArchive(@NonNull Path tarFile) {
+        this(tarFile, ArchiveReaderPool.getSharedPool());
+    }
+
+    public TarArchive(@NonNull Path tarFile, @NonNull ArchiveReaderPool readerPool) {
+        this(tarFile, readerPool, null);
+    }
+
+    /**
+     * Creates a TAR archive that is optionally compressed in independently compressed gzip blocks (see {@link GzipBlockCompression}). The blocks are listed in a {@link BlockGzipIndex} next to
+     * the archive, so that reading an entry only decompresses the blocks that contain its data.
+     *
+     * @param tarFile     the archive file
+     * @param readerPool  the pool for sharing open file channels between reads
+     * @param compression the compression settings, or {@code null} for an uncompressed archive
+     */
+    public TarArchive(@NonNull Path tarFile, @NonNull ArchiveReaderPool readerPool, GzipBlockCompression compression) {
+        this(tarFile, readerPool, compression, DEFAULT_READER_THREADS);
+    }
+
+    /**
+     * Creates a TAR archive that reads the files to archive on the given number of threads. The files are read ahead of the thread that writes the archive (see {@link TarEntryPrefetcher}), which
+     * hides the latency of opening and reading them on network storage. The entries are still written in the order of the staging directory.
+     *
+     * @param tarFile       the archive file
+     * @param readerPool    the pool for sharing open file channels between reads
+     * @param compression   the compression settings, or {@code null} for an uncompressed archive
+     * @param readerThreads the number of threads that read files to archive
+     */
+    public TarArchive(@NonNull Path tarFile, @NonNull ArchiveReaderPool readerPool, GzipBlockCompression compression, int readerThreads) {
+        this(tarFile, readerPool, compression, readerThreads, 1);
+    }
+
+    /**
+     * Creates a TAR archive that extracts files on the given number of threads when it is unarchived (see {@link ParallelExtractor}). See
+     * {@link #TarArchive(Path, ArchiveReaderPool, GzipBlockCompression, int)} for the other parameters.
+     *
+     * @param tarFile           the archive file
+     * @param readerPool        the pool for sharing open file channels between reads
+     * @param compression       the compression settings, or {@code null} for an uncompressed archive
+     * @param readerThreads     the number of threads that read files to archive
+     * @param extractionThreads the number of threads that extract files; 1 extracts them on the calling thread
+     */
+    public TarArchive(@NonNull Path tarFile, @NonNull ArchiveReaderPool readerPool, GzipBlockCompression compression, int readerThreads, int extractionThreads) {
+        if (readerThreads < 1) {
+            throw new IllegalArgumentException("readerThreads must be at least 1");
+        }
+        if (extractionThreads < 1) {
+            throw new IllegalArgumentException("extractionThreads must be at least 1");
+        }
         this.tarFile = tarFile;
+        this.readerPool = readerPool;
+        this.compression = compression;
+        this.readerThreads = readerThreads;
+        this.extractionThreads = extractionThreads;
         // If the file exists, it is assumed to be a valid tar archive
         this.archived = Files.exists(tarFile);
     }
 
     @Override
-    @SuppressWarnings("resource") // closed by overridden method of returned stream
     public InputStream readFile(String filePath) throws IOException {
-        var tar = new TarFile(tarFile.toFile());
-        var entry = tar.getEntries().stream()
-            .filter(e -> e.getName().equals(filePath))
-            .findFirst().orElseThrow(() -> new IOException(format("{0} not found in {1}", filePath, tarFile)));
-        return new FilterInputStream(tar.getInputStream(entry)) {
+        // The entry and the channel must come from the same archive, also when it is replaced by a merge
+        swapLock.readLock().lock();
+        try {
+            var entry = getIndex().getEntry(filePath)
+                .orElseThrow(() -> new IOException(format("{0} not found in {1}", filePath, tarFile)));
+            var lease = readerPool.acquire(tarFile, file -> FileChannel.open(file, StandardOpenOption.READ));
+            if (compression == null) {
+                return new EntryInputStream(lease.get()::read, lease, entry.dataOffset(), entry.size());
+            }
+            try {
+                var channel = new BlockGzipChannel(lease.get(), getBlocks(), lease);
+                return new EntryInputStream(channel::read, channel, entry.dataOffset(), entry.size());
+            }
+            catch (IOException | RuntimeException e) {
+                lease.close();
+                throw e;
+            }
+        }
+        finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private interface PositionalReader {
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    /*
+     * Reads the data of one entry with positional reads, so that the channel can be shared with concurrent reads of other entries.
+     */
+    private static class EntryInputStream extends InputStream {
+        private final PositionalReader reader;
+        private final Closeable onClose;
+        private long position;
+        private long remaining;
+
+        private EntryInputStream(PositionalReader reader, Closeable onClose, long position, long size) {
+            this.reader = reader;
+            this.onClose = onClose;
+            this.position = position;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
 
-            @Override
-            @SneakyThrows
-            public void close() {
-                super.close();
-                // Close the backing stream.
-                tar.close();
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            var bytesRead = reader.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of archive");
             }
-        };
+            position += bytesRead;
+            remaining -= bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Return the channel to the pool
+            onClose.close();
+        }
+    }
+
+    @Override
+    public List<String> orderByEntryPosition(Collection<String> filePaths) throws IOException {
+        var index = getIndex();
+        return filePaths.stream()
+            .sorted(Comparator.comparingLong(filePath -> index.getEntry(filePath).map(TarArchiveIndex.Entry::dataOffset).orElse(Long.MAX_VALUE)))
+            .toList();
+    }
+
+    private TarArchiveIndex getIndex() throws IOException {
+        var currentIndex = index;
+        if (currentIndex == null) {
+            synchronized (this) {
+                currentIndex = index;
+                if (currentIndex == null) {
+                    currentIndex = compression == null ? TarArchiveIndex.load(tarFile) : TarArchiveIndex.load(tarFile, () -> openTarChannel(tarFile));
+                    index = currentIndex;
+                }
+            }
+        }
+        return currentIndex;
+    }
+
+    private BlockGzipIndex getBlocks() throws IOException {
+        var currentBlocks = blocks;
+        if (currentBlocks == null) {
+            synchronized (this) {
+                currentBlocks = blocks;
+                if (currentBlocks == null) {
+                    currentBlocks = BlockGzipIndex.load(tarFile);
+                    blocks = currentBlocks;
+                }
+            }
+        }
+        return currentBlocks;
+    }
+
+    /*
+     * Opens a channel on the uncompressed TAR data in the given file.
+     */
+    private SeekableByteChannel openTarChannel(Path file) throws IOException {
+        return compression == null ? Files.newByteChannel(file) : BlockGzipChannel.open(file);
     }
 
     @Override
     public void unarchiveTo(Path stagingDir) {
-        try (var tar = new TarFile(tarFile.toFile())) {
-            var entries = tar.getEntries();
+        unarchiveTo(stagingDir, path -> true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The headers are read from the archive itself rather than from the {@link TarArchiveIndex}, so that every entry is checked for Zip Slip. The directories are created first, after which the
+     * files are extracted from their data offsets by a {@link ParallelExtractor}.
+     */
+    @Override
+    public void unarchiveTo(Path stagingDir, Predicate<String> selected) {
+        try {
+            List<TarArchiveEntry> entries;
+            try (var tar = new TarFile(openTarChannel(tarFile))) {
+                entries = tar.getEntries();
+            }
             for (var entry : entries) {
                 // prevent extracting anything in case of a Zip Slip
                 var filePath = stagingDir.resolve(entry.getName());
@@ -84,18 +297,38 @@ public class TarArchive implements Archive {
                     throw new IOException(format("Detected Zip Slip: {0} in {1}", entry.getName(), tarFile));
                 }
             }
+            var filesToExtract = new ArrayList<TarArchiveEntry>();
+            Path lastParent = null;
             for (var entry : entries) {
                 var filePath = stagingDir.resolve(entry.getName());
-                if (filePath.normalize().startsWith(stagingDir)) { // keep CodeQL happy
+                if (filePath.normalize().startsWith(stagingDir) && !ArchiveManifest.isManifest(entry.getName()) && selected.test(getPath(entry))) { // keep CodeQL happy
                     if (entry.isDirectory()) {
                         Files.createDirectories(filePath);
                     }
                     else {
-                        Files.createDirectories(filePath.getParent());
-                        try (var outputStream = Files.newOutputStream(filePath)) {
-                            IOUtils.copy(tar.getInputStream(entry), outputStream);
+                        if (!filePath.getParent().equals(lastParent)) {
+                            lastParent = Files.createDirectories(filePath.getParent());
                         }
+                        filesToExtract.add(entry);
+                    }
+                }
+            }
+            var blocksOfArchive = compression == null ? null : getBlocks();
+            try (var lease = readerPool.acquire(tarFile, file -> FileChannel.open(file, StandardOpenOption.READ));
+                 var extractor = new ParallelExtractor(extractionThreads)) {
+                // One decoder per extracting thread, so that small entries that share a block do not each decompress it again. Not closed, because the channel on the archive is owned by
+                // the lease.
+                var decoders = ThreadLocal.withInitial(() -> new BlockGzipChannel(lease.get(), blocksOfArchive, () -> {
+                }));
+                try {
+                    for (var entry : filesToExtract) {
+                        extractor.extract(stagingDir.resolve(entry.getName()), entry.getSize(), out -> copyEntryData(lease.get(), decoders, entry, out));
                     }
+                    extractor.await();
+                }
+                finally {
+                    // The extracting threads end with the extractor, but the calling thread may also have extracted files
+                    decoders.remove();
                 }
             }
         }
@@ -104,61 +337,186 @@ public class TarArchive implements Archive {
         }
     }
 
+    private long copyEntryData(FileChannel channel, ThreadLocal<BlockGzipChannel> decoders, TarArchiveEntry entry, FileChannel out) throws IOException {
+        if (compression == null) {
+            return ParallelExtractor.transfer(channel, entry.getDataOffset(), entry.getSize(), out);
+        }
+        var uncompressed = decoders.get();
+        uncompressed.position(entry.getDataOffset());
+        return ParallelExtractor.transfer(uncompressed, entry.getSize(), out);
+    }
+
+    private static String getPath(TarArchiveEntry entry) {
+        var name = entry.getName();
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
     @Override
-    @SneakyThrows
     public void archiveFrom(Path stagingDir) {
-        Path backupFile = null;
-        if (Files.exists(tarFile)) {
-            backupFile = tarFile.resolveSibling(tarFile.getFileName().toString() + ".bak");
-            Files.move(tarFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
-        }
+        write(stagingDir, null);
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entries that are carried over are copied from the existing archive as they are, without extracting them.
+     */
+    @Override
+    public void mergeFrom(Path stagingDir, Predicate<String> replaced) {
+        write(stagingDir, replaced);
+    }
+
+    /*
+     * Writes the staging directory to the archive. If replaced is not null, the entries of the existing archive that are not replaced are copied to the new archive first. The new archive and its
+     * indexes are written to temporary files next to the existing ones and then moved into their place, so that readers keep using the existing archive until the new one is complete.
+     */
+    @SneakyThrows
+    private void write(Path stagingDir, Predicate<String> replaced) {
+        var tempFile = Files.createTempFile(tarFile.getParent(), tarFile.getFileName() + ".", ".tmp");
+        var executor = compression == null ? null : Executors.newFixedThreadPool(compression.threads());
         try {
-            Stream<Path> emptyFileStream = Stream.empty();
-            try (var outputStream = Files.newOutputStream(tarFile);
+            BlockGzipOutputStream blockOutput = null;
+            try (var outputStream = Files.newOutputStream(tempFile);
                  var bufferedOutputStream = new BufferedOutputStream(outputStream);
-                 var tarOutput = new TarArchiveOutputStream(bufferedOutputStream);
-                 var files = stagingDir.toFile().exists()
-                     ? Files.walk(stagingDir)
-                     : emptyFileStream // supports LayerManager.newTopLayer() in case of an empty staging directory
+                 var archiveOutputStream = executor == null ? bufferedOutputStream : new BlockGzipOutputStream(bufferedOutputStream, compression, executor);
+                 var tarOutput = new TarArchiveOutputStream(archiveOutputStream)
             ) {
+                if (archiveOutputStream instanceof BlockGzipOutputStream blockGzipOutputStream) {
+                    blockOutput = blockGzipOutputStream;
+                }
                 tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-                for (var fileToArchive : files.toList()) {
-                    if (!fileToArchive.equals(stagingDir)) {
-                        if (Files.isSymbolicLink(fileToArchive)) {
-                            continue; // skip symbolic links
-                        }
-                        var regularFile = Files.isRegularFile(fileToArchive);
-                        var entry = new TarArchiveEntry(fileToArchive, stagingDir.relativize(fileToArchive) + (regularFile ? "" : "/"));
-                        if (regularFile) {
-                            entry.setSize(fileToArchive.toFile().length());
-                        } else {
-                            entry.setSize(0);
-                        }
-                        tarOutput.putArchiveEntry(entry);
-                        if (regularFile) {
-                            try (var fileInputStream = new FileInputStream(fileToArchive.toFile())) {
-                                IOUtils.copy(fileInputStream, tarOutput);
-                            }
-                        }
-                        tarOutput.closeArchiveEntry();
-                    }
+                var manifest = new ArchiveManifest.Builder();
+                if (replaced != null && Files.exists(tarFile)) {
+                    copyEntries(tarFile, tarOutput, replaced.negate(), manifest);
                 }
+                try (var prefetcher = new TarEntryPrefetcher(stagingDir, readerThreads, prefetched -> addEntry(tarOutput, prefetched, manifest))) {
+                    StagingDirWalker.walk(stagingDir, prefetcher::add);
+                    prefetcher.flush();
+                }
+                // The checksums are only known once the files have been written, so the manifest is the last entry; it is found through the index
+                addManifest(tarOutput, manifest.build());
+            }
+            BlockGzipIndex newBlocks = null;
+            if (blockOutput != null) {
+                newBlocks = BlockGzipIndex.create(tempFile, compression.blockSize(), blockOutput.getUncompressedSize(), blockOutput.getBlockOffsets());
+            }
+            // Build the index while the headers are likely still in the page cache, so that the first read does not have to scan the archive
+            var newIndex = compression == null ? TarArchiveIndex.build(tempFile) : TarArchiveIndex.build(tempFile, () -> openTarChannel(tempFile));
+            replaceArchive(tempFile, newIndex, newBlocks);
+        }
+        catch (Exception e) {
+            deleteTempFiles(tempFile);
+            throw e;
+        }
+        finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /*
+     * Moves the newly written archive and its indexes into place. A move keeps the size and modification time of a file, so the indexes still match the archive afterward.
+     */
+    private void replaceArchive(Path tempFile, TarArchiveIndex newIndex, BlockGzipIndex newBlocks) throws IOException {
+        swapLock.writeLock().lock();
+        try {
+            Files.move(tempFile, tarFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moveSidecar(TarArchiveIndex.getSidecar(tempFile), TarArchiveIndex.getSidecar(tarFile));
+            if (compression != null) {
+                moveSidecar(BlockGzipIndex.getSidecar(tempFile), BlockGzipIndex.getSidecar(tarFile));
             }
+            index = newIndex;
+            blocks = newBlocks;
             archived = true;
-            if (backupFile != null) {
-                try {
-                    Files.delete(backupFile);
-                } catch (Exception cleanupEx) {
-                    log.warn("Could not delete backup file {} after archiving {}: {}", backupFile, tarFile, cleanupEx.toString());
+            // Channels that were opened on the replaced archive are closed when their last lease is returned
+            readerPool.invalidate(tarFile);
+        }
+        finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Failing to move a sidecar is not fatal: a sidecar that does not match the archive is rebuilt when it is loaded.
+     */
+    private static void moveSidecar(Path from, Path to) {
+        try {
+            if (Files.exists(from)) {
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            else {
+                Files.deleteIfExists(to);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Could not move index {} to {}: {}", from, to, e.toString());
+        }
+    }
+
+    private static void deleteTempFiles(Path tempFile) {
+        try {
+            Files.deleteIfExists(tempFile);
+            TarArchiveIndex.delete(tempFile);
+            BlockGzipIndex.delete(tempFile);
+        }
+        catch (IOException e) {
+            log.warn("Could not delete temporary file {}: {}", tempFile, e.toString());
+        }
+    }
+
+    private static void addEntry(TarArchiveOutputStream tarOutput, TarEntryPrefetcher.PrefetchedEntry prefetched, ArchiveManifest.Builder manifest) throws IOException {
+        var entry = prefetched.entry();
+        if (entry == null) {
+            return;
+        }
+        tarOutput.putArchiveEntry(entry);
+        String sha256 = prefetched.sha256();
+        if (prefetched.content() != null) {
+            tarOutput.write(prefetched.content());
+        }
+        else if (entry.isFile()) {
+            // Too large to have been read ahead, so stream it from disk in large chunks
+            var digest = ArchiveManifest.newDigest();
+            try (var channel = FileChannel.open(prefetched.file(), StandardOpenOption.READ)) {
+                var buffer = ByteBuffer.allocate(LARGE_FILE_BUFFER_SIZE);
+                while (channel.read(buffer.clear()) != -1) {
+                    tarOutput.write(buffer.array(), 0, buffer.position());
+                    digest.update(buffer.array(), 0, buffer.position());
                 }
             }
+            sha256 = HexFormat.of().formatHex(digest.digest());
         }
-        catch (Exception e) {
-            if (backupFile != null) {
-                Files.move(backupFile, tarFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        tarOutput.closeArchiveEntry();
+        manifest.add(entry.getName(), entry.isDirectory() ? Item.Type.Directory : Item.Type.File, entry.getSize(), sha256);
+    }
+
+    private static void addManifest(TarArchiveOutputStream tarOutput, ArchiveManifest manifest) throws IOException {
+        var content = manifest.toByteArray();
+        var entry = new TarArchiveEntry(ArchiveManifest.NAME);
+        entry.setSize(content.length);
+        tarOutput.putArchiveEntry(entry);
+        tarOutput.write(content);
+        tarOutput.closeArchiveEntry();
+    }
+
+    private void copyEntries(Path sourceFile, TarArchiveOutputStream tarOutput, Predicate<String> selected, ArchiveManifest.Builder manifest) throws IOException {
+        try (var source = new TarFile(openTarChannel(sourceFile))) {
+            for (var entry : source.getEntries()) {
+                if (!ArchiveManifest.isManifest(entry.getName()) && selected.test(getPath(entry))) {
+                    tarOutput.putArchiveEntry(entry);
+                    String sha256 = null;
+                    if (!entry.isDirectory()) {
+                        var digest = ArchiveManifest.newDigest();
+                        try (var inputStream = new DigestInputStream(source.getInputStream(entry), digest)) {
+                            IOUtils.copy(inputStream, tarOutput);
+                        }
+                        sha256 = HexFormat.of().formatHex(digest.digest());
+                    }
+                    tarOutput.closeArchiveEntry();
+                    manifest.add(entry.getName(), entry.isDirectory() ? Item.Type.Directory : Item.Type.File, entry.getSize(), sha256);
+                }
             }
-            throw e;
         }
     }
 
@@ -170,18 +528,35 @@ public class TarArchive implements Archive {
     @Override
     @SneakyThrows
     public boolean fileExists(String filePath) {
-        try (var tar = new TarFile(tarFile.toFile())) {
-            return tar.getEntries().stream().anyMatch(e ->
-                e.getName().equals(filePath)
-            );
-        }
-        catch (NoSuchFileException | FileNotFoundException e) {
+        if (Files.notExists(tarFile) || ArchiveManifest.isManifest(filePath)) {
             return false;
         }
+        return getIndex().contains(filePath);
+    }
+
+    @Override
+    public Iterator<Item> listAllItems() throws IOException {
+        var items = getIndex().getEntries().stream()
+            .filter(entry -> !ArchiveManifest.isManifest(entry.name()))
+            .map(entry -> {
+                // Remove trailing slash from directory names
+                var name = entry.name();
+                if (entry.directory() && name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                return new Item(name, entry.directory() ? Item.Type.Directory : Item.Type.File);
+            });
+        // The root of the archive is implicitly present in every archive
+        return Stream.concat(Stream.of(new Item("", Item.Type.Directory)), items).iterator();
     }
 
     @Override
-    public Iterator<Item> listAllItems() throws IOException{
-        return new TarArchiveItemIterator(tarFile);
+    public Optional<ArchiveManifest> getManifest() throws IOException {
+        if (getIndex().getEntry(ArchiveManifest.NAME).isEmpty()) {
+            return Optional.empty();
+        }
+        try (var inputStream = readFile(ArchiveManifest.NAME)) {
+            return Optional.of(ArchiveManifest.read(inputStream));
+        }
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.commons.io.function.IOSupplier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An index of the entries in a TAR archive, mapping each entry name to the offset and size of its data in the archive. With the index, an entry can be read by seeking straight to its data,
+ * instead of scanning all the headers in the archive first. The index is stored in a sidecar file next to the archive (the name of the archive with the suffix {@value #SUFFIX}).
+ */
+@Slf4j
+class TarArchiveIndex {
+    static final String SUFFIX = ".idx";
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * An entry in the archive.
+     *
+     * @param name       the name of the entry, as stored in the archive (directories have a trailing slash)
+     * @param dataOffset the offset of the data of the entry from the start of the archive
+     * @param size       the size of the data in bytes
+     * @param directory  whether the entry is a directory
+     */
+    record Entry(String name, long dataOffset, long size, boolean directory) {
+    }
+
+    // Identify the archive the index was built from, so that a stale sidecar is detected
+    private final long archiveSize;
+    private final long archiveLastModified;
+
+    private final Map<String, Entry> entries;
+
+    private TarArchiveIndex(long archiveSize, long archiveLastModified, Map<String, Entry> entries) {
+        this.archiveSize = archiveSize;
+        this.archiveLastModified = archiveLastModified;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Returns the index for the given archive. The sidecar file is used if it exists and matches the archive; otherwise the index is built by scanning the archive and the sidecar is
+     * (re)written.
+     *
+     * @param tarFile the archive
+     * @return the index
+     * @throws IOException if the archive cannot be read
+     */
+    static TarArchiveIndex load(@NonNull Path tarFile) throws IOException {
+        return load(tarFile, () -> Files.newByteChannel(tarFile));
+    }
+
+    /**
+     * Returns the index for the given archive, reading the uncompressed TAR data from the given channel if the index has to be built. This is used for compressed archives, for which the offsets
+     * in the index are offsets in the uncompressed data.
+     *
+     * @param tarFile    the archive file, next to which the sidecar file is stored
+     * @param tarChannel opens a channel on the uncompressed TAR data
+     * @return the index
+     * @throws IOException if the archive cannot be read
+     */
+    static TarArchiveIndex load(@NonNull Path tarFile, @NonNull IOSupplier<SeekableByteChannel> tarChannel) throws IOException {
+        var sidecar = getSidecar(tarFile);
+        if (Files.exists(sidecar)) {
+            try {
+                var index = readSidecar(sidecar);
+                if (index.matches(tarFile)) {
+                    return index;
+                }
+                log.debug("Index {} is out of date, rebuilding it", sidecar);
+            }
+            catch (IOException e) {
+                log.warn("Could not read index {}, rebuilding it: {}", sidecar, e.toString());
+            }
+        }
+        return build(tarFile, tarChannel);
+    }
+
+    /**
+     * Builds the index by scanning the headers of the archive and writes it to the sidecar file. Failing to write the sidecar is not fatal, as the index can always be rebuilt.
+     *
+     * @param tarFile the archive
+     * @return the index
+     * @throws IOException if the archive cannot be read
+     */
+    static TarArchiveIndex build(@NonNull Path tarFile) throws IOException {
+        return build(tarFile, () -> Files.newByteChannel(tarFile));
+    }
+
+    /**
+     * Builds the index by scanning the headers of the uncompressed TAR data read from the given channel, and writes it to the sidecar file of the archive file.
+     *
+     * @param tarFile    the archive file, next to which the sidecar file is stored
+     * @param tarChannel opens a channel on the uncompressed TAR data
+     * @return the index
+     * @throws IOException if the archive cannot be read
+     */
+    static TarArchiveIndex build(@NonNull Path tarFile, @NonNull IOSupplier<SeekableByteChannel> tarChannel) throws IOException {
+        var archiveSize = Files.size(tarFile);
+        var archiveLastModified = Files.getLastModifiedTime(tarFile).toMillis();
+        var entries = new LinkedHashMap<String, Entry>();
+        try (var tar = new TarFile(tarChannel.get())) {
+            for (var entry : tar.getEntries()) {
+                entries.put(entry.getName(), new Entry(entry.getName(), entry.getDataOffset(), entry.getSize(), entry.isDirectory()));
+            }
+        }
+        var index = new TarArchiveIndex(archiveSize, archiveLastModified, entries);
+        try {
+            index.writeSidecar(getSidecar(tarFile));
+        }
+        catch (IOException e) {
+            log.warn("Could not write index for {}: {}", tarFile, e.toString());
+        }
+        return index;
+    }
+
+    /**
+     * Deletes the sidecar file of the given archive, if it exists.
+     *
+     * @param tarFile the archive
+     * @throws IOException if the sidecar exists but cannot be deleted
+     */
+    static void delete(@NonNull Path tarFile) throws IOException {
+        Files.deleteIfExists(getSidecar(tarFile));
+    }
+
+    static Path getSidecar(Path tarFile) {
+        return tarFile.resolveSibling(tarFile.getFileName().toString() + SUFFIX);
+    }
+
+    Optional<Entry> getEntry(String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Returns the entries in the order in which they appear in the archive.
+     *
+     * @return the entries
+     */
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    private boolean matches(Path tarFile) throws IOException {
+        return archiveSize == Files.size(tarFile) && archiveLastModified == Files.getLastModifiedTime(tarFile).toMillis();
+    }
+
+    private static TarArchiveIndex readSidecar(Path sidecar) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            var version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported index format version " + version);
+            }
+            var archiveSize = in.readLong();
+            var archiveLastModified = in.readLong();
+            var count = in.readInt();
+            var entries = new LinkedHashMap<String, Entry>();
+            for (int i = 0; i < count; i++) {
+                var entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean());
+                entries.put(entry.name(), entry);
+            }
+            return new TarArchiveIndex(archiveSize, archiveLastModified, entries);
+        }
+    }
+
+    private void writeSidecar(Path sidecar) throws IOException {
+        // Write to a temporary file first, so that a reader never sees a partially written index. Its name is unique, so that writers of the same index do not get in each other's way.
+        var tempFile = Files.createTempFile(sidecar.getParent(), sidecar.getFileName() + ".", ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(archiveSize);
+                out.writeLong(archiveLastModified);
+                out.writeInt(entries.size());
+                for (var entry : entries.values()) {
+                    out.writeUTF(entry.name());
+                    out.writeLong(entry.dataOffset());
+                    out.writeLong(entry.size());
+                    out.writeBoolean(entry.directory());
+                }
+            }
+            Files.move(tempFile, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+}
@@ -16,22 +16,53 @@
 package nl.knaw.dans.layerstore;
 
 import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * An {@link ArchiveProvider} that creates and reads TAR archives.
  */
 @AllArgsConstructor
+@Slf4j
 public class TarArchiveProvider implements ArchiveProvider {
+    private static final Pattern LEFTOVER_TEMP_FILE = Pattern.compile("^\\d{13,}\\.tar\\..+\\.tmp(" + Pattern.quote(TarArchiveIndex.SUFFIX) + ")?$");
+
     private final Path archiveRoot;
 
+    private final ArchiveReaderPool readerPool;
+
+    private final int extractionThreads;
+
+    /**
+     * Creates a provider whose archives use the {@link ArchiveReaderPool#getSharedPool() shared reader pool}.
+     *
+     * @param archiveRoot the directory containing the archives
+     */
+    public TarArchiveProvider(Path archiveRoot) {
+        this(archiveRoot, ArchiveReaderPool.getSharedPool());
+    }
+
+    /**
+     * Creates a provider whose archives are extracted on the calling thread.
+     *
+     * @param archiveRoot the directory containing the archives
+     * @param readerPool  the pool for sharing open file channels between reads
+     */
+    public TarArchiveProvider(Path archiveRoot, ArchiveReaderPool readerPool) {
+        this(archiveRoot, readerPool, 1);
+    }
+
     @Override
     public Archive createArchive(long layerId, boolean exists) {
-        return new TarArchive(archiveRoot.resolve(layerId + ".tar"));
+        return new TarArchive(archiveRoot.resolve(layerId + ".tar"), readerPool, null, TarArchive.DEFAULT_READER_THREADS, extractionThreads);
     }
 
     @Override
@@ -57,10 +88,19 @@ public class TarArchiveProvider implements ArchiveProvider {
         if (Files.notExists(archiveRoot)) {
             Files.createDirectories(archiveRoot);
         }
+        deleteLeftoverTempFiles();
         try (var stream = Files.list(archiveRoot)) {
             var illegalFiles = stream
                 .filter(path -> {
                     var name = path.getFileName().toString();
+                    // Temporary files that were too young to be deleted
+                    if (LEFTOVER_TEMP_FILE.matcher(name).matches()) {
+                        return false;
+                    }
+                    // Entry indexes are stored next to the archives they belong to
+                    if (name.endsWith(".tar" + TarArchiveIndex.SUFFIX)) {
+                        name = name.substring(0, name.length() - TarArchiveIndex.SUFFIX.length());
+                    }
                     return !Files.isRegularFile(path) ||
                         !name.endsWith(".tar") ||
                         !name.substring(0, name.length() - ".tar".length()).matches("^\\d{13,}$");
@@ -73,4 +113,25 @@ public class TarArchiveProvider implements ArchiveProvider {
             }
         }
     }
+
+    /*
+     * Temporary files are left behind when the process stops while an archive or index is being written. They are named after the archive, with a random part and the suffix ".tmp", possibly
+     * followed by the suffix of an index.
+     */
+    private void deleteLeftoverTempFiles() throws IOException {
+        var modifiedBefore = FileTime.from(Instant.now().minus(LEFTOVER_TEMP_FILE_MIN_AGE));
+        try (var stream = Files.list(archiveRoot)) {
+            for (var path : stream.filter(path -> Files.isRegularFile(path) && LEFTOVER_TEMP_FILE.matcher(path.getFileName().toString()).matches()).toList()) {
+                try {
+                    if (Files.getLastModifiedTime(path).compareTo(modifiedBefore) < 0) {
+                        log.info("Deleting leftover temporary file {}", path);
+                        Files.deleteIfExists(path);
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    // Moved into place or deleted by its writer in the meantime
+                }
+            }
+        }
+    }
 }
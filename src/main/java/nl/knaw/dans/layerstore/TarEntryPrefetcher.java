@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the TAR entries for a sequence of files on a pool of reader threads, ahead of the thread that writes them to the archive. The readers create the entry for each file and read the
+ * content of the small ones, so that the latency of opening and reading many small files on network storage is overlapped with writing. The entries are passed to the writer in the order in
+ * which the files were added, so that the archive does not depend on the timing of the readers.
+ * <p>
+ * At most {@link #WINDOW_PER_THREAD} files per reader thread are prepared ahead of the writer, and only files of at most {@link #MAX_PREFETCHED_FILE_SIZE} bytes are read into memory, which bounds
+ * the memory used for buffering. Larger files are left to the writer, to be streamed from disk.
+ */
+class TarEntryPrefetcher implements AutoCloseable {
+    static final int WINDOW_PER_THREAD = 8;
+
+    static final int MAX_PREFETCHED_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * An entry to write to the archive.
+     *
+     * @param file    the file in the staging directory
+     * @param entry   the TAR entry, or {@code null} if the file must be skipped
+     * @param content the content of the file if it has been read ahead, or {@code null} for directories and large files
+     * @param sha256  the checksum of the content for the {@link ArchiveManifest} if it has been read ahead, otherwise {@code null}
+     */
+    record PrefetchedEntry(Path file, TarArchiveEntry entry, byte[] content, String sha256) {
+    }
+
+    private final Path stagingDir;
+
+    private final IOConsumer<PrefetchedEntry> writer;
+
+    private final ExecutorService executor;
+
+    private final int window;
+
+    private final Deque<Future<PrefetchedEntry>> pending = new ArrayDeque<>();
+
+    TarEntryPrefetcher(Path stagingDir, int readerThreads, IOConsumer<PrefetchedEntry> writer) {
+        if (readerThreads < 1) {
+            throw new IllegalArgumentException("readerThreads must be at least 1");
+        }
+        this.stagingDir = stagingDir;
+        this.writer = writer;
+        this.executor = Executors.newFixedThreadPool(readerThreads);
+        this.window = readerThreads * WINDOW_PER_THREAD;
+    }
+
+    /**
+     * Adds a file to prepare. If the window of files being prepared is full, the oldest entry is first passed to the writer.
+     *
+     * @param file       the file in the staging directory
+     * @param attributes the attributes of the file, not following symbolic links
+     * @throws IOException if a file could not be read, or the writer throws
+     */
+    void add(Path file, BasicFileAttributes attributes) throws IOException {
+        if (pending.size() >= window) {
+            writeNext();
+        }
+        pending.add(executor.submit(() -> prepare(file, attributes)));
+    }
+
+    /**
+     * Passes the remaining entries to the writer.
+     *
+     * @throws IOException if a file could not be read, or the writer throws
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        PrefetchedEntry next;
+        try {
+            next = pending.remove().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading files in " + stagingDir);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Could not read files in " + stagingDir, e.getCause());
+        }
+        writer.accept(next);
+    }
+
+    private PrefetchedEntry prepare(Path file, BasicFileAttributes attributes) throws IOException {
+        if (attributes.isSymbolicLink()) {
+            return new PrefetchedEntry(file, null, null, null); // skip symbolic links
+        }
+        var regularFile = attributes.isRegularFile();
+        // The entry reads the owner and permissions of the file, which are not part of the basic attributes
+        var entry = new TarArchiveEntry(file, stagingDir.relativize(file) + (regularFile ? "" : "/"), LinkOption.NOFOLLOW_LINKS);
+        if (!regularFile) {
+            entry.setSize(0);
+            return new PrefetchedEntry(file, entry, null, null);
+        }
+        var size = attributes.size();
+        entry.setSize(size);
+        if (size > MAX_PREFETCHED_FILE_SIZE) {
+            return new PrefetchedEntry(file, entry, null, null);
+        }
+        var content = Files.readAllBytes(file);
+        return new PrefetchedEntry(file, entry, content, HexFormat.of().formatHex(ArchiveManifest.newDigest().digest(content)));
+    }
+
+    @Override
+    public void close() {
+        pending.forEach(future -> future.cancel(true));
+        executor.shutdownNow();
+    }
+}
@@ -17,68 +17,197 @@ package nl.knaw.dans.layerstore;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Iterator;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
 
 import static java.text.MessageFormat.format;
 
 /**
- * Implementation of {@link Archive} for ZIP archives.
+ * Implementation of {@link Archive} for ZIP archives. The parsed ZIP files are shared between reads through an {@link ArchiveReaderPool}. Entries can optionally be compressed on several threads
+ * when the archive is created, and a {@link ZipEntryCompressionPolicy} decides for each file whether it is compressed or stored as-is.
  */
 public class ZipArchive implements Archive {
     private static final Logger log = LoggerFactory.getLogger(ZipArchive.class);
     @NonNull
     private final Path zipFile;
 
+    @NonNull
+    private final ArchiveReaderPool readerPool;
+
+    private final int compressionThreads;
+
+    private final Path scratchDir;
+
+    @NonNull
+    private final ZipEntryCompressionPolicy compressionPolicy;
+
+    private final int extractionThreads;
+
     private boolean archived;
 
     public ZipArchive(Path zipFile) {
+        this(zipFile, ArchiveReaderPool.getSharedPool());
+    }
+
+    public ZipArchive(Path zipFile, @NonNull ArchiveReaderPool readerPool) {
+        this(zipFile, readerPool, 1, null);
+    }
+
+    /**
+     * Creates a ZIP archive that compresses entries on several threads when it is archived, using {@link ParallelScatterZipCreator}. Each thread first writes its compressed entries to a
+     * scatter file in the scratch directory; these are then appended to the archive in order. The scratch directory therefore needs room for about the compressed size of the layer.
+     *
+     * @param zipFile            the ZIP file
+     * @param readerPool         the pool for sharing open ZIP files between reads
+     * @param compressionThreads the number of threads to compress entries on; 1 compresses on the calling thread
+     * @param scratchDir         the directory for scatter files, or {@code null} for the default temporary-file directory
+     */
+    public ZipArchive(Path zipFile, @NonNull ArchiveReaderPool readerPool, int compressionThreads, Path scratchDir) {
+        this(zipFile, readerPool, compressionThreads, scratchDir, ZipEntryCompressionPolicy.alwaysDeflate());
+    }
+
+    /**
+     * Creates a ZIP archive that chooses per file whether to compress it, using the given policy. See {@link #ZipArchive(Path, ArchiveReaderPool, int, Path)} for the other parameters.
+     *
+     * @param zipFile            the ZIP file
+     * @param readerPool         the pool for sharing open ZIP files between reads
+     * @param compressionThreads the number of threads to compress entries on; 1 compresses on the calling thread
+     * @param scratchDir         the directory for scatter files, or {@code null} for the default temporary-file directory
+     * @param compressionPolicy  the policy that decides which files are compressed
+     */
+    public ZipArchive(Path zipFile, @NonNull ArchiveReaderPool readerPool, int compressionThreads, Path scratchDir, @NonNull ZipEntryCompressionPolicy compressionPolicy) {
+        this(zipFile, readerPool, compressionThreads, scratchDir, compressionPolicy, 1);
+    }
+
+    /**
+     * Creates a ZIP archive that extracts files on the given number of threads when it is unarchived (see {@link ParallelExtractor}). See
+     * {@link #ZipArchive(Path, ArchiveReaderPool, int, Path, ZipEntryCompressionPolicy)} for the other parameters.
+     *
+     * @param zipFile            the ZIP file
+     * @param readerPool         the pool for sharing open ZIP files between reads
+     * @param compressionThreads the number of threads to compress entries on; 1 compresses on the calling thread
+     * @param scratchDir         the directory for scatter files, or {@code null} for the default temporary-file directory
+     * @param compressionPolicy  the policy that decides which files are compressed
+     * @param extractionThreads  the number of threads that extract files; 1 extracts them on the calling thread
+     */
+    public ZipArchive(Path zipFile, @NonNull ArchiveReaderPool readerPool, int compressionThreads, Path scratchDir, @NonNull ZipEntryCompressionPolicy compressionPolicy,
+        int extractionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("compressionThreads must be at least 1");
+        }
+        if (extractionThreads < 1) {
+            throw new IllegalArgumentException("extractionThreads must be at least 1");
+        }
         this.zipFile = zipFile;
+        this.readerPool = readerPool;
+        this.compressionThreads = compressionThreads;
+        this.scratchDir = scratchDir;
+        this.compressionPolicy = compressionPolicy;
+        this.extractionThreads = extractionThreads;
         this.archived = Files.exists(zipFile);
     }
 
+    static ZipFile openZipFile(Path zipFile) throws IOException {
+        return ZipFile.builder()
+            .setFile(zipFile.toFile())
+            .get();
+    }
+
     @Override
     public InputStream readFile(String filePath) throws IOException {
-        var zip = ZipFile.builder()
-            .setFile(this.zipFile.toFile())
-            .get();
-        var entry = Collections.list(zip.getEntries()).stream()
-            .filter(e -> e.getName().equals(filePath))
-            .findFirst().orElseThrow(() -> new IOException(format("{0} not found in {1}", filePath, zipFile.toFile())));
-        return new FilterInputStream(zip.getInputStream(entry)) {
-
-            @Override
-            @SneakyThrows
-            public void close() {
-                super.close();
-                // Close the backing stream.
-                zip.close();
+        var lease = readerPool.acquire(zipFile, ZipArchive::openZipFile);
+        try {
+            var zip = lease.get();
+            var entry = zip.getEntry(filePath);
+            if (entry == null) {
+                throw new IOException(format("{0} not found in {1}", filePath, zipFile.toFile()));
+            }
+            return new FilterInputStream(zip.getInputStream(entry)) {
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        // Return the zip file to the pool
+                        lease.close();
+                    }
+                }
+            };
+        }
+        catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> orderByEntryPosition(Collection<String> filePaths) throws IOException {
+        try (var lease = readerPool.acquire(zipFile, ZipArchive::openZipFile)) {
+            var positions = new HashMap<String, Integer>();
+            for (var entry : Collections.list(lease.get().getEntriesInPhysicalOrder())) {
+                positions.putIfAbsent(entry.getName(), positions.size());
             }
-        };
+            return filePaths.stream()
+                .sorted(Comparator.comparingInt(filePath -> positions.getOrDefault(filePath, Integer.MAX_VALUE)))
+                .toList();
+        }
     }
 
     @Override
     public void unarchiveTo(Path stagingDir) {
-        try (var zip = ZipFile.builder().setFile(this.zipFile.toFile()).get()) {
-            var entries = Collections.list(zip.getEntries());
+        unarchiveTo(stagingDir, path -> true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The directories are created first, after which the files are extracted by a {@link ParallelExtractor}, in the order in which they are stored. Stored entries are copied directly from the
+     * archive file.
+     */
+    @Override
+    public void unarchiveTo(Path stagingDir, Predicate<String> selected) {
+        try (var zip = ZipFile.builder().setFile(this.zipFile.toFile()).get();
+             var channel = FileChannel.open(zipFile, StandardOpenOption.READ)) {
+            var entries = Collections.list(zip.getEntriesInPhysicalOrder());
             for (var entry : entries) {
                 // prevent extracting anything in case of a Zip Slip
                 var filePath = stagingDir.resolve(entry.getName());
@@ -86,78 +215,250 @@ public class ZipArchive implements Archive {
                     throw new IOException(format("Detected Zip Slip: {0} in {1}", entry.getName(), zipFile));
                 }
             }
+            var filesToExtract = new ArrayList<ZipArchiveEntry>();
+            Path lastParent = null;
             for (var entry : entries) {
                 var filePath = stagingDir.resolve(entry.getName());
-                if (filePath.normalize().startsWith(stagingDir)) { // keep CodeQL happy
+                if (filePath.normalize().startsWith(stagingDir) && !ArchiveManifest.isManifest(entry.getName()) && selected.test(getPath(entry))) { // keep CodeQL happy
                     if (entry.isDirectory()) {
                         Files.createDirectories(filePath);
                     }
                     else {
-                        Files.createDirectories(filePath.getParent());
-                        try (var outputStream = Files.newOutputStream(filePath)) {
-                            IOUtils.copy(zip.getInputStream(entry), outputStream);
+                        if (!filePath.getParent().equals(lastParent)) {
+                            lastParent = Files.createDirectories(filePath.getParent());
                         }
+                        filesToExtract.add(entry);
                     }
                 }
             }
+            try (var extractor = new ParallelExtractor(extractionThreads)) {
+                for (var entry : filesToExtract) {
+                    extractor.extract(stagingDir.resolve(entry.getName()), entry.getSize(), out -> copyEntryData(zip, channel, entry, out));
+                }
+                extractor.await();
+            }
         }
         catch (IOException e) {
             throw new RuntimeException("Could not unarchive " + zipFile.toFile(), e);
         }
     }
 
+    private static long copyEntryData(ZipFile zip, FileChannel channel, ZipArchiveEntry entry, FileChannel out) throws IOException {
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return ParallelExtractor.transfer(channel, entry.getDataOffset(), entry.getSize(), out);
+        }
+        try (var inputStream = zip.getInputStream(entry)) {
+            return ParallelExtractor.transfer(Channels.newChannel(inputStream), entry.getSize(), out);
+        }
+    }
+
+    private static String getPath(ZipArchiveEntry entry) {
+        var name = entry.getName();
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
     @Override
-    @SneakyThrows
     public void archiveFrom(Path stagingDir) {
-        Path backupFile = null;
-        if (Files.exists(zipFile)) {
-            backupFile = zipFile.resolveSibling(zipFile.getFileName().toString() + ".bak");
-            Files.move(zipFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
-        }
+        write(stagingDir, null);
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entries that are carried over are copied from the existing archive in their compressed form, without extracting them.
+     */
+    @Override
+    public void mergeFrom(Path stagingDir, Predicate<String> replaced) {
+        write(stagingDir, replaced);
+    }
+
+    /*
+     * Writes the staging directory to the archive. If replaced is not null, the entries of the existing archive that are not replaced are copied to the new archive first. The new archive is
+     * written to a temporary file next to the existing one and then moved into its place, so that readers keep using the existing archive until the new one is complete.
+     */
+    @SneakyThrows
+    private void write(Path stagingDir, Predicate<String> replaced) {
+        var tempFile = Files.createTempFile(zipFile.getParent(), zipFile.getFileName() + ".", ".tmp");
         try {
-            Stream<Path> emptyFileStream = Stream.empty();
-            try (var outputStream = Files.newOutputStream(zipFile);
-                 var bufferedOutputStream = new BufferedOutputStream(outputStream);
-                 var zipOutput = new ZipArchiveOutputStream(bufferedOutputStream);
-                 var files = stagingDir.toFile().exists()
-                     ? Files.walk(stagingDir)
-                     : emptyFileStream // supports LayerManager.newTopLayer() in case of an empty staging directory
-            ) {
-                for (var fileToArchive : files.toList()) {
-                    if (!fileToArchive.equals(stagingDir)) {
-                        var entry = new ZipArchiveEntry(fileToArchive, stagingDir.relativize(fileToArchive).toString());
-                        var regularFile = Files.isRegularFile(fileToArchive);
-                        if (regularFile) {
-                            entry.setSize(fileToArchive.toFile().length());
-                        }
-                        zipOutput.putArchiveEntry(entry);
-                        if (regularFile) {
-                            try (var fileInputStream = new FileInputStream(fileToArchive.toFile())) {
-                                IOUtils.copy(fileInputStream, zipOutput);
-                            }
-                        }
-                        zipOutput.closeArchiveEntry();
-                    }
+            // Writing to the file rather than to a stream lets stored entries be written without knowing their CRC in advance
+            try (var zipOutput = new ZipArchiveOutputStream(tempFile)) {
+                var manifest = new ArchiveManifest.Builder();
+                if (replaced != null && Files.exists(zipFile)) {
+                    copyEntries(zipFile, zipOutput, replaced.negate(), manifest);
                 }
-            }
-            archived = true;
-            if (backupFile != null) {
-                try {
-                    Files.delete(backupFile);
-                } catch (Exception cleanupEx) {
-                    log.warn("Could not delete backup file {} after archiving {}: {}", backupFile, zipFile, cleanupEx.toString());
+                if (compressionThreads > 1) {
+                    addEntriesInParallel(zipOutput, stagingDir, manifest);
+                }
+                else {
+                    addEntries(zipOutput, stagingDir, manifest);
                 }
+                // The checksums are only known once the files have been written, so the manifest is the last entry; it is found through the central directory
+                addManifest(zipOutput, manifest.build());
             }
+            Files.move(tempFile, zipFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            archived = true;
+            // Readers that were opened on the replaced archive are closed when their last lease is returned
+            readerPool.invalidate(zipFile);
         }
         catch (Exception e) {
-            if (backupFile != null) {
-                Files.move(backupFile, zipFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.deleteIfExists(tempFile);
+            }
+            catch (IOException cleanupEx) {
+                log.warn("Could not delete temporary file {} after failing to archive {}: {}", tempFile, zipFile, cleanupEx.toString());
             }
             throw e;
         }
     }
 
+    private void addEntries(ZipArchiveOutputStream zipOutput, Path stagingDir, ArchiveManifest.Builder manifest) throws IOException {
+        StagingDirWalker.walk(stagingDir, (fileToArchive, attributes) -> {
+            attributes = followSymbolicLink(fileToArchive, attributes);
+            var entry = createEntry(stagingDir, fileToArchive, attributes);
+            if (attributes.isRegularFile()) {
+                entry.setMethod(compressionPolicy.chooseMethod(fileToArchive, attributes.size()));
+            }
+            zipOutput.putArchiveEntry(entry);
+            String sha256 = null;
+            if (attributes.isRegularFile()) {
+                var digest = ArchiveManifest.newDigest();
+                try (var fileInputStream = new DigestInputStream(new FileInputStream(fileToArchive.toFile()), digest)) {
+                    IOUtils.copy(fileInputStream, zipOutput);
+                }
+                sha256 = HexFormat.of().formatHex(digest.digest());
+            }
+            zipOutput.closeArchiveEntry();
+            manifest.add(entry.getName(), getType(attributes), attributes.isRegularFile() ? attributes.size() : 0, sha256);
+        });
+    }
+
+    private static Item.Type getType(BasicFileAttributes attributes) {
+        return attributes.isDirectory() ? Item.Type.Directory : Item.Type.File;
+    }
+
+    private static void addManifest(ZipArchiveOutputStream zipOutput, ArchiveManifest manifest) throws IOException {
+        var entry = new ZipArchiveEntry(ArchiveManifest.NAME);
+        entry.setMethod(ZipEntry.DEFLATED);
+        zipOutput.putArchiveEntry(entry);
+        zipOutput.write(manifest.toByteArray());
+        zipOutput.closeArchiveEntry();
+    }
+
+    /*
+     * Creates the same entry as new ZipArchiveEntry(file, name) would, but from the attributes that were read while walking the staging directory.
+     */
+    private static ZipArchiveEntry createEntry(Path stagingDir, Path file, BasicFileAttributes attributes) {
+        var name = stagingDir.relativize(file).toString();
+        var entry = new ZipArchiveEntry(attributes.isDirectory() ? name + "/" : name);
+        if (attributes.isRegularFile()) {
+            entry.setSize(attributes.size());
+        }
+        entry.setLastModifiedTime(attributes.lastModifiedTime());
+        entry.setLastAccessTime(attributes.lastAccessTime());
+        entry.setCreationTime(attributes.creationTime());
+        return entry;
+    }
+
+    /*
+     * Symbolic links are archived as the file or directory they point to.
+     */
+    private static BasicFileAttributes followSymbolicLink(Path file, BasicFileAttributes attributes) throws IOException {
+        return attributes.isSymbolicLink() ? Files.readAttributes(file, BasicFileAttributes.class) : attributes;
+    }
+
+    /*
+     * Compresses the entries on several threads, each into its own scatter file in the scratch directory, and then appends the compressed entries to the archive in their original order.
+     */
+    private void addEntriesInParallel(ZipArchiveOutputStream zipOutput, Path stagingDir, ArchiveManifest.Builder manifest) throws IOException {
+        var executor = Executors.newFixedThreadPool(compressionThreads);
+        try {
+            var zipCreator = new ParallelScatterZipCreator(executor, this::createScatterBackingStore);
+            StagingDirWalker.walk(stagingDir, (fileToArchive, attributes) -> {
+                attributes = followSymbolicLink(fileToArchive, attributes);
+                var entry = createEntry(stagingDir, fileToArchive, attributes);
+                // The checksum of a file is filled in when a compressing thread has read it
+                manifest.add(entry.getName(), getType(attributes), attributes.isRegularFile() ? attributes.size() : 0, null);
+                if (attributes.isRegularFile()) {
+                    entry.setMethod(compressionPolicy.chooseMethod(fileToArchive, attributes.size()));
+                    var path = getPath(entry);
+                    zipCreator.addArchiveEntry(entry, () -> openForArchiving(fileToArchive, sha256 -> manifest.setChecksum(path, sha256)));
+                }
+                else {
+                    entry.setMethod(ZipEntry.STORED);
+                    zipCreator.addArchiveEntry(entry, InputStream::nullInputStream);
+                }
+            });
+            zipCreator.writeTo(zipOutput);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing entries for " + zipFile);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Could not compress entries for " + zipFile, e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ScatterGatherBackingStore createScatterBackingStore() throws IOException {
+        var scatterFile = scratchDir == null
+            ? Files.createTempFile("zip-scatter-", ".tmp")
+            : Files.createTempFile(scratchDir, "zip-scatter-", ".tmp");
+        // The store deletes the file when it is closed
+        return new FileBasedScatterGatherBackingStore(scatterFile);
+    }
+
+    /*
+     * Opens a file for a compressing thread. The checksum of the content is passed to the consumer when the stream is closed after it has been read completely.
+     */
+    private static InputStream openForArchiving(Path file, Consumer<String> checksumConsumer) {
+        try {
+            var digest = ArchiveManifest.newDigest();
+            return new DigestInputStream(Files.newInputStream(file), digest) {
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    checksumConsumer.accept(HexFormat.of().formatHex(digest.digest()));
+                }
+            };
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        }
+    }
+
+    /*
+     * Copies the selected entries in their compressed form. Their checksums are taken from the manifest of the source archive, if it has one.
+     */
+    private void copyEntries(Path sourceFile, ZipArchiveOutputStream zipOutput, Predicate<String> selected, ArchiveManifest.Builder manifest) throws IOException {
+        try (var source = openZipFile(sourceFile)) {
+            var sourceManifest = readManifest(source);
+            for (var entry : Collections.list(source.getEntriesInPhysicalOrder())) {
+                if (!ArchiveManifest.isManifest(entry.getName()) && selected.test(getPath(entry))) {
+                    zipOutput.addRawArchiveEntry(entry, source.getRawInputStream(entry));
+                    var sha256 = sourceManifest.flatMap(m -> m.getEntry(getPath(entry))).map(ArchiveManifest.Entry::sha256).orElse(null);
+                    manifest.add(entry.getName(), entry.isDirectory() ? Item.Type.Directory : Item.Type.File, entry.isDirectory() ? 0 : entry.getSize(), sha256);
+                }
+            }
+        }
+    }
+
+    private static Optional<ArchiveManifest> readManifest(ZipFile zip) throws IOException {
+        var entry = zip.getEntry(ArchiveManifest.NAME);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        try (var inputStream = zip.getInputStream(entry)) {
+            return Optional.of(ArchiveManifest.read(inputStream));
+        }
+    }
+
     @Override
     public boolean isArchived() {
         return archived;
@@ -166,11 +467,8 @@ public class ZipArchive implements Archive {
     @Override
     @SneakyThrows
     public boolean fileExists(String filePath) {
-
-        try (var zip = ZipFile.builder().setFile(this.zipFile.toFile()).get()) {
-            return Collections.list(zip.getEntries()).stream().anyMatch(e ->
-                e.getName().equals(filePath)
-            );
+        try (var lease = readerPool.acquire(zipFile, ZipArchive::openZipFile)) {
+            return !ArchiveManifest.isManifest(filePath) && lease.get().getEntry(filePath) != null;
         }
         catch (NoSuchFileException | FileNotFoundException e) {
             return false;
@@ -179,6 +477,13 @@ public class ZipArchive implements Archive {
 
     @Override
     public Iterator<Item> listAllItems() throws IOException {
-        return new ZipArchiveItemIterator(zipFile);
+        return new ZipArchiveItemIterator(zipFile, readerPool);
+    }
+
+    @Override
+    public Optional<ArchiveManifest> getManifest() throws IOException {
+        try (var lease = readerPool.acquire(zipFile, ZipArchive::openZipFile)) {
+            return readManifest(lease.get());
+        }
     }
 }
@@ -21,12 +21,14 @@ import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
  * An iterator that iterates over the {@link Item}s in a zip archive.
  */
 public class ZipArchiveItemIterator implements Iterator<Item> {
+    private final ArchiveReaderPool.Lease<ZipFile> lease;
     private final Iterator<ZipArchiveEntry> entries;
     /**
      * The root item represents the root of the zip archive, and is implicitly present in every zip archive.
@@ -36,10 +38,18 @@ public class ZipArchiveItemIterator implements Iterator<Item> {
     private boolean rootReturned = false;
 
     public ZipArchiveItemIterator(@NonNull Path zipFile) throws IOException {
-        var zip = ZipFile.builder()
-            .setFile(zipFile.toFile())
-            .get();
-        entries = zip.getEntries().asIterator();
+        this(zipFile, ArchiveReaderPool.getSharedPool());
+    }
+
+    public ZipArchiveItemIterator(@NonNull Path zipFile, @NonNull ArchiveReaderPool readerPool) throws IOException {
+        lease = readerPool.acquire(zipFile, ZipArchive::openZipFile);
+        // The manifest entry is not an item of the layer
+        entries = Collections.list(lease.get().getEntries()).stream()
+            .filter(entry -> !ArchiveManifest.isManifest(entry.getName()))
+            .iterator();
+        if (!entries.hasNext()) {
+            lease.close();
+        }
     }
 
     @Override
@@ -57,6 +67,10 @@ public class ZipArchiveItemIterator implements Iterator<Item> {
             return rootItem;
         }
         var next = entries.next();
+        if (!entries.hasNext()) {
+            // Return the zip file to the pool
+            lease.close();
+        }
         return new Item(next.getName(),
             next.isDirectory() ? Item.Type.Directory : Item.Type.File);
     }
@@ -16,21 +16,83 @@
 package nl.knaw.dans.layerstore;
 
 import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * An {@link ArchiveProvider} that creates and reads ZIP archives.
  */
 @AllArgsConstructor
+@Slf4j
 public class ZipArchiveProvider implements ArchiveProvider {
+    private static final Pattern LEFTOVER_TEMP_FILE = Pattern.compile("^\\d{13,}\\.zip\\..+\\.tmp$");
+
     private final Path archiveRoot;
 
+    private final ArchiveReaderPool readerPool;
+
+    private final int compressionThreads;
+
+    private final Path scratchDir;
+
+    private final ZipEntryCompressionPolicy compressionPolicy;
+
+    private final int extractionThreads;
+
+    /**
+     * Creates a provider whose archives use the {@link ArchiveReaderPool#getSharedPool() shared reader pool}.
+     *
+     * @param archiveRoot the directory containing the archives
+     */
+    public ZipArchiveProvider(Path archiveRoot) {
+        this(archiveRoot, ArchiveReaderPool.getSharedPool());
+    }
+
+    /**
+     * Creates a provider whose archives are compressed on the calling thread.
+     *
+     * @param archiveRoot the directory containing the archives
+     * @param readerPool  the pool for sharing open ZIP files between reads
+     */
+    public ZipArchiveProvider(Path archiveRoot, ArchiveReaderPool readerPool) {
+        this(archiveRoot, readerPool, 1, null);
+    }
+
+    /**
+     * Creates a provider whose archives compress every file.
+     *
+     * @param archiveRoot        the directory containing the archives
+     * @param readerPool         the pool for sharing open ZIP files between reads
+     * @param compressionThreads the number of threads to compress entries on
+     * @param scratchDir         the directory for scatter files, or {@code null} for the default temporary-file directory
+     */
+    public ZipArchiveProvider(Path archiveRoot, ArchiveReaderPool readerPool, int compressionThreads, Path scratchDir) {
+        this(archiveRoot, readerPool, compressionThreads, scratchDir, ZipEntryCompressionPolicy.alwaysDeflate());
+    }
+
+    /**
+     * Creates a provider whose archives are extracted on the calling thread.
+     *
+     * @param archiveRoot        the directory containing the archives
+     * @param readerPool         the pool for sharing open ZIP files between reads
+     * @param compressionThreads the number of threads to compress entries on
+     * @param scratchDir         the directory for scatter files, or {@code null} for the default temporary-file directory
+     * @param compressionPolicy  the policy that decides which files are compressed
+     */
+    public ZipArchiveProvider(Path archiveRoot, ArchiveReaderPool readerPool, int compressionThreads, Path scratchDir, ZipEntryCompressionPolicy compressionPolicy) {
+        this(archiveRoot, readerPool, compressionThreads, scratchDir, compressionPolicy, 1);
+    }
+
     @Override
     public Archive createArchive(long layerId, boolean exists) {
-        return new ZipArchive(archiveRoot.resolve(layerId + ".zip"));
+        return new ZipArchive(archiveRoot.resolve(layerId + ".zip"), readerPool, compressionThreads, scratchDir, compressionPolicy, extractionThreads);
     }
 
     @Override
@@ -56,10 +118,15 @@ public class ZipArchiveProvider implements ArchiveProvider {
         if (java.nio.file.Files.notExists(archiveRoot)) {
             java.nio.file.Files.createDirectories(archiveRoot);
         }
+        deleteLeftoverTempFiles();
         try (var stream = java.nio.file.Files.list(archiveRoot)) {
             var illegalFiles = stream
                 .filter(path -> {
                     var name = path.getFileName().toString();
+                    // Temporary files that were too young to be deleted
+                    if (LEFTOVER_TEMP_FILE.matcher(name).matches()) {
+                        return false;
+                    }
                     return !java.nio.file.Files.isRegularFile(path) ||
                         !name.endsWith(".zip") ||
                         !name.substring(0, name.length() - ".zip".length()).matches("^\\d{13,}$");
@@ -72,4 +139,24 @@ public class ZipArchiveProvider implements ArchiveProvider {
             }
         }
     }
+
+    /*
+     * Temporary files are left behind when the process stops while an archive is being written. They are named after the archive, with a random part and the suffix ".tmp".
+     */
+    private void deleteLeftoverTempFiles() throws IOException {
+        var modifiedBefore = FileTime.from(Instant.now().minus(LEFTOVER_TEMP_FILE_MIN_AGE));
+        try (var stream = java.nio.file.Files.list(archiveRoot)) {
+            for (var path : stream.filter(path -> java.nio.file.Files.isRegularFile(path) && LEFTOVER_TEMP_FILE.matcher(path.getFileName().toString()).matches()).toList()) {
+                try {
+                    if (java.nio.file.Files.getLastModifiedTime(path).compareTo(modifiedBefore) < 0) {
+                        log.info("Deleting leftover temporary file {}", path);
+                        java.nio.file.Files.deleteIfExists(path);
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    // Moved into place or deleted by its writer in the meantime
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides per file whether a ZIP entry is compressed ({@link ZipEntry#DEFLATED}) or stored as-is ({@link ZipEntry#STORED}). Compressing data that is already compressed costs CPU time on
+ * archiving and on every read, without making the archive smaller. A file is stored if
+ * <ul>
+ *     <li>it is smaller than {@code minSizeToCompress} bytes, or</li>
+ *     <li>its extension is one of {@code storedExtensions} (compared case-insensitively, without the dot), or</li>
+ *     <li>the first {@code sampleSize} bytes do not deflate to less than {@code maxSampleRatio} times their size.</li>
+ * </ul>
+ * Otherwise, it is compressed. Since every entry of a ZIP file is compressed on its own and the central directory at the end of the file lists the offset of each entry, reading a file from the
+ * archive only decompresses that file, whichever method was chosen.
+ *
+ * @param storedExtensions  the extensions of files that are stored without sampling them
+ * @param minSizeToCompress the minimum size of a file to compress
+ * @param sampleSize        the number of bytes to sample; 0 disables sampling
+ * @param maxSampleRatio    the compressed-to-uncompressed ratio of the sample above which the file is stored
+ */
+public record ZipEntryCompressionPolicy(@NonNull Set<String> storedExtensions, long minSizeToCompress, int sampleSize, double maxSampleRatio) {
+    public static final int DEFAULT_MIN_SIZE_TO_COMPRESS = 256;
+
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    public static final double DEFAULT_MAX_SAMPLE_RATIO = 0.9;
+
+    /**
+     * Extensions of common formats that are compressed already.
+     */
+    public static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "7z", "bz2", "gz", "tgz", "xz", "zst", "zip", "rar", "jar", "war",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+        "jpg", "jpeg", "png", "gif", "webp", "heic", "jp2",
+        "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac",
+        "mp4", "m4v", "mov", "avi", "mkv", "webm", "ogv");
+
+    private static final ZipEntryCompressionPolicy ALWAYS_DEFLATE = new ZipEntryCompressionPolicy(Set.of(), 0, 0, 1.0);
+
+    public ZipEntryCompressionPolicy {
+        if (minSizeToCompress < 0) {
+            throw new IllegalArgumentException("minSizeToCompress must not be negative");
+        }
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("sampleSize must not be negative");
+        }
+        if (maxSampleRatio <= 0) {
+            throw new IllegalArgumentException("maxSampleRatio must be positive");
+        }
+        storedExtensions = storedExtensions.stream()
+            .map(extension -> extension.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Returns a policy that stores small files, files with one of the {@link #COMPRESSED_EXTENSIONS} and files of which the first {@value #DEFAULT_SAMPLE_SIZE} bytes compress to more than
+     * {@value #DEFAULT_MAX_SAMPLE_RATIO} of their size.
+     *
+     * @return the default policy
+     */
+    public static ZipEntryCompressionPolicy defaults() {
+        return new ZipEntryCompressionPolicy(COMPRESSED_EXTENSIONS, DEFAULT_MIN_SIZE_TO_COMPRESS, DEFAULT_SAMPLE_SIZE, DEFAULT_MAX_SAMPLE_RATIO);
+    }
+
+    /**
+     * Returns a policy that compresses every file.
+     *
+     * @return the policy
+     */
+    public static ZipEntryCompressionPolicy alwaysDeflate() {
+        return ALWAYS_DEFLATE;
+    }
+
+    /**
+     * Chooses the compression method for a regular file.
+     *
+     * @param file the file
+     * @param size the size of the file
+     * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @throws IOException if the file cannot be sampled
+     */
+    public int chooseMethod(Path file, long size) throws IOException {
+        if (size < minSizeToCompress || storedExtensions.contains(getExtension(file))) {
+            return ZipEntry.STORED;
+        }
+        if (sampleSize > 0 && size > 0 && sampleRatio(file) > maxSampleRatio) {
+            return ZipEntry.STORED;
+        }
+        return ZipEntry.DEFLATED;
+    }
+
+    private static String getExtension(Path file) {
+        var name = file.getFileName().toString();
+        var dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private double sampleRatio(Path file) throws IOException {
+        byte[] sample;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            sample = inputStream.readNBytes(sampleSize);
+        }
+        if (sample.length == 0) {
+            return 0;
+        }
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            var buffer = new byte[8192];
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(buffer);
+            }
+            return (double) compressedSize / sample.length;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+}
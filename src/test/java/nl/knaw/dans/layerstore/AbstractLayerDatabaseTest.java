@@ -17,7 +17,6 @@ package nl.knaw.dans.layerstore;
 
 import io.dropwizard.testing.junit5.DAOTestExtension;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
-import nl.knaw.dans.lib.util.PersistenceProviderImpl;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.extension.ExtendWith;
 
@@ -27,13 +26,15 @@ import static nl.knaw.dans.layerstore.Item.Type;
 public abstract class AbstractLayerDatabaseTest extends AbstractTestWithTestDir {
     protected final DAOTestExtension daoTestExtension = DAOTestExtension.newBuilder()
         .addEntityClass(ItemRecord.class)
+        .addEntityClass(ItemRecordContent.class)
+        .addEntityClass(LatestItemRecord.class)
         .build();
     protected LayerDatabase db;
 
     @BeforeEach
     public void setUp() throws Exception {
         super.setUp();
-        db = new LayerDatabaseImpl(new PersistenceProviderImpl<>(daoTestExtension.getSessionFactory(), ItemRecord.class));
+        db = new LayerDatabaseImpl(daoTestExtension.getSessionFactory());
     }
 
     protected ItemRecord addToDb(Long layerId, String path, Type type) {
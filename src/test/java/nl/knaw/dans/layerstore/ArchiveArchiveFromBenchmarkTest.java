@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the wall-clock time and peak heap usage of {@link Archive#archiveFrom(java.nio.file.Path)} for a layer with many small files, for TAR and ZIP archives. Only runs when the system
+ * property <code>layerstore.benchmarks</code> is set to <code>true</code>. The number of files can be set with <code>layerstore.benchmarks.files</code>; the default is 2 million, so make sure the
+ * file system has enough inodes.
+ */
+@Slf4j
+public class ArchiveArchiveFromBenchmarkTest extends AbstractTestWithTestDir {
+    private static final int NUMBER_OF_FILES = Integer.getInteger("layerstore.benchmarks.files", 2_000_000);
+
+    private static final int FILES_PER_DIRECTORY = 1_000;
+
+    @ParameterizedTest
+    @ValueSource(strings = { "tar", "zip" })
+    @EnabledIf("nl.knaw.dans.layerstore.TestConditions#benchmarksEnabled")
+    public void archiveFrom(String format) throws Exception {
+        createSyntheticLayer();
+        var archiveFile = testDir.resolve("test." + format);
+        var archive = "tar".equals(format) ? new TarArchive(archiveFile) : new ZipArchive(archiveFile);
+        var heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .toList();
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long start = System.nanoTime();
+        archive.archiveFrom(stagingDir);
+        long wallNanos = System.nanoTime() - start;
+        long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+
+        log.info("{}: {} files in {} ms, peak heap usage {} MiB, archive size {} bytes", format, NUMBER_OF_FILES, wallNanos / 1_000_000, peakHeap / (1024 * 1024), Files.size(archiveFile));
+        assertThat(archive.fileExists("dir0/file0.txt")).isTrue();
+    }
+
+    private void createSyntheticLayer() throws Exception {
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            var dir = stagingDir.resolve("dir" + (i / FILES_PER_DIRECTORY));
+            if (i % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectories(dir);
+            }
+            Files.writeString(dir.resolve("file" + i + ".txt"), "content of file " + i);
+        }
+    }
+}
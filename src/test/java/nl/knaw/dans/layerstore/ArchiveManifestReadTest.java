@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ArchiveManifestReadTest {
+
+    @Test
+    public void should_read_what_was_written() throws Exception {
+        var builder = new ArchiveManifest.Builder();
+        builder.add("path/", Item.Type.Directory, 0, null);
+        builder.add("path/file1", Item.Type.File, 13, DigestUtils.sha256Hex("file1 content"));
+        builder.add("file2", Item.Type.File, 7, null);
+
+        var manifest = ArchiveManifest.read(new ByteArrayInputStream(builder.build().toByteArray()));
+
+        assertThat(manifest.getEntries()).containsExactly(
+            new ArchiveManifest.Entry("path", Item.Type.Directory, 0, null),
+            new ArchiveManifest.Entry("path/file1", Item.Type.File, 13, DigestUtils.sha256Hex("file1 content")),
+            new ArchiveManifest.Entry("file2", Item.Type.File, 7, null));
+        assertThat(manifest.getTotalSize()).isEqualTo(20);
+        assertThat(manifest.listAllItems()).toIterable().extracting(Item::getPath)
+            .containsExactly("", "path", "path/file1", "file2");
+    }
+
+    @Test
+    public void should_set_checksum_of_entry_that_was_added_before() throws Exception {
+        var builder = new ArchiveManifest.Builder();
+        builder.add("file1", Item.Type.File, 13, null);
+        builder.setChecksum("file1", DigestUtils.sha256Hex("file1 content"));
+
+        assertThat(builder.build().getEntry("file1")).hasValueSatisfying(entry ->
+            assertThat(entry.sha256()).isEqualTo(DigestUtils.sha256Hex("file1 content")));
+    }
+
+    @Test
+    public void should_not_accept_item_with_name_of_manifest() {
+        var builder = new ArchiveManifest.Builder();
+
+        assertThatThrownBy(() -> builder.add(ArchiveManifest.NAME, Item.Type.File, 0, null))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("reserved");
+    }
+
+    @Test
+    public void should_reject_unknown_format_version() throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(99);
+            out.writeInt(0);
+        }
+
+        assertThatThrownBy(() -> ArchiveManifest.read(new ByteArrayInputStream(bytes.toByteArray())))
+            .isInstanceOf(IOException.class)
+            .hasMessage("Unsupported manifest format version 99");
+    }
+}
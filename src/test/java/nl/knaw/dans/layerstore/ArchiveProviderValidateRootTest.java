@@ -19,11 +19,19 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ArchiveProviderValidateRootTest extends AbstractTestWithTestDir {
 
+    private void createLeftoverTempFile(String name) throws IOException {
+        var path = Files.createFile(archiveRoot.resolve(name));
+        Files.setLastModifiedTime(path, FileTime.from(Instant.now().minus(ArchiveProvider.LEFTOVER_TEMP_FILE_MIN_AGE).minusSeconds(60)));
+    }
+
     @Test
     public void zip_archive_provider_should_throw_on_illegal_files() throws IOException {
         Files.createDirectories(archiveRoot);
@@ -95,6 +103,28 @@ public class ArchiveProviderValidateRootTest extends AbstractTestWithTestDir {
         provider.validateRoot();
     }
 
+    @Test
+    public void tar_archive_provider_should_pass_on_index_files() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar"));
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.idx"));
+        var provider = new TarArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+        assertThat(provider.listLayerIds()).containsExactly(1234567890123L);
+    }
+
+    @Test
+    public void tar_archive_provider_should_throw_on_index_file_with_invalid_name() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("illegal.tar.idx"));
+        var provider = new TarArchiveProvider(archiveRoot);
+
+        assertThatThrownBy(provider::validateRoot)
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("illegal.tar.idx");
+    }
+
     @Test
     public void zip_archive_provider_should_throw_on_closed_extension() throws IOException {
         Files.createDirectories(archiveRoot);
@@ -120,4 +150,116 @@ public class ArchiveProviderValidateRootTest extends AbstractTestWithTestDir {
             .hasMessageContaining("contains illegal files")
             .hasMessageContaining("1234567890123.tar.closed");
     }
+
+    @Test
+    public void block_compressed_tar_archive_provider_should_pass_on_index_files() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.gz"));
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.gz.idx"));
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.gz.blocks"));
+        var provider = new BlockCompressedTarArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+        assertThat(provider.listLayerIds()).containsExactly(1234567890123L);
+    }
+
+    @Test
+    public void block_compressed_tar_archive_provider_should_throw_on_uncompressed_tar() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar"));
+        var provider = new BlockCompressedTarArchiveProvider(archiveRoot);
+
+        assertThatThrownBy(provider::validateRoot)
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("1234567890123.tar");
+    }
+
+    @Test
+    public void tar_archive_provider_should_delete_leftover_temporary_files() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar"));
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.idx"));
+        createLeftoverTempFile("1234567890123.tar.idx.4711.tmp");
+        createLeftoverTempFile("1234567890123.tar.4711.tmp");
+        createLeftoverTempFile("1234567890123.tar.4711.tmp.idx");
+        var provider = new TarArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+
+        try (var files = Files.list(archiveRoot)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactlyInAnyOrder("1234567890123.tar", "1234567890123.tar.idx");
+        }
+    }
+
+    @Test
+    public void tar_archive_provider_should_throw_on_temporary_file_with_invalid_name() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("illegal.tar.4711.tmp"));
+        var provider = new TarArchiveProvider(archiveRoot);
+
+        assertThatThrownBy(provider::validateRoot)
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("illegal.tar.4711.tmp");
+    }
+
+    @Test
+    public void block_compressed_tar_archive_provider_should_delete_leftover_temporary_files() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar.gz"));
+        createLeftoverTempFile("1234567890123.tar.gz.blocks.4711.tmp");
+        createLeftoverTempFile("1234567890123.tar.gz.4711.tmp");
+        createLeftoverTempFile("1234567890123.tar.gz.4711.tmp.idx");
+        createLeftoverTempFile("1234567890123.tar.gz.4711.tmp.blocks");
+        var provider = new BlockCompressedTarArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+
+        try (var files = Files.list(archiveRoot)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactly("1234567890123.tar.gz");
+        }
+    }
+
+    @Test
+    public void zip_archive_provider_should_delete_leftover_temporary_files() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.zip"));
+        createLeftoverTempFile("1234567890123.zip.4711.tmp");
+        var provider = new ZipArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+
+        try (var files = Files.list(archiveRoot)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactly("1234567890123.zip");
+        }
+    }
+
+    @Test
+    public void tar_archive_provider_should_keep_temporary_files_that_may_still_be_written() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890123.tar"));
+        createLeftoverTempFile("1234567890123.tar.4711.tmp");
+        Files.createFile(archiveRoot.resolve("1234567890124.tar.4712.tmp"));
+        Files.createFile(archiveRoot.resolve("1234567890124.tar.4712.tmp.idx"));
+        var provider = new TarArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+
+        try (var files = Files.list(archiveRoot)) {
+            assertThat(files.map(path -> path.getFileName().toString()))
+                .containsExactlyInAnyOrder("1234567890123.tar", "1234567890124.tar.4712.tmp", "1234567890124.tar.4712.tmp.idx");
+        }
+    }
+
+    @Test
+    public void zip_archive_provider_should_keep_temporary_files_that_may_still_be_written() throws IOException {
+        Files.createDirectories(archiveRoot);
+        Files.createFile(archiveRoot.resolve("1234567890124.zip.4712.tmp"));
+        var provider = new ZipArchiveProvider(archiveRoot);
+
+        provider.validateRoot();
+
+        try (var files = Files.list(archiveRoot)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactly("1234567890124.zip.4712.tmp");
+        }
+    }
 }
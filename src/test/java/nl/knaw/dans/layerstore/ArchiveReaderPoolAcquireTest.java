@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArchiveReaderPoolAcquireTest extends AbstractTestWithTestDir {
+
+    private static class TestReader implements Closeable {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private TestReader open(Path archiveFile) {
+        opened.incrementAndGet();
+        return new TestReader();
+    }
+
+    private Path createArchiveFile(String name) throws Exception {
+        Files.createDirectories(testDir);
+        return Files.writeString(testDir.resolve(name), name);
+    }
+
+    @Test
+    public void should_reuse_open_reader() throws Exception {
+        var archiveFile = createArchiveFile("1.zip");
+        var pool = new ArchiveReaderPool(2);
+
+        TestReader first;
+        try (var lease = pool.acquire(archiveFile, this::open)) {
+            first = lease.get();
+        }
+        try (var lease = pool.acquire(archiveFile, this::open)) {
+            assertThat(lease.get()).isSameAs(first);
+        }
+
+        assertThat(opened).hasValue(1);
+        assertThat(pool.getMissCount()).isEqualTo(1);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(first.closed).isFalse();
+    }
+
+    @Test
+    public void should_close_least_recently_used_reader_when_full() throws Exception {
+        var archiveFile1 = createArchiveFile("1.zip");
+        var archiveFile2 = createArchiveFile("2.zip");
+        var archiveFile3 = createArchiveFile("3.zip");
+        var pool = new ArchiveReaderPool(2);
+
+        TestReader reader1;
+        TestReader reader2;
+        try (var lease = pool.acquire(archiveFile1, this::open)) {
+            reader1 = lease.get();
+        }
+        try (var lease = pool.acquire(archiveFile2, this::open)) {
+            reader2 = lease.get();
+        }
+        // Make 1 the most recently used
+        pool.acquire(archiveFile1, this::open).close();
+        pool.acquire(archiveFile3, this::open).close();
+
+        assertThat(reader1.closed).isFalse();
+        assertThat(reader2.closed).isTrue();
+        assertThat(pool.getOpenReaderCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_close_evicted_reader_only_after_last_lease_is_closed() throws Exception {
+        var archiveFile1 = createArchiveFile("1.zip");
+        var archiveFile2 = createArchiveFile("2.zip");
+        var pool = new ArchiveReaderPool(1);
+
+        var lease1 = pool.acquire(archiveFile1, this::open);
+        pool.acquire(archiveFile2, this::open).close();
+
+        assertThat(lease1.get().closed).isFalse();
+        var reader1 = lease1.get();
+        lease1.close();
+        assertThat(reader1.closed).isTrue();
+    }
+
+    @Test
+    public void should_open_new_reader_after_invalidation() throws Exception {
+        var archiveFile = createArchiveFile("1.zip");
+        var pool = new ArchiveReaderPool(2);
+
+        var lease = pool.acquire(archiveFile, this::open);
+        var reader = lease.get();
+        pool.invalidate(archiveFile);
+        assertThat(reader.closed).isFalse();
+        lease.close();
+        assertThat(reader.closed).isTrue();
+
+        try (var newLease = pool.acquire(archiveFile, this::open)) {
+            assertThat(newLease.get()).isNotSameAs(reader);
+        }
+        assertThat(opened).hasValue(2);
+    }
+
+    @Test
+    public void should_not_hand_out_reader_of_replaced_file() throws Exception {
+        var archiveFile = createArchiveFile("1.zip");
+        var pool = new ArchiveReaderPool(2);
+        TestReader reader;
+        try (var lease = pool.acquire(archiveFile, this::open)) {
+            reader = lease.get();
+        }
+
+        Files.delete(archiveFile);
+        Files.writeString(archiveFile, "different content");
+
+        try (var lease = pool.acquire(archiveFile, this::open)) {
+            assertThat(lease.get()).isNotSameAs(reader);
+        }
+        assertThat(reader.closed).isTrue();
+    }
+
+    @Test
+    public void should_read_new_content_after_archive_is_overwritten() throws Exception {
+        var pool = new ArchiveReaderPool(2);
+        var archive = new ZipArchive(testDir.resolve("test.zip"), pool);
+        createStagingFileWithContent("file1", "old content");
+        archive.archiveFrom(stagingDir);
+        try (var inputStream = archive.readFile("file1")) {
+            assertThat(inputStream.readAllBytes()).isEqualTo("old content".getBytes());
+        }
+
+        createStagingFileWithContent("file1", "new content");
+        archive.archiveFrom(stagingDir);
+
+        try (var inputStream = archive.readFile("file1")) {
+            assertThat(inputStream.readAllBytes()).isEqualTo("new content".getBytes());
+        }
+        assertThat(pool.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_share_tar_channel_between_reads() throws Exception {
+        var pool = new ArchiveReaderPool(2);
+        var archive = new TarArchive(testDir.resolve("test.tar"), pool);
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("file2", "file2 content");
+        archive.archiveFrom(stagingDir);
+
+        try (var inputStream1 = archive.readFile("file1"); var inputStream2 = archive.readFile("file2")) {
+            assertThat(inputStream2.readAllBytes()).isEqualTo("file2 content".getBytes());
+            assertThat(inputStream1.readAllBytes()).isEqualTo("file1 content".getBytes());
+        }
+        assertThat(pool.getMissCount()).isEqualTo(1);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+    }
+}
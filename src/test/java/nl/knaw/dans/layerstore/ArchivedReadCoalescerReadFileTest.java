@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ArchivedReadCoalescerReadFileTest extends AbstractTestWithTestDir {
+    private static final int READERS = 4;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private void readConcurrently(ArchivedReadCoalescer coalescer, String content) throws Exception {
+        var release = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(READERS);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (int i = 0; i < READERS; i++) {
+                results.add(executor.submit(() -> {
+                    try (var is = coalescer.readFile(1L, "path/to/file", () -> {
+                        loads.incrementAndGet();
+                        release.await();
+                        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+                    })) {
+                        return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                    }
+                }));
+            }
+            // Give all readers time to join the read in progress
+            while (loads.get() == 0 || coalescer.getCoalescedCount() < READERS - 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (var result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo(content);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_read_from_loader_once_for_concurrent_readers() throws Exception {
+        var coalescer = new ArchivedReadCoalescer(testDir, 1024);
+
+        readConcurrently(coalescer, "content");
+
+        assertThat(loads).hasValue(1);
+        assertThat(coalescer.getCoalescedCount()).isEqualTo(READERS - 1);
+    }
+
+    @Test
+    public void should_spill_large_content_to_temporary_file_and_delete_it() throws Exception {
+        Files.createDirectories(testDir);
+        var coalescer = new ArchivedReadCoalescer(testDir, 4);
+
+        readConcurrently(coalescer, "content larger than four bytes");
+
+        assertThat(loads).hasValue(1);
+        try (var files = Files.list(testDir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    public void should_read_again_after_previous_read_is_done() throws Exception {
+        var coalescer = new ArchivedReadCoalescer(testDir, 1024);
+
+        for (int i = 0; i < 2; i++) {
+            try (var is = coalescer.readFile(1L, "file", () -> {
+                loads.incrementAndGet();
+                return new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8));
+            })) {
+                assertThat(is).hasContent("content");
+            }
+        }
+
+        assertThat(loads).hasValue(2);
+        assertThat(coalescer.getCoalescedCount()).isZero();
+    }
+
+    @Test
+    public void should_not_combine_reads_of_different_layers() throws Exception {
+        var coalescer = new ArchivedReadCoalescer(testDir, 1024);
+
+        try (var is1 = coalescer.readFile(1L, "file", () -> new ByteArrayInputStream("layer 1".getBytes(StandardCharsets.UTF_8)));
+            var is2 = coalescer.readFile(2L, "file", () -> new ByteArrayInputStream("layer 2".getBytes(StandardCharsets.UTF_8)))) {
+            assertThat(is1).hasContent("layer 1");
+            assertThat(is2).hasContent("layer 2");
+        }
+    }
+
+    @Test
+    public void should_propagate_failure_of_loader() {
+        var coalescer = new ArchivedReadCoalescer(testDir, 1024);
+
+        assertThatThrownBy(() -> coalescer.readFile(1L, "file", () -> {
+            throw new IOException("archive not available");
+        })).isInstanceOf(IOException.class).hasMessage("archive not available");
+    }
+
+    @Test
+    public void should_read_again_after_failed_read() throws Exception {
+        var coalescer = new ArchivedReadCoalescer(testDir, 1024);
+        assertThatThrownBy(() -> coalescer.readFile(1L, "file", () -> {
+            throw new IOException("archive not available");
+        })).isInstanceOf(IOException.class);
+
+        try (var is = coalescer.readFile(1L, "file", () -> new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)))) {
+            assertThat(is).hasContent("content");
+        }
+    }
+}
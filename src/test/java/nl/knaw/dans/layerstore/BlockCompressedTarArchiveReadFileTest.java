@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockCompressedTarArchiveReadFileTest extends AbstractTestWithTestDir {
+    // Small blocks, so that files span several blocks
+    private final GzipBlockCompression compression = new GzipBlockCompression(4096, Deflater.DEFAULT_COMPRESSION, 3);
+
+    private final Path tarFile = testDir.resolve("test.tar.gz");
+
+    @Test
+    public void should_return_content_of_files_in_archive() throws Exception {
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(4), compression);
+        var largeContent = randomText(100_000);
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/large", largeContent);
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+
+        archive.archiveFrom(stagingDir);
+
+        assertThat(archive.isArchived()).isTrue();
+        assertThat(BlockGzipIndex.getSidecar(tarFile)).exists();
+        try (var inputStream = archive.readFile("path/to/large")) {
+            assertThat(new String(inputStream.readAllBytes())).isEqualTo(largeContent);
+        }
+        try (var inputStream = archive.readFile("path/to/file2")) {
+            assertThat(new String(inputStream.readAllBytes())).isEqualTo("path/to/file2 content");
+        }
+        assertThat(archive.listAllItems()).extracting(Item::getPath).contains("file1", "path/to/large", "path/to/file2");
+    }
+
+    @Test
+    public void should_write_an_archive_that_standard_gzip_and_tar_readers_can_read() throws Exception {
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(4), compression);
+        var largeContent = randomText(50_000);
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/large", largeContent);
+
+        archive.archiveFrom(stagingDir);
+
+        var contents = new HashMap<String, String>();
+        try (var tar = new TarArchiveInputStream(new GZIPInputStream(Files.newInputStream(tarFile)))) {
+            for (var entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+                if (entry.isFile()) {
+                    contents.put(entry.getName(), new String(tar.readAllBytes()));
+                }
+            }
+        }
+        assertThat(contents)
+            .containsEntry("file1", "file1 content")
+            .containsEntry("path/to/large", largeContent);
+    }
+
+    @Test
+    public void should_rebuild_missing_indexes() throws Exception {
+        createStagingFileWithContent("path/to/large", randomText(20_000));
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+        new TarArchive(tarFile, new ArchiveReaderPool(4), compression).archiveFrom(stagingDir);
+        Files.delete(BlockGzipIndex.getSidecar(tarFile));
+        TarArchiveIndex.delete(tarFile);
+
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(4), compression);
+
+        try (var inputStream = archive.readFile("path/to/file2")) {
+            assertThat(new String(inputStream.readAllBytes())).isEqualTo("path/to/file2 content");
+        }
+        assertThat(BlockGzipIndex.getSidecar(tarFile)).exists();
+    }
+
+    @Test
+    public void should_unarchive_all_files() throws Exception {
+        var largeContent = randomText(30_000);
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/large", largeContent);
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(4), compression);
+        archive.archiveFrom(stagingDir);
+        var targetDir = testDir.resolve("target");
+
+        archive.unarchiveTo(targetDir);
+
+        assertThat(targetDir.resolve("file1")).hasContent("file1 content");
+        assertThat(targetDir.resolve("path/to/large")).hasContent(largeContent);
+    }
+
+    private static String randomText(int length) {
+        var random = new Random(42);
+        var builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiskArchivedContentCacheGetCachedFileTest extends AbstractTestWithTestDir {
+    private final Path cacheRoot = testDir.resolve("cache");
+
+    @Test
+    public void should_return_empty_without_loading_if_not_cached() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        assertThat(cache.getCachedFile(1L, "a.txt")).isEmpty();
+        assertThat(cache.getHitCount()).isEqualTo(0);
+        assertThat(cache.getSizeInBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void should_return_cached_content() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+        cache.readFile(1L, "a.txt", () -> new ByteArrayInputStream("content".getBytes(UTF_8))).close();
+
+        var cachedFile = cache.getCachedFile(1L, "a.txt");
+
+        assertThat(cachedFile).isPresent();
+        try (var inputStream = cachedFile.get()) {
+            assertThat(new String(inputStream.readAllBytes(), UTF_8)).isEqualTo("content");
+        }
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getCachedFile(2L, "a.txt")).isEmpty();
+    }
+
+    @Test
+    public void should_return_empty_after_the_layer_is_invalidated() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+        cache.readFile(1L, "a.txt", () -> new ByteArrayInputStream("content".getBytes(UTF_8))).close();
+
+        cache.invalidateLayer(1L);
+
+        assertThat(cache.getCachedFile(1L, "a.txt")).isEmpty();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.io.function.IOSupplier;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DiskArchivedContentCacheReadFileTest extends AbstractTestWithTestDir {
+    private final Path cacheRoot = testDir.resolve("cache");
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private IOSupplier<InputStream> loader(String content) {
+        return () -> {
+            loads.incrementAndGet();
+            return new ByteArrayInputStream(content.getBytes(UTF_8));
+        };
+    }
+
+    private String read(DiskArchivedContentCache cache, long layerId, String path, String content) throws IOException {
+        try (var inputStream = cache.readFile(layerId, path, loader(content))) {
+            return new String(inputStream.readAllBytes(), UTF_8);
+        }
+    }
+
+    @Test
+    public void should_load_content_only_once() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        assertThat(read(cache, 1L, "a/b.txt", "content")).isEqualTo("content");
+        assertThat(read(cache, 1L, "a/b.txt", "content")).isEqualTo("content");
+
+        assertThat(loads).hasValue(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getSizeInBytes()).isEqualTo("content".length());
+    }
+
+    @Test
+    public void should_key_entries_by_layer_and_path() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        assertThat(read(cache, 1L, "a.txt", "layer 1")).isEqualTo("layer 1");
+        assertThat(read(cache, 2L, "a.txt", "layer 2")).isEqualTo("layer 2");
+        assertThat(read(cache, 1L, "b.txt", "other file")).isEqualTo("other file");
+        assertThat(read(cache, 1L, "a.txt", "ignored")).isEqualTo("layer 1");
+
+        assertThat(loads).hasValue(3);
+    }
+
+    @Test
+    public void should_evict_least_recently_used_entries_when_budget_is_exceeded() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 10);
+        read(cache, 1L, "a", "aaaa");
+        read(cache, 1L, "b", "bbbb");
+        // Make "a" the most recently used
+        read(cache, 1L, "a", "aaaa");
+
+        read(cache, 1L, "c", "cccc");
+
+        assertThat(cache.getSizeInBytes()).isEqualTo(8);
+        loads.set(0);
+        read(cache, 1L, "a", "aaaa");
+        assertThat(loads).hasValue(0);
+        read(cache, 1L, "b", "bbbb");
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    public void should_not_cache_content_larger_than_budget() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 4);
+
+        assertThat(read(cache, 1L, "big", "too big")).isEqualTo("too big");
+
+        assertThat(cache.getSizeInBytes()).isZero();
+        try (var files = Files.walk(cacheRoot)) {
+            assertThat(files.filter(Files::isRegularFile)).isEmpty();
+        }
+    }
+
+    @Test
+    public void should_reuse_entries_from_previous_instance() throws Exception {
+        read(new DiskArchivedContentCache(cacheRoot, 100), 1L, "a.txt", "content");
+
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        assertThat(cache.getSizeInBytes()).isEqualTo("content".length());
+        assertThat(read(cache, 1L, "a.txt", "ignored")).isEqualTo("content");
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    public void should_load_again_after_layer_is_invalidated() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+        read(cache, 1L, "a.txt", "old");
+        read(cache, 2L, "a.txt", "other layer");
+
+        cache.invalidateLayer(1L);
+
+        assertThat(cache.getSizeInBytes()).isEqualTo("other layer".length());
+        assertThat(read(cache, 1L, "a.txt", "new")).isEqualTo("new");
+        assertThat(read(cache, 2L, "a.txt", "ignored")).isEqualTo("other layer");
+    }
+
+    @Test
+    public void should_not_leave_entry_when_loading_fails() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        assertThatThrownBy(() -> cache.readFile(1L, "a.txt", () -> {
+            throw new IOException("archive not available");
+        })).isInstanceOf(IOException.class).hasMessage("archive not available");
+
+        assertThat(cache.getSizeInBytes()).isZero();
+        try (var files = Files.walk(cacheRoot)) {
+            assertThat(files.filter(Files::isRegularFile)).isEmpty();
+        }
+    }
+
+    @Test
+    public void should_not_cache_content_that_was_being_read_when_the_layer_was_invalidated() throws Exception {
+        var cache = new DiskArchivedContentCache(cacheRoot, 100);
+
+        try (var inputStream = cache.readFile(1L, "a.txt", () -> {
+            // The archive is replaced while the old content is being read
+            cache.invalidateLayer(1L);
+            return new ByteArrayInputStream("old".getBytes(UTF_8));
+        })) {
+            assertThat(inputStream).hasContent("old");
+        }
+
+        assertThat(cache.getSizeInBytes()).isZero();
+        assertThat(read(cache, 1L, "a.txt", "new")).isEqualTo("new");
+        assertThat(loads).hasValue(1);
+    }
+}
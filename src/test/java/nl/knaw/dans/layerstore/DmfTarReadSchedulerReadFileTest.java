@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests the scheduler against a stand-in for dmftar that extracts from a local tar file and logs its invocations.
+ */
+@DisabledOnOs(OS.WINDOWS)
+public class DmfTarReadSchedulerReadFileTest extends AbstractTestWithTestDir {
+    private static final String STUB_SCRIPT = """
+        #!/bin/bash
+        # Stand-in for: dmftar -xf <user>@<host>:<archive> --options=--directory=<dir> ./<file>...
+        log="$(dirname "$0")/invocations.log"
+        archive="${2#*:}"
+        dir="${3#--options=--directory=}"
+        shift 3
+        echo "start $(basename "$archive")" >> "$log"
+        sleep 0.3
+        tar -xf "$archive" -C "$dir" "$@"
+        status=$?
+        echo "end $(basename "$archive")" >> "$log"
+        exit $status
+        """;
+
+    private Path remoteBaseDir;
+    private Path invocationsLog;
+    private DmfTarRunner dmfTarRunner;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        var binDir = Files.createDirectories(testDir.resolve("bin").toAbsolutePath());
+        var script = Files.writeString(binDir.resolve("dmftar"), STUB_SCRIPT);
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        invocationsLog = binDir.resolve("invocations.log");
+        remoteBaseDir = Files.createDirectories(testDir.resolve("remote").toAbsolutePath());
+        dmfTarRunner = new DmfTarRunner(script, null, "user", "host", remoteBaseDir);
+    }
+
+    private void createArchive(String archiveName, String... namesAndContents) throws Exception {
+        var sourceDir = Files.createDirectories(testDir.resolve("source-" + archiveName));
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            var file = sourceDir.resolve(namesAndContents[i]);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, namesAndContents[i + 1]);
+        }
+        var process = new ProcessBuilder("tar", "-cf", remoteBaseDir.resolve(archiveName).toString(), "-C", sourceDir.toString(), ".")
+            .inheritIO()
+            .start();
+        assertThat(process.waitFor()).isZero();
+    }
+
+    private String read(DmfTarReadScheduler scheduler, String archiveName, String fileName) throws IOException {
+        try (var inputStream = scheduler.readFile(archiveName, fileName)) {
+            return new String(inputStream.readAllBytes(), UTF_8);
+        }
+    }
+
+    private List<String> readConcurrently(List<Callable<String>> reads) throws Exception {
+        var executor = Executors.newFixedThreadPool(reads.size());
+        try {
+            var futures = new ArrayList<Future<String>>();
+            for (var read : reads) {
+                futures.add(executor.submit(read));
+            }
+            var results = new ArrayList<String>();
+            for (var future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void should_serve_requests_for_same_archive_with_one_pass() throws Exception {
+        createArchive("1.dmftar", "a.txt", "content a", "dir/b.txt", "content b");
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ofMillis(500), 2)) {
+
+            var results = readConcurrently(List.of(
+                () -> read(scheduler, "1.dmftar", "a.txt"),
+                () -> read(scheduler, "1.dmftar", "dir/b.txt"),
+                () -> read(scheduler, "1.dmftar", "a.txt")));
+
+            assertThat(results).containsExactly("content a", "content b", "content a");
+        }
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly("start 1.dmftar", "end 1.dmftar");
+    }
+
+    @Test
+    public void should_read_files_with_spaces_and_punctuation_in_their_names() throws Exception {
+        createArchive("1.dmftar", "dir with space/file (1)+x,y.txt", "content 1", "it's.txt", "content 2");
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ofMillis(100), 1)) {
+
+            var results = readConcurrently(List.of(
+                () -> read(scheduler, "1.dmftar", "dir with space/file (1)+x,y.txt"),
+                () -> read(scheduler, "1.dmftar", "it's.txt")));
+
+            assertThat(results).containsExactly("content 1", "content 2");
+        }
+    }
+
+    @Test
+    public void should_not_run_more_passes_at_the_same_time_than_allowed() throws Exception {
+        createArchive("1.dmftar", "a.txt", "content 1");
+        createArchive("2.dmftar", "a.txt", "content 2");
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ofMillis(100), 1)) {
+
+            var results = readConcurrently(List.of(
+                () -> read(scheduler, "1.dmftar", "a.txt"),
+                () -> read(scheduler, "2.dmftar", "a.txt")));
+
+            assertThat(results).containsExactly("content 1", "content 2");
+        }
+        var lines = Files.readAllLines(invocationsLog);
+        assertThat(lines).hasSize(4);
+        assertThat(lines.get(0)).startsWith("start");
+        assertThat(lines.get(1)).startsWith("end");
+        assertThat(lines.get(2)).startsWith("start");
+        assertThat(lines.get(3)).startsWith("end");
+    }
+
+    @Test
+    public void should_still_serve_other_requests_when_a_file_is_not_in_the_archive() throws Exception {
+        createArchive("1.dmftar", "a.txt", "content a");
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ofMillis(500), 1)) {
+            var executor = Executors.newFixedThreadPool(2);
+            try {
+                var existing = executor.submit(() -> read(scheduler, "1.dmftar", "a.txt"));
+                var missing = executor.submit(() -> read(scheduler, "1.dmftar", "missing.txt"));
+
+                assertThat(existing.get()).isEqualTo("content a");
+                assertThatThrownBy(missing::get)
+                    .hasCauseInstanceOf(IOException.class)
+                    .hasMessageContaining("missing.txt not found in 1.dmftar");
+            }
+            finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void should_not_leave_extracted_files_behind() throws Exception {
+        createArchive("1.dmftar", "a.txt", "content a");
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ZERO, 1)) {
+            assertThat(read(scheduler, "1.dmftar", "a.txt")).isEqualTo("content a");
+        }
+        try (var files = Files.list(testDir.resolve("work"))) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    public void should_not_extract_files_one_by_one_when_the_pass_fails_for_another_reason() throws Exception {
+        // No archive is created, so the pass fails, but not because a file is missing from the archive
+        try (var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ofMillis(500), 1)) {
+            var executor = Executors.newFixedThreadPool(2);
+            try {
+                var first = executor.submit(() -> read(scheduler, "1.dmftar", "a.txt"));
+                var second = executor.submit(() -> read(scheduler, "1.dmftar", "b.txt"));
+
+                assertThatThrownBy(first::get).hasCauseInstanceOf(IOException.class);
+                assertThatThrownBy(second::get).hasCauseInstanceOf(IOException.class);
+            }
+            finally {
+                executor.shutdown();
+            }
+        }
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly("start 1.dmftar", "end 1.dmftar");
+    }
+
+    @Test
+    public void should_throw_IOException_when_reading_after_close() throws Exception {
+        createArchive("1.dmftar", "a.txt", "content a");
+        var scheduler = new DmfTarReadScheduler(dmfTarRunner, testDir.resolve("work"), Duration.ZERO, 1);
+        scheduler.close();
+
+        assertThatThrownBy(() -> read(scheduler, "1.dmftar", "a.txt"))
+            .isInstanceOf(IOException.class)
+            .hasMessage("Could not read a.txt from 1.dmftar: the read scheduler is closed");
+        assertThat(invocationsLog).doesNotExist();
+    }
+}
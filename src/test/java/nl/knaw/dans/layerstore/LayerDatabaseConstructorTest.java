@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import nl.knaw.dans.lib.util.PersistenceProviderImpl;
+import org.junit.jupiter.api.Test;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LayerDatabaseConstructorTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void should_still_accept_a_persistence_provider() throws Exception {
+        var providerDb = new LayerDatabaseImpl(new PersistenceProviderImpl<>(daoTestExtension.getSessionFactory(), ItemRecord.class));
+        daoTestExtension.inTransaction(() -> providerDb.saveRecords(
+            ItemRecord.builder().layerId(1L).path("dir").type(Directory).build(),
+            ItemRecord.builder().layerId(1L).path("dir/file.txt").type(File).build()));
+
+        assertThat(providerDb.getBatchSize()).isEqualTo(LayerDatabaseImpl.DEFAULT_BATCH_SIZE);
+        assertThat(providerDb.listDirectory("dir")).extracting(Item::getPath).containsExactly("dir/file.txt");
+    }
+}
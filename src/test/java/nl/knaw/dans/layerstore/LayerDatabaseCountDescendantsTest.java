@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.NoSuchFileException;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LayerDatabaseCountDescendantsTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_count_each_path_once_across_layers() throws Exception {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/sub", Directory);
+        addToDb(1L, "dir/sub/file.txt", File);
+        addToDb(2L, "dir", Directory);
+        addToDb(2L, "dir/sub/file.txt", File);
+        addToDb(2L, "dir/file.txt", File);
+
+        assertThat(db.countDescendants("dir")).isEqualTo(3);
+    }
+
+    @Test
+    public void should_not_count_siblings_with_the_same_prefix() throws Exception {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file.txt", File);
+        addToDb(1L, "dir2", Directory);
+        addToDb(1L, "dir2/file.txt", File);
+
+        assertThat(db.countDescendants("dir")).isEqualTo(1);
+    }
+
+    @Test
+    public void should_count_everything_but_the_root_for_empty_path() throws Exception {
+        addToDb(1L, "", Directory);
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file.txt", File);
+
+        assertThat(db.countDescendants("")).isEqualTo(2);
+    }
+
+    @Test
+    public void should_throw_if_directory_does_not_exist() {
+        assertThatThrownBy(() -> db.countDescendants("no-such-dir"))
+            .isInstanceOf(NoSuchFileException.class);
+    }
+}
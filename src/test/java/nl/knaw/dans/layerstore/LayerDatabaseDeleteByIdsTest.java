@@ -34,7 +34,8 @@ public class LayerDatabaseDeleteByIdsTest extends AbstractLayerDatabaseTest {
     @Test
     public void should_delete_one_record() {
         var record = addToDb(1L, "path", Directory);
-        daoTestExtension.inTransaction(() -> db.deleteRecordsById(record.getGeneratedId()));
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteRecordsById(record.getGeneratedId()));
+        assertThat(deleted).isEqualTo(1);
         assertThat(db.getAllRecords().toList()).asList().isEmpty();
     }
 
@@ -43,10 +44,38 @@ public class LayerDatabaseDeleteByIdsTest extends AbstractLayerDatabaseTest {
         var record1 = addToDb(1L, "path1", Directory);
         var record2 = addToDb(2L, "path2", Type.File);
         var notDeletedRecord = addToDb(3L, "path3", Directory);
-        daoTestExtension.inTransaction(() -> db.deleteRecordsById(record1.getGeneratedId(), record2.getGeneratedId()));
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteRecordsById(record1.getGeneratedId(), record2.getGeneratedId()));
+        assertThat(deleted).isEqualTo(2);
         assertThat(db.getAllRecords().toList()).asList()
             .usingRecursiveFieldByFieldElementComparatorIgnoringFields("generatedId")
             .containsExactlyInAnyOrder(notDeletedRecord);
     }
 
+    @Test
+    public void should_not_count_ids_that_do_not_exist() {
+        var record = addToDb(1L, "path", Directory);
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteRecordsById(record.getGeneratedId(), record.getGeneratedId() + 1000));
+        assertThat(deleted).isEqualTo(1);
+        assertThat(db.getAllRecords().toList()).asList().isEmpty();
+    }
+
+    @Test
+    public void should_delete_stored_content_of_deleted_records() {
+        var record = daoTestExtension.inTransaction(() -> {
+            var r = ItemRecord.builder()
+                .layerId(1L)
+                .path("file.txt")
+                .type(Type.File)
+                .content("Hello world!".getBytes())
+                .build();
+            db.saveRecords(r);
+            return r;
+        });
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteRecordsById(record.getGeneratedId()));
+        assertThat(deleted).isEqualTo(1);
+        var remainingContents = daoTestExtension.inTransaction(() -> daoTestExtension.getSessionFactory().getCurrentSession()
+            .createQuery("select count(c) from listing_record_content c", Long.class)
+            .getSingleResult());
+        assertThat(remainingContents).isEqualTo(0L);
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class LayerDatabaseDeleteDirectoryRecordsTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_delete_directory_and_descendants_in_layer() {
+        addToDb(1L, "", Directory);
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/sub", Directory);
+        addToDb(1L, "dir/sub/file.txt", File);
+        addToDb(1L, "dir/file.txt", File);
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteDirectoryRecords(1L, "dir"));
+        assertThat(deleted).isEqualTo(4);
+        assertThat(db.getAllRecords().map(ItemRecord::getPath)).containsExactly("");
+    }
+
+    @Test
+    public void should_leave_records_in_other_layers_alone() {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file1.txt", File);
+        addToDb(2L, "dir", Directory);
+        addToDb(2L, "dir/file2.txt", File);
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteDirectoryRecords(2L, "dir"));
+        assertThat(deleted).isEqualTo(2);
+        assertThat(db.getAllRecords().map(ItemRecord::getPath)).containsExactlyInAnyOrder("dir", "dir/file1.txt");
+    }
+
+    @Test
+    public void should_not_delete_siblings_with_the_same_prefix() {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file.txt", File);
+        addToDb(1L, "dir2", Directory);
+        addToDb(1L, "dir2/file.txt", File);
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteDirectoryRecords(1L, "dir"));
+        assertThat(deleted).isEqualTo(2);
+        assertThat(db.getAllRecords().map(ItemRecord::getPath)).containsExactlyInAnyOrder("dir2", "dir2/file.txt");
+    }
+
+    @Test
+    public void should_treat_wildcard_characters_in_path_literally() {
+        addToDb(1L, "d_r", Directory);
+        addToDb(1L, "d_r/file.txt", File);
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file.txt", File);
+        var deleted = daoTestExtension.inTransaction(() -> db.deleteDirectoryRecords(1L, "d_r"));
+        assertThat(deleted).isEqualTo(2);
+        assertThat(db.getAllRecords().map(ItemRecord::getPath)).containsExactlyInAnyOrder("dir", "dir/file.txt");
+    }
+
+    @Test
+    public void should_delete_nothing_if_the_number_of_records_is_not_as_expected() {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file1.txt", File);
+        addToDb(1L, "dir/file2.txt", File);
+
+        assertThatThrownBy(() -> db.deleteDirectoryRecords(1L, "dir", 2))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessage("Expected to delete 2 records for directory dir, but deleted 3");
+        assertThat(db.getAllRecords().map(ItemRecord::getPath)).containsExactlyInAnyOrder("dir", "dir/file1.txt", "dir/file2.txt");
+        assertThat(db.getLatestRecord("dir/file1.txt")).isPresent();
+    }
+
+    @Test
+    public void should_delete_if_the_number_of_records_is_as_expected() {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file.txt", File);
+
+        assertThat(db.deleteDirectoryRecords(1L, "dir", 2)).isEqualTo(2);
+        assertThat(db.getAllRecords()).isEmpty();
+    }
+}
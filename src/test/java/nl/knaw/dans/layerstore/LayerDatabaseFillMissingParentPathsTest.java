@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class LayerDatabaseFillMissingParentPathsTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_derive_parent_path_when_record_is_built() {
+        assertThat(ItemRecord.builder().path("").build().getParentPath()).isNull();
+        assertThat(ItemRecord.builder().path("file").build().getParentPath()).isEqualTo("");
+        assertThat(ItemRecord.builder().path("dir/sub/file").build().getParentPath()).isEqualTo("dir/sub");
+    }
+
+    @Test
+    public void should_fill_in_parent_paths_of_records_saved_without_them() throws Exception {
+        addToDb(1L, "", Directory);
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/sub", Directory);
+        addToDb(1L, "dir/sub/file", File);
+        addToDb(2L, "dir/sub/file", File);
+        // Simulate records created by a version of the library that did not store the parent path
+        daoTestExtension.inTransaction(() -> daoTestExtension.getSessionFactory().getCurrentSession()
+            .createNativeQuery("UPDATE listing_record SET parent_path = NULL")
+            .executeUpdate());
+        assertThat(db.listDirectory("dir/sub")).isEmpty();
+
+        var updated = daoTestExtension.inTransaction(() -> db.fillMissingParentPaths());
+
+        assertThat(updated).isEqualTo(4);
+        assertThat(db.getAllRecords().map(ItemRecord::getParentPath)).containsExactlyInAnyOrder(null, "", "dir", "dir/sub", "dir/sub");
+        assertThat(db.listDirectory("dir/sub")).containsExactly(new Item("dir/sub/file", File));
+    }
+
+    @Test
+    public void should_fill_in_parent_paths_in_multiple_batches() {
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        addToDb(1L, "a", Directory);
+        addToDb(1L, "a/b", Directory);
+        addToDb(1L, "a/b/c", Directory);
+        daoTestExtension.inTransaction(() -> daoTestExtension.getSessionFactory().getCurrentSession()
+            .createNativeQuery("UPDATE listing_record SET parent_path = NULL")
+            .executeUpdate());
+
+        var updated = daoTestExtension.inTransaction(smallBatchDb::fillMissingParentPaths);
+
+        assertThat(updated).isEqualTo(3);
+        assertThat(db.getAllRecords().map(ItemRecord::getParentPath)).containsExactlyInAnyOrder("", "a", "a/b");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class LayerDatabaseGetLatestItemRecordsTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_return_record_in_highest_layer_for_each_path() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+        addToDb(2L, "file1.txt", Item.Type.File);
+        addToDb(1L, "file2.txt", Item.Type.File);
+        addToDb(3L, "file3.txt", Item.Type.File);
+
+        var result = daoTestExtension.inTransaction(() -> db.getLatestItemRecords(List.of("file2.txt", "file1.txt", "file1.txt")));
+
+        assertThat(result).extracting(LatestItemRecord::getPath, LatestItemRecord::getLayerId)
+            .containsExactly(tuple("file1.txt", 2L), tuple("file2.txt", 1L));
+    }
+
+    @Test
+    public void should_leave_out_paths_that_do_not_exist() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+
+        var result = daoTestExtension.inTransaction(() -> db.getLatestItemRecords(List.of("file1.txt", "file2.txt")));
+
+        assertThat(result).extracting(LatestItemRecord::getPath).containsExactly("file1.txt");
+    }
+
+    @Test
+    public void should_return_records_for_more_paths_than_fit_in_one_query() {
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        addToDb(1L, "a", Item.Type.File);
+        addToDb(1L, "b", Item.Type.File);
+        addToDb(1L, "c", Item.Type.File);
+        addToDb(1L, "d", Item.Type.File);
+        addToDb(1L, "e", Item.Type.File);
+
+        var result = daoTestExtension.inTransaction(() -> smallBatchDb.getLatestItemRecords(List.of("e", "d", "c", "b", "a")));
+
+        assertThat(result).extracting(LatestItemRecord::getPath).containsExactly("a", "b", "c", "d", "e");
+    }
+}
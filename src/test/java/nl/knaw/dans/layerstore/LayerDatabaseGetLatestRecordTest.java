@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class LayerDatabaseGetLatestRecordTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_return_empty_optional_when_path_does_not_exist() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+        var result = daoTestExtension.inTransaction(() -> db.getLatestRecord("file2.txt"));
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void should_return_record_in_highest_layer() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+        var record = addToDb(3L, "file1.txt", Item.Type.File);
+        addToDb(2L, "file1.txt", Item.Type.File);
+        var result = daoTestExtension.inTransaction(() -> db.getLatestRecord("file1.txt"));
+        assertThat(result).contains(record);
+    }
+
+    @Test
+    public void should_return_record_in_lower_layer_after_record_in_highest_layer_is_deleted() {
+        var record = addToDb(1L, "file1.txt", Item.Type.File);
+        var deleted = addToDb(2L, "file1.txt", Item.Type.File);
+        daoTestExtension.inTransaction(() -> db.deleteRecordsById(deleted.getGeneratedId()));
+        var result = daoTestExtension.inTransaction(() -> db.getLatestRecord("file1.txt"));
+        assertThat(result).contains(record);
+    }
+
+    @Test
+    public void should_follow_record_that_is_moved_to_other_path() {
+        var record = addToDb(1L, "file1.txt", Item.Type.File);
+        daoTestExtension.inTransaction(() -> {
+            record.setPath("file2.txt");
+            db.saveRecords(record);
+        });
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("file1.txt"))).isEmpty();
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("file2.txt"))).contains(record);
+    }
+
+    @Test
+    public void should_return_records_in_lower_layer_after_directory_in_highest_layer_is_deleted() {
+        addToDb(1L, "dir", Item.Type.Directory);
+        var record = addToDb(1L, "dir/file1.txt", Item.Type.File);
+        addToDb(2L, "dir", Item.Type.Directory);
+        addToDb(2L, "dir/file1.txt", Item.Type.File);
+        daoTestExtension.inTransaction(() -> db.deleteDirectoryRecords(2L, "dir"));
+        var result = daoTestExtension.inTransaction(() -> db.getLatestRecord("dir/file1.txt"));
+        assertThat(result).contains(record);
+    }
+
+    @Test
+    public void should_resolve_path_to_layer_type_and_stored_content() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+        daoTestExtension.inTransaction(() -> db.saveRecords(ItemRecord.builder()
+            .layerId(2L)
+            .path("file1.txt")
+            .type(Item.Type.File)
+            .content("Hello world!".getBytes())
+            .build()));
+
+        var latest = daoTestExtension.inTransaction(() -> db.getLatestItemRecord("file1.txt")).orElseThrow();
+
+        assertThat(latest.getLayerId()).isEqualTo(2L);
+        assertThat(latest.getType()).isEqualTo(Item.Type.File);
+        assertThat(latest.hasContent()).isTrue();
+        assertThat(daoTestExtension.inTransaction(() -> db.getStoredContent(latest.getContentId()))).isEqualTo("Hello world!".getBytes());
+    }
+
+    @Test
+    public void should_resolve_path_without_stored_content() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+
+        var latest = daoTestExtension.inTransaction(() -> db.getLatestItemRecord("file1.txt")).orElseThrow();
+
+        assertThat(latest.getLayerId()).isEqualTo(1L);
+        assertThat(latest.hasContent()).isFalse();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+public class LayerDatabaseGetRecordsByPathsTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_return_empty_list_when_no_paths_given() {
+        addToDb(1L, "file1.txt", Item.Type.File);
+        var result = daoTestExtension.inTransaction(() -> db.getRecordsByPaths(List.of()));
+        assertThat(result).asList().isEmpty();
+    }
+
+    @Test
+    public void should_return_records_of_all_paths_ordered_by_path_and_newest_layer_first() {
+        var record1 = addToDb(1L, "file1.txt", Item.Type.File);
+        var record2 = addToDb(1L, "file2.txt", Item.Type.File);
+        var record3 = addToDb(2L, "file1.txt", Item.Type.File);
+        addToDb(2L, "file3.txt", Item.Type.File);
+        var result = daoTestExtension.inTransaction(() -> db.getRecordsByPaths(List.of("file2.txt", "file1.txt", "file4.txt")));
+        assertThat(result).asList()
+            .usingRecursiveFieldByFieldElementComparatorIgnoringFields("generatedId")
+            .containsExactly(record3, record1, record2);
+    }
+}
@@ -113,6 +113,17 @@ public class LayerDatabaseListDirectoryTest extends AbstractLayerDatabaseTest {
             .containsExactlyInAnyOrder(new Item("dir/file_in_dir", Type.File));
     }
 
+    @Test
+    public void should_not_regard_items_in_directory_matching_as_pattern_as_children() throws Exception {
+        addToDb(1L, "d_r", Type.Directory);
+        addToDb(1L, "d_r/file", Type.File);
+        addToDb(1L, "dir", Type.Directory);
+        addToDb(1L, "dir/other-file", Type.File);
+        assertThat(db.listDirectory("d_r")).asList()
+            .usingRecursiveFieldByFieldElementComparatorIgnoringFields("generatedId")
+            .containsExactlyInAnyOrder(new Item("d_r/file", Type.File));
+    }
+
     @Test
     public void should_throw_NotDirectoryException_when_path_is_not_a_directory() {
         addToDb(1L, "dir", Type.Directory);
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class LayerDatabaseRebuildLatestItemRecordsTest extends AbstractLayerDatabaseTest {
+
+    private void deleteLatestItemRecords() {
+        daoTestExtension.inTransaction(() -> daoTestExtension.getSessionFactory().getCurrentSession()
+            .createNativeQuery("DELETE FROM latest_listing_record")
+            .executeUpdate());
+    }
+
+    @Test
+    public void should_recreate_latest_item_records_from_records() throws Exception {
+        addToDb(1L, "", Directory);
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file1", File);
+        addToDb(2L, "dir", Directory);
+        var latestFile2 = addToDb(3L, "dir/file2", File);
+        addToDb(2L, "dir/file2", File);
+        deleteLatestItemRecords();
+        assertThat(db.listDirectory("")).isEmpty();
+
+        var rebuilt = daoTestExtension.inTransaction(() -> db.rebuildLatestItemRecords());
+
+        assertThat(rebuilt).isEqualTo(4);
+        assertThat(db.listRecursive("")).containsExactlyInAnyOrder(
+            new Item("dir", Directory),
+            new Item("dir/file1", File),
+            new Item("dir/file2", File));
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("dir/file2"))).contains(latestFile2);
+    }
+
+    @Test
+    public void should_recreate_latest_item_records_when_the_records_of_a_path_span_multiple_batches() {
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        addToDb(1L, "a", Directory);
+        addToDb(1L, "b", Directory);
+        addToDb(2L, "b", Directory);
+        var latestB = addToDb(3L, "b", Directory);
+        var latestC = addToDb(1L, "c", Directory);
+        deleteLatestItemRecords();
+
+        var rebuilt = daoTestExtension.inTransaction(smallBatchDb::rebuildLatestItemRecords);
+
+        assertThat(rebuilt).isEqualTo(3);
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("b"))).contains(latestB);
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("c"))).contains(latestC);
+    }
+
+    @Test
+    public void should_replace_existing_latest_item_records() {
+        addToDb(1L, "a", Directory);
+        addToDb(2L, "a", Directory);
+
+        var rebuilt = daoTestExtension.inTransaction(() -> db.rebuildLatestItemRecords());
+
+        assertThat(rebuilt).isEqualTo(1);
+        assertThat(daoTestExtension.inTransaction(() -> db.getLatestRecord("a")).map(ItemRecord::getLayerId)).contains(2L);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import io.dropwizard.testing.junit5.DAOTestExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures how the throughput of {@link LayerDatabaseImpl#saveRecords(ItemRecord...)} on H2 depends on the batch size. Only runs when the system property <code>layerstore.benchmarks</code> is
+ * set to <code>true</code>. The number of records can be set with <code>layerstore.benchmarks.records</code>.
+ */
+@Slf4j
+@ExtendWith(DropwizardExtensionsSupport.class)
+public class LayerDatabaseSaveRecordsBenchmarkTest {
+    private static final int NUMBER_OF_RECORDS = Integer.getInteger("layerstore.benchmarks.records", 200_000);
+
+    private final DAOTestExtension daoTestExtension = DAOTestExtension.newBuilder()
+        .addEntityClass(ItemRecord.class)
+        .addEntityClass(ItemRecordContent.class)
+        .addEntityClass(LatestItemRecord.class)
+        .setProperty("hibernate.jdbc.batch_size", "1000")
+        .setProperty("hibernate.order_inserts", "true")
+        .setProperty("hibernate.order_updates", "true")
+        .build();
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 10, 100, 1000, 10000 })
+    @EnabledIf("nl.knaw.dans.layerstore.TestConditions#benchmarksEnabled")
+    public void saveRecords(int batchSize) {
+        var db = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), batchSize);
+        var records = IntStream.range(0, NUMBER_OF_RECORDS)
+            .mapToObj(i -> ItemRecord.builder()
+                .layerId(1L)
+                .path("dir" + (i / 1000) + "/file" + i)
+                .type(Item.Type.File)
+                .build())
+            .toArray(ItemRecord[]::new);
+
+        long start = System.nanoTime();
+        daoTestExtension.inTransaction(() -> db.saveRecords(records));
+        long insertNanos = System.nanoTime() - start;
+
+        for (var record : records) {
+            record.setLayerId(2L);
+        }
+        start = System.nanoTime();
+        daoTestExtension.inTransaction(() -> db.saveRecords(records));
+        long updateNanos = System.nanoTime() - start;
+
+        log.info("batchSize={}: inserted {} records/s, updated {} records/s", batchSize, recordsPerSecond(insertNanos), recordsPerSecond(updateNanos));
+        assertThat(daoTestExtension.inTransaction(() -> db.getAllRecords().count())).isEqualTo((long) NUMBER_OF_RECORDS);
+    }
+
+    private static long recordsPerSecond(long nanos) {
+        return NUMBER_OF_RECORDS * 1_000_000_000L / Math.max(nanos, 1);
+    }
+}
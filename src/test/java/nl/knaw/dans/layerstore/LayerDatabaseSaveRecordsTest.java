@@ -15,8 +15,16 @@
  */
 package nl.knaw.dans.layerstore;
 
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.hibernate.engine.spi.EntityKey;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
 import static nl.knaw.dans.layerstore.Item.Type;
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 
@@ -58,4 +66,156 @@ public class LayerDatabaseSaveRecordsTest extends AbstractLayerDatabaseTest {
             .usingRecursiveFieldByFieldElementComparatorIgnoringFields("generatedId")
             .containsExactlyInAnyOrder(record1, record2);
     }
+
+    @Test
+    public void should_save_more_records_than_fit_in_one_batch() {
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        var records = IntStream.range(0, 5)
+            .mapToObj(i -> ItemRecord.builder()
+                .layerId(1L)
+                .path("path" + i)
+                .type(Type.File)
+                .build())
+            .toArray(ItemRecord[]::new);
+        daoTestExtension.inTransaction(() -> smallBatchDb.saveRecords(records));
+        assertThat(db.getAllRecords())
+            .usingRecursiveFieldByFieldElementComparatorIgnoringFields("generatedId")
+            .containsExactlyInAnyOrder(records);
+    }
+
+    @Test
+    public void should_leave_records_loaded_by_the_caller_managed_after_a_batch() {
+        var existing = addToDb(1L, "existing", Type.File);
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        var records = IntStream.range(0, 5)
+            .mapToObj(i -> ItemRecord.builder()
+                .layerId(2L)
+                .path("path" + i)
+                .type(Type.File)
+                .build())
+            .toArray(ItemRecord[]::new);
+
+        daoTestExtension.inTransaction(() -> {
+            var session = daoTestExtension.getSessionFactory().getCurrentSession();
+            var loaded = session.get(ItemRecord.class, existing.getGeneratedId());
+            smallBatchDb.saveRecords(records);
+
+            assertThat(session.contains(loaded)).isTrue();
+            // The records of the first, flushed batches are detached
+            assertThat(session.contains(records[0])).isFalse();
+        });
+    }
+
+    @Test
+    public void should_update_existing_records_instead_of_adding_new_ones() {
+        var record1 = addToDb(1L, "path1", Type.File);
+        var record2 = addToDb(1L, "path2", Type.File);
+        record1.setPath("path1-renamed");
+        record2.setPath("path2-renamed");
+        var newRecord = ItemRecord.builder()
+            .layerId(2L)
+            .path("path3")
+            .type(Type.Directory)
+            .build();
+        daoTestExtension.inTransaction(() -> db.saveRecords(record1, newRecord, record2));
+        assertThat(db.getAllRecords().map(ItemRecord::getPath))
+            .containsExactlyInAnyOrder("path1-renamed", "path2-renamed", "path3");
+    }
+
+    @Test
+    public void should_store_content_apart_from_the_record() {
+        var record = ItemRecord.builder()
+            .layerId(1L)
+            .path("file.txt")
+            .type(Type.File)
+            .content("Hello world!".getBytes())
+            .build();
+        daoTestExtension.inTransaction(() -> db.saveRecords(record));
+        daoTestExtension.getSessionFactory().getCurrentSession().clear();
+
+        var loaded = daoTestExtension.inTransaction(() -> {
+            var r = db.getRecordsByPath("file.txt").get(0);
+            assertThat(r.hasContent()).isTrue();
+            assertThat(r.getContent()).isEqualTo("Hello world!".getBytes());
+            return r;
+        });
+        var contentRows = daoTestExtension.inTransaction(() -> daoTestExtension.getSessionFactory().getCurrentSession()
+            .createNativeQuery("SELECT COUNT(*) FROM listing_record_content")
+            .getSingleResult());
+        assertThat(((Number) contentRows).longValue()).isEqualTo(1L);
+        assertThat(loaded.getGeneratedId()).isEqualTo(record.getGeneratedId());
+    }
+
+    @Test
+    public void should_not_keep_latest_item_records_in_the_session() {
+        var smallBatchDb = new LayerDatabaseImpl(daoTestExtension.getSessionFactory(), 2);
+        var records = IntStream.range(0, 5)
+            .mapToObj(i -> ItemRecord.builder()
+                .layerId(1L)
+                .path("path" + i)
+                .type(Type.File)
+                .build())
+            .toArray(ItemRecord[]::new);
+
+        daoTestExtension.inTransaction(() -> {
+            smallBatchDb.saveRecords(records);
+
+            var session = daoTestExtension.getSessionFactory().getCurrentSession();
+            assertThat(session.getStatistics().getEntityKeys())
+                .noneMatch(key -> ((EntityKey) key).getEntityName().equals(LatestItemRecord.class.getName()));
+        });
+    }
+
+    @Test
+    public void should_update_the_latest_item_record_of_a_path_in_place() {
+        addToDb(1L, "path", Type.File);
+        var before = daoTestExtension.inTransaction(() -> db.getLatestItemRecord("path").orElseThrow().getGeneratedId());
+
+        addToDb(2L, "path", Type.File);
+
+        var after = daoTestExtension.inTransaction(() -> db.getLatestItemRecord("path").orElseThrow());
+        assertThat(after.getGeneratedId()).isEqualTo(before);
+        assertThat(after.getLayerId()).isEqualTo(2L);
+    }
+
+    @Test
+    public void should_let_transactions_that_save_the_same_path_wait_for_each_other() throws Exception {
+        addToDb(1L, "path", Type.File);
+        var sessionFactory = daoTestExtension.getSessionFactory();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var other = new AtomicReference<Future<?>>();
+            daoTestExtension.inTransaction(() -> {
+                db.saveRecords(ItemRecord.builder().layerId(2L).path("path").type(Type.File).build());
+                // Another transaction saves the same path while this one has not committed yet
+                other.set(executor.submit(() -> {
+                    try (var session = sessionFactory.openSession()) {
+                        ManagedSessionContext.bind(session);
+                        try {
+                            db.saveRecords(ItemRecord.builder().layerId(3L).path("path").type(Type.File).build());
+                        }
+                        finally {
+                            ManagedSessionContext.unbind(sessionFactory);
+                        }
+                    }
+                }));
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                assertThat(other.get()).isNotDone();
+            });
+            // Does not fail with a constraint violation on the path of the projection
+            other.get().get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        daoTestExtension.inTransaction(() -> {
+            assertThat(db.getLatestItemRecord("path").orElseThrow().getLayerId()).isEqualTo(3L);
+        });
+    }
 }
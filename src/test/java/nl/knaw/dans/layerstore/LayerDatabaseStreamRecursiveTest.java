@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.NoSuchFileException;
+
+import static nl.knaw.dans.layerstore.Item.Type.Directory;
+import static nl.knaw.dans.layerstore.Item.Type.File;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class LayerDatabaseStreamRecursiveTest extends AbstractLayerDatabaseTest {
+
+    @Test
+    public void should_stream_latest_items_ordered_by_path() throws Exception {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/sub", Directory);
+        addToDb(2L, "dir/sub/file2", File);
+        addToDb(1L, "dir/file1", File);
+        addToDb(2L, "dir/file1", File);
+        addToDb(1L, "other", Directory);
+
+        try (var items = db.streamRecursive("dir")) {
+            assertThat(items).containsExactly(
+                new Item("dir/file1", File),
+                new Item("dir/sub", Directory),
+                new Item("dir/sub/file2", File));
+        }
+    }
+
+    @Test
+    public void should_stream_empty_directory_as_empty_stream() throws Exception {
+        addToDb(1L, "dir", Directory);
+
+        try (var items = db.streamRecursive("dir")) {
+            assertThat(items).isEmpty();
+        }
+    }
+
+    @Test
+    public void should_throw_NoSuchFileException_when_directory_does_not_exist() {
+        assertThatThrownBy(() -> db.streamRecursive("dir"))
+            .isInstanceOf(NoSuchFileException.class)
+            .hasMessage("No such directory: dir");
+    }
+
+    @Test
+    public void should_stream_items_in_layer_without_items_in_other_layers() {
+        addToDb(1L, "dir", Directory);
+        addToDb(1L, "dir/file1", File);
+        addToDb(2L, "dir", Directory);
+        addToDb(2L, "dir/file2", File);
+
+        try (var items = db.streamItemsByLayerId(2L)) {
+            assertThat(items).containsExactly(
+                new Item("dir", Directory),
+                new Item("dir/file2", File));
+        }
+    }
+}
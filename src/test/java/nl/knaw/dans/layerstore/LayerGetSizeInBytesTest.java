@@ -15,6 +15,8 @@
  */
 package nl.knaw.dans.layerstore;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.junit.jupiter.api.Test;
 
 import java.nio.file.Files;
@@ -50,13 +52,31 @@ public class LayerGetSizeInBytesTest extends AbstractTestWithTestDir {
     }
 
     @Test
-    public void should_throw_UnsupportedOperationException_when_layer_is_archived() throws Exception {
+    public void should_read_size_from_manifest_when_layer_is_archived() throws Exception {
         Files.createDirectories(archiveRoot);
         var layer = new LayerImpl(1, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
         Files.createDirectories(stagingDir);
+        layer.writeFile("test.txt", toInputStream("Hello world!", UTF_8));
+        layer.createDirectories("path/to");
+        layer.writeFile("path/to/other.txt", toInputStream("Whatever", UTF_8));
         layer.close();
         layer.archive(false);
 
+        assertThat(layer.getSizeInBytes()).isEqualTo(20L);
+    }
+
+    @Test
+    public void should_throw_UnsupportedOperationException_when_archive_has_no_manifest() throws Exception {
+        Files.createDirectories(archiveRoot);
+        var zipFile = archiveRoot.resolve("test.zip");
+        // An archive as it was written before manifests were introduced
+        try (var zipOutput = new ZipArchiveOutputStream(zipFile)) {
+            zipOutput.putArchiveEntry(new ZipArchiveEntry("test.txt"));
+            zipOutput.write("Hello world!".getBytes(UTF_8));
+            zipOutput.closeArchiveEntry();
+        }
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new ZipArchive(zipFile));
+
         assertThatThrownBy(layer::getSizeInBytes).
             isInstanceOf(UnsupportedOperationException.class)
             .hasMessage("Layer is ARCHIVED");
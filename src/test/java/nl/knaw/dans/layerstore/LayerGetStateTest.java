@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LayerGetStateTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void should_read_state_from_storage_on_first_use() throws Exception {
+        Files.createDirectories(stagingRoot.resolve("1234567890123.closed"));
+        var layer = new LayerImpl(1234567890123L, new StagingDir(stagingRoot, 1234567890123L), new ZipArchive(archiveRoot.resolve("test.zip")));
+
+        assertThat(layer.getState()).isEqualTo(Layer.State.CLOSED);
+    }
+
+    @Test
+    public void should_keep_state_in_memory_after_first_use() throws Exception {
+        Files.createDirectories(stagingDir);
+        var layer = new LayerImpl(1234567890123L, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+
+        // Changed behind the layer's back
+        Files.move(stagingDir, stagingRoot.resolve("1234567890123.closed"));
+
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+    }
+
+    @Test
+    public void should_read_state_from_storage_again_when_reconciled() throws Exception {
+        Files.createDirectories(archiveRoot);
+        createEmptyStagingDirFiles("path/to/file1");
+        var layer = new LayerImpl(1234567890123L, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        layer.close();
+        layer.archive(false);
+        assertThat(layer.getState()).isEqualTo(Layer.State.ARCHIVED);
+
+        // Changed behind the layer's back
+        Files.createDirectories(stagingDir);
+        layer.reconcileState();
+
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+    }
+
+    @Test
+    public void should_not_reconcile_while_archiving() throws Exception {
+        Files.createDirectories(archiveRoot);
+        createEmptyStagingDirFiles("path/to/file1");
+        var archiving = new CountDownLatch(1);
+        var proceed = new CountDownLatch(1);
+        var archive = new ZipArchive(archiveRoot.resolve("test.zip")) {
+
+            @Override
+            public void archiveFrom(Path stagingDir) {
+                archiving.countDown();
+                try {
+                    proceed.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.archiveFrom(stagingDir);
+            }
+        };
+        var layer = new LayerImpl(1234567890123L, new StagingDir(stagingDir), archive);
+        layer.close();
+        var archiver = Executors.newSingleThreadExecutor();
+        try {
+            var archived = archiver.submit(() -> layer.archive(false));
+            archiving.await();
+
+            // Does not wait for the archive job, and does not replace the state that it will set
+            assertThat(layer.reconcileState()).isFalse();
+            proceed.countDown();
+            archived.get();
+        }
+        finally {
+            archiver.shutdown();
+        }
+
+        assertThat(layer.getState()).isEqualTo(Layer.State.ARCHIVED);
+        assertThat(layer.reconcileState()).isTrue();
+        assertThat(layer.getState()).isEqualTo(Layer.State.ARCHIVED);
+    }
+
+    @Test
+    public void should_follow_state_transitions() throws Exception {
+        Files.createDirectories(archiveRoot);
+        createEmptyStagingDirFiles("path/to/file1");
+        var layer = new LayerImpl(1234567890123L, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+
+        layer.close();
+        assertThat(layer.getState()).isEqualTo(Layer.State.CLOSED);
+
+        layer.archive(false);
+        assertThat(layer.getState()).isEqualTo(Layer.State.ARCHIVED);
+        assertThat(layer.fileExists("path/to/file1")).isTrue();
+
+        layer.reopen();
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+        assertThat(stagingDir.resolve("path/to/file1")).exists();
+    }
+}
@@ -19,6 +19,12 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.commons.io.IOUtils.toInputStream;
@@ -27,6 +33,20 @@ import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 
 public class LayerManagerGetLayerTest extends AbstractTestWithTestDir {
 
+    private static class CountingZipArchiveProvider extends ZipArchiveProvider {
+        private final AtomicInteger existsCalls = new AtomicInteger();
+
+        CountingZipArchiveProvider(Path archiveRoot) {
+            super(archiveRoot);
+        }
+
+        @Override
+        public boolean exists(long layerId) {
+            existsCalls.incrementAndGet();
+            return super.exists(layerId);
+        }
+    }
+
     @Test
     public void should_throw_when_layer_id_does_not_exist() throws IOException {
         // Given
@@ -112,4 +132,173 @@ public class LayerManagerGetLayerTest extends AbstractTestWithTestDir {
         assertThat(layer.getState()).isEqualTo(Layer.State.ARCHIVED);
     }
 
+    @Test
+    public void should_return_the_same_handle_for_a_layer_that_was_the_top_layer() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        layerManager.newTopLayer();
+        var initialLayer = layerManager.getTopLayer();
+        layerManager.newTopLayer();
+
+        // When
+        var layer = layerManager.getLayer(initialLayer.getId());
+
+        // Then
+        assertThat(layer).isSameAs(initialLayer);
+    }
+
+    @Test
+    public void should_look_for_a_layer_on_storage_only_once_within_the_revalidation_interval() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        layerManager.newTopLayer();
+        var initialLayerId = layerManager.getTopLayerId();
+        layerManager.newTopLayer();
+        var archiveProvider = new CountingZipArchiveProvider(archiveRoot);
+        var newLayerManager = new LayerManagerImpl(stagingDir, archiveProvider, new DirectLayerArchiver());
+
+        // When
+        var layer1 = newLayerManager.getLayer(initialLayerId);
+        var layer2 = newLayerManager.getLayer(initialLayerId);
+
+        // Then
+        assertThat(layer2).isSameAs(layer1);
+        assertThat(layer1.getState()).isEqualTo(Layer.State.ARCHIVED);
+        assertThat(archiveProvider.existsCalls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_look_for_a_layer_on_storage_again_after_the_revalidation_interval() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var archiveProvider = new CountingZipArchiveProvider(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, archiveProvider, new DirectLayerArchiver(), true, Duration.ZERO);
+        layerManager.newTopLayer();
+        var initialLayerId = layerManager.getTopLayerId();
+        layerManager.newTopLayer();
+        Files.delete(archiveRoot.resolve(initialLayerId + ".zip"));
+
+        // When / Then
+        assertThatThrownBy(() -> layerManager.getLayer(initialLayerId))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("No layer found with id " + initialLayerId);
+    }
+
+    @Test
+    public void should_keep_the_handle_of_a_layer_that_is_archived_across_a_revalidation() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var archiving = new CountDownLatch(1);
+        var proceed = new CountDownLatch(1);
+        var archiveProvider = new ZipArchiveProvider(archiveRoot) {
+
+            @Override
+            public Archive createArchive(long layerId, boolean exists) {
+                return new ZipArchive(archiveRoot.resolve(layerId + ".zip")) {
+
+                    @Override
+                    public void archiveFrom(Path stagingDir) {
+                        archiving.countDown();
+                        try {
+                            proceed.await();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.archiveFrom(stagingDir);
+                    }
+                };
+            }
+        };
+        var archiver = Executors.newSingleThreadExecutor();
+        LayerArchiver asyncArchiver = (layer, overwrite) -> archiver.submit(() -> layer.archive(overwrite));
+        var layerManager = new LayerManagerImpl(stagingDir, archiveProvider, asyncArchiver, true, Duration.ZERO);
+        layerManager.newTopLayer();
+        var initialLayer = layerManager.getTopLayer();
+        initialLayer.writeFile("test.txt", toInputStream("Hello world!", UTF_8));
+        try {
+            layerManager.newTopLayer();
+            archiving.await();
+
+            // When
+            var duringArchiving = layerManager.getLayer(initialLayer.getId());
+            proceed.countDown();
+            archiver.shutdown();
+            assertThat(archiver.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+            var afterArchiving = layerManager.getLayer(initialLayer.getId());
+
+            // Then
+            assertThat(duringArchiving).isSameAs(initialLayer);
+            assertThat(afterArchiving).isSameAs(initialLayer);
+            assertThat(afterArchiving.getState()).isEqualTo(Layer.State.ARCHIVED);
+            try (var inputStream = afterArchiving.readFile("test.txt")) {
+                assertThat(inputStream).hasContent("Hello world!");
+            }
+        }
+        finally {
+            proceed.countDown();
+            archiver.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_look_for_a_layer_on_storage_again_after_it_has_been_invalidated() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        layerManager.newTopLayer();
+        var initialLayerId = layerManager.getTopLayerId();
+        layerManager.newTopLayer();
+        assertThat(layerManager.getLayer(initialLayerId).getId()).isEqualTo(initialLayerId);
+        Files.delete(archiveRoot.resolve(initialLayerId + ".zip"));
+
+        // When
+        layerManager.invalidateLayer(initialLayerId);
+
+        // Then
+        assertThatThrownBy(() -> layerManager.getLayer(initialLayerId))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("No layer found with id " + initialLayerId);
+    }
+
+    @Test
+    public void should_keep_the_handle_of_a_layer_that_has_been_invalidated() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var archiveProvider = new CountingZipArchiveProvider(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, archiveProvider, new DirectLayerArchiver());
+        layerManager.newTopLayer();
+        var initialLayerId = layerManager.getTopLayerId();
+        layerManager.newTopLayer();
+        var before = layerManager.getLayer(initialLayerId);
+        int existsCallsBefore = archiveProvider.existsCalls.get();
+
+        // When
+        layerManager.invalidateLayer(initialLayerId);
+        var after = layerManager.getLayer(initialLayerId);
+
+        // Then
+        assertThat(after).isSameAs(before);
+        assertThat(after.getState()).isEqualTo(Layer.State.ARCHIVED);
+        assertThat(archiveProvider.existsCalls.get()).isEqualTo(existsCallsBefore + 1);
+    }
+
+    @Test
+    public void should_keep_the_handles_of_all_layers_that_have_been_invalidated() throws Exception {
+        // Given
+        Files.createDirectories(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingDir, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        layerManager.newTopLayer();
+        var initialLayerId = layerManager.getTopLayerId();
+        layerManager.newTopLayer();
+        var before = layerManager.getLayer(initialLayerId);
+
+        // When
+        layerManager.invalidateLayers();
+
+        // Then
+        assertThat(layerManager.getLayer(initialLayerId)).isSameAs(before);
+    }
 }
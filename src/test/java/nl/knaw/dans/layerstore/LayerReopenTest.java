@@ -17,11 +17,16 @@ package nl.knaw.dans.layerstore;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
 
-import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
-import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 
 public class LayerReopenTest extends AbstractTestWithTestDir {
@@ -59,4 +64,134 @@ public class LayerReopenTest extends AbstractTestWithTestDir {
         assertThat(stagingDir.resolve("path/to/file1")).exists();
         assertThat(stagingDir.resolve("path/to/file2")).exists();
     }
+
+    @Test
+    public void should_restore_only_selected_subtrees() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new TarArchive(archiveRoot.resolve("test.tar")));
+        createEmptyStagingDirFiles("dataset1/file1", "dataset1/sub/file2", "dataset2/file3", "file4");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of("dataset1/sub"));
+
+        assertThat(layer.getState()).isEqualTo(Layer.State.OPEN);
+        assertThat(stagingDir.resolve("dataset1/sub/file2")).exists();
+        assertThat(stagingDir.resolve("dataset1/file1")).doesNotExist();
+        assertThat(stagingDir.resolve("dataset2")).doesNotExist();
+        assertThat(stagingDir.resolve("file4")).doesNotExist();
+        assertThat(stagingRoot.resolve("1234567890123.overlay")).exists();
+    }
+
+    @Test
+    public void should_read_unselected_files_from_archive() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        createStagingFileWithContent("dataset1/file1", "file1 content");
+        createStagingFileWithContent("dataset2/file2", "file2 content");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of("dataset1"));
+
+        try (var inputStream = layer.readFile("dataset2/file2")) {
+            assertThat(inputStream).hasContent("file2 content");
+        }
+        assertThat(layer.fileExists("dataset2/file2")).isTrue();
+        assertThat(layer.fileExists("dataset2/missing")).isFalse();
+        assertThat(layer.listAllItems()).toIterable().extracting(Item::getPath)
+            // Zip archives list directories with a trailing slash
+            .containsExactlyInAnyOrder("", "dataset1", "dataset1/file1", "dataset2/", "dataset2/file2");
+    }
+
+    @Test
+    public void should_hide_archived_files_deleted_outside_selected_subtrees() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new TarArchive(archiveRoot.resolve("test.tar")));
+        createEmptyStagingDirFiles("dataset1/file1", "dataset2/file2", "dataset2/file3");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of("dataset1"));
+        layer.deleteFiles(List.of("dataset2/file2"));
+
+        assertThat(layer.fileExists("dataset2/file2")).isFalse();
+        assertThat(layer.fileExists("dataset2/file3")).isTrue();
+        assertThatThrownBy(() -> layer.readFile("dataset2/file2")).isInstanceOf(NoSuchFileException.class);
+        assertThatThrownBy(() -> layer.deleteFiles(List.of("dataset2/file2"))).isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    public void should_stage_only_changes_when_reopened_without_paths() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        createStagingFileWithContent("dataset1/file1", "old content");
+        createStagingFileWithContent("dataset1/sub/file2", "file2 content");
+        createStagingFileWithContent("dataset2/file3", "file3 content");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of());
+        assertThat(stagingDir).isEmptyDirectory();
+
+        layer.writeFile("dataset1/file1", new ByteArrayInputStream("new content".getBytes(StandardCharsets.UTF_8)));
+        layer.moveDirectoryInternal("dataset1/sub", "dataset2/sub");
+        layer.deleteDirectory("dataset2/sub");
+
+        assertThat(stagingDir.resolve("dataset1/file1")).hasContent("new content");
+        assertThat(stagingDir.resolve("dataset2/file3")).doesNotExist();
+        try (var inputStream = layer.readFile("dataset2/file3")) {
+            assertThat(inputStream).hasContent("file3 content");
+        }
+
+        layer.close();
+        layer.archive(true);
+
+        assertThat(layer.listAllItems()).toIterable().extracting(Item::getPath)
+            .containsExactlyInAnyOrder("", "dataset1/", "dataset1/file1", "dataset2/", "dataset2/file3");
+        try (var inputStream = layer.readFile("dataset1/file1")) {
+            assertThat(inputStream).hasContent("new content");
+        }
+    }
+
+    @Test
+    public void should_not_move_directory_onto_archived_directory() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new TarArchive(archiveRoot.resolve("test.tar")));
+        createEmptyStagingDirFiles("dataset1/file1", "dataset2/file2");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of());
+
+        assertThatThrownBy(() -> layer.moveDirectoryInternal("dataset1", "dataset2")).isInstanceOf(FileAlreadyExistsException.class);
+    }
+
+    @Test
+    public void should_carry_over_unselected_entries_when_archived_again() throws IOException {
+        Files.createDirectories(archiveRoot);
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new TarArchive(archiveRoot.resolve("test.tar")));
+        createStagingFileWithContent("dataset1/file1", "old content");
+        createStagingFileWithContent("dataset1/file2", "file2 content");
+        createStagingFileWithContent("dataset2/file3", "file3 content");
+        layer.close();
+        layer.archive(false);
+
+        layer.reopen(List.of("dataset1"));
+        layer.writeFile("dataset1/file1", new ByteArrayInputStream("new content".getBytes(StandardCharsets.UTF_8)));
+        layer.deleteFiles(List.of("dataset1/file2"));
+        layer.close();
+        layer.archive(true);
+
+        assertThat(stagingDir).doesNotExist();
+        assertThat(stagingRoot.resolve("1234567890123.overlay")).doesNotExist();
+        assertThat(layer.listAllItems()).toIterable().extracting(Item::getPath)
+            .containsExactlyInAnyOrder("", "dataset1", "dataset1/file1", "dataset2", "dataset2/file3");
+        try (var inputStream = layer.readFile("dataset1/file1")) {
+            assertThat(inputStream).hasContent("new content");
+        }
+        try (var inputStream = layer.readFile("dataset2/file3")) {
+            assertThat(inputStream).hasContent("file3 content");
+        }
+    }
 }
@@ -50,4 +50,15 @@ public class LayerWriteFileTest extends AbstractTestWithTestDir {
             isInstanceOf(IllegalStateException.class)
             .hasMessageContaining("must be in state OPEN");
     }
+
+    @Test
+    public void should_throw_IllegalArgumentException_when_path_is_that_of_the_manifest() throws Exception {
+        var layer = new LayerImpl(1, new StagingDir(stagingDir), new ZipArchive(archiveRoot.resolve("test.zip")));
+        Files.createDirectories(stagingDir);
+
+        assertThatThrownBy(() -> layer.writeFile(ArchiveManifest.NAME, toInputStream("whatever", UTF_8)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("reserved");
+        assertThat(stagingDir.resolve(ArchiveManifest.NAME)).doesNotExist();
+    }
 }
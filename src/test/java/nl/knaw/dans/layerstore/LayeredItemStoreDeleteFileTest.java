@@ -85,4 +85,48 @@ public class LayeredItemStoreDeleteFileTest extends AbstractLayerDatabaseTest {
         );
         assertThat(list2).containsExactlyInAnyOrder("", "a", "a/b", "a/b/c", "a/b/c/d");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_delete_a_file_that_is_listed_twice_once() throws Exception {
+        // Given
+        var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        var layeredStore = new LayeredItemStore(db, layerManager);
+        layerManager.newTopLayer();
+        layeredStore.createDirectories("a");
+        layeredStore.writeFile("a/test1.txt", toInputStream("Hello world!", UTF_8));
+
+        // When
+        layeredStore.deleteFiles(List.of("a/test1.txt", "a/test1.txt"));
+
+        // Then
+        Path layerDir = stagingRoot.resolve(Path.of(String.valueOf((layerManager.getTopLayer().getId()))));
+        assertThat(layerDir.resolve("a/test1.txt")).doesNotExist();
+        var list = daoTestExtension.inTransaction(() ->
+            db.getAllRecords().toList().stream().map(ItemRecord::getPath)
+        );
+        assertThat(list).containsExactlyInAnyOrder("", "a");
+    }
+
+    @Test
+    public void should_not_delete_any_file_when_one_of_the_paths_has_no_record() throws Exception {
+        // Given
+        var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        var layeredStore = new LayeredItemStore(db, layerManager);
+        layerManager.newTopLayer();
+        layeredStore.createDirectories("a");
+        layeredStore.writeFile("a/test1.txt", toInputStream("Hello world!", UTF_8));
+
+        // When / Then
+        assertThatThrownBy(() -> layeredStore.deleteFiles(List.of("a/test1.txt", "a/missing.txt")))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessage("Expecting 1 but got 0 records for a/missing.txt");
+
+        // And: the existing file and its record are left alone
+        Path layerDir = stagingRoot.resolve(Path.of(String.valueOf((layerManager.getTopLayer().getId()))));
+        assertThat(layerDir.resolve("a/test1.txt")).exists();
+        var list = daoTestExtension.inTransaction(() ->
+            db.getAllRecords().toList().stream().map(ItemRecord::getPath)
+        );
+        assertThat(list).containsExactlyInAnyOrder("", "a", "a/test1.txt");
+    }
+}
@@ -47,6 +47,10 @@ public class LayeredItemStoreMoveDirectoryInternalTest extends AbstractLayerData
         var layerDir = stagingRoot.resolve(String.valueOf(layerManager.getTopLayer().getId()));
         assertThat(layerDir.resolve("a/b/c/d/x/test.txt")).exists();
         assertThat(layerDir.resolve("a/b/e")).exists();
+        assertThat(layeredStore.listDirectory("a/b/e")).isEmpty();
+        assertThat(layeredStore.listRecursive("a/b/c/d")).containsExactlyInAnyOrder(
+            new Item("a/b/c/d/x", Item.Type.Directory),
+            new Item("a/b/c/d/x/test.txt", Item.Type.File));
     }
 
     @Test
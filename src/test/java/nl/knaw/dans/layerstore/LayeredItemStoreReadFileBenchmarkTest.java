@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.commons.io.IOUtils.toInputStream;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the number of reads per second of {@link LayeredItemStore#readFile(String)} on H2, compared to the way readFile used to resolve a path: a LIKE query, a query for all versions of the
+ * path with their content and two calls to {@link LayerManager#getLayer(long)}. Only runs when the system property <code>layerstore.benchmarks</code> is set to <code>true</code>. The number
+ * of files and reads can be set with <code>layerstore.benchmarks.files</code> and <code>layerstore.benchmarks.reads</code>.
+ */
+@Slf4j
+public class LayeredItemStoreReadFileBenchmarkTest extends AbstractLayerDatabaseTest {
+    private static final int NUMBER_OF_FILES = Integer.getInteger("layerstore.benchmarks.files", 1000);
+    private static final int NUMBER_OF_READS = Integer.getInteger("layerstore.benchmarks.reads", 20_000);
+
+    enum Source {
+        // The files are in the top layer
+        TOP_LAYER,
+        // The files are in an archived layer below the top layer
+        ARCHIVED_LAYER,
+        // A copy of the content of the files is stored in the database
+        DATABASE
+    }
+
+    private static class StoreAllContent extends NoopDatabaseBackedContentManager {
+        @Override
+        public boolean test(String path) {
+            return true;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Reader {
+        InputStream read(String path) throws IOException;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Source.class)
+    @EnabledIf("nl.knaw.dans.layerstore.TestConditions#benchmarksEnabled")
+    public void readFile(Source source) throws Exception {
+        Files.createDirectories(archiveRoot);
+        var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        var layeredStore = new LayeredItemStore(db, layerManager, source == Source.DATABASE ? new StoreAllContent() : null);
+        layeredStore.newTopLayer();
+        layeredStore.createDirectories("dir");
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            layeredStore.writeFile("dir/file" + i, toInputStream("Content of file " + i, UTF_8));
+        }
+        if (source == Source.ARCHIVED_LAYER) {
+            layeredStore.newTopLayer();
+        }
+
+        long before = measureReadsPerSecond(path -> readFileAsBefore(layerManager, path));
+        long after = measureReadsPerSecond(layeredStore::readFile);
+
+        log.info("source={}: before {} reads/s, after {} reads/s", source, before, after);
+        assertThat(after).isPositive();
+    }
+
+    private long measureReadsPerSecond(Reader reader) throws IOException {
+        // Warm up
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            readAndCheck(reader, i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < NUMBER_OF_READS; i++) {
+            readAndCheck(reader, i % NUMBER_OF_FILES);
+        }
+        return NUMBER_OF_READS * 1_000_000_000L / Math.max(System.nanoTime() - start, 1);
+    }
+
+    private static void readAndCheck(Reader reader, int fileNumber) throws IOException {
+        try (var is = reader.read("dir/file" + fileNumber)) {
+            assertThat(new String(is.readAllBytes(), UTF_8)).isEqualTo("Content of file " + fileNumber);
+        }
+    }
+
+    /*
+     * The path resolution of readFile before it used the latest item records.
+     */
+    private InputStream readFileAsBefore(LayerManager layerManager, String path) throws IOException {
+        if (!db.existsPathLike(path)) {
+            throw new NoSuchFileException(path);
+        }
+        var latestRecord = getRecordsByPathWithContent(path).get(0);
+        if (latestRecord.getType() == Item.Type.Directory) {
+            throw new IOException("Path is a directory: " + path);
+        }
+        if (!latestRecord.hasContent()) {
+            if (layerManager.getLayer(latestRecord.getLayerId()).getState() == Layer.State.ARCHIVED) {
+                log.trace("Reading from archived layer {}", latestRecord.getLayerId());
+            }
+            return layerManager.getLayer(latestRecord.getLayerId()).readFile(path);
+        }
+        return new ByteArrayInputStream(latestRecord.getContent());
+    }
+
+    /*
+     * The content used to be stored in the same row as the record, so the query for the records of a path read it as well. getRecordsByPath no longer does, so the content is fetched with a join
+     * to measure the same work.
+     */
+    private List<ItemRecord> getRecordsByPathWithContent(String path) {
+        var session = daoTestExtension.getSessionFactory().getCurrentSession();
+        CriteriaBuilder cb = session.getCriteriaBuilder();
+        CriteriaQuery<ItemRecord> cq = cb.createQuery(ItemRecord.class);
+        Root<ItemRecord> itemRecordRoot = cq.from(ItemRecord.class);
+        itemRecordRoot.fetch("storedContent", JoinType.LEFT);
+        cq.select(itemRecordRoot).where(cb.equal(itemRecordRoot.get("path"), path));
+        cq.orderBy(cb.desc(itemRecordRoot.get("layerId")));
+        return session.createQuery(cq).getResultList();
+    }
+}
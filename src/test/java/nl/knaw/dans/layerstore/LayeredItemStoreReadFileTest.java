@@ -82,6 +82,51 @@ public class LayeredItemStoreReadFileTest extends AbstractLayerDatabaseTest {
             .hasMessage("Path is a directory: a/b");
     }
 
+    @Test
+    public void should_read_content_from_archived_layer_through_cache() throws Exception {
+        var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        var cache = new DiskArchivedContentCache(testDir.resolve("cache"), 1024);
+        var layeredStore = new LayeredItemStore(db, layerManager, null, new ItemsMatchDbConsistencyChecker(db, layerManager), cache);
+        var layerId = layeredStore.newTopLayer();
+        layeredStore.writeFile("test.txt", toInputStream("Hello world!", UTF_8));
+        layeredStore.newTopLayer();
+        assertThat(layerManager.getLayer(layerId).getState()).isEqualTo(Layer.State.ARCHIVED);
+
+        for (int i = 0; i < 2; i++) {
+            try (var inputStream = layeredStore.readFile("test.txt")) {
+                assertThat(inputStream).hasContent("Hello world!");
+            }
+        }
+
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_discard_cached_content_when_archive_is_overwritten() throws Exception {
+        var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
+        var cache = new DiskArchivedContentCache(testDir.resolve("cache"), 1024);
+        var layeredStore = new LayeredItemStore(db, layerManager, null, new ItemsMatchDbConsistencyChecker(db, layerManager), cache);
+        var layerId = layeredStore.newTopLayer();
+        layeredStore.writeFile("test.txt", toInputStream("Hello world!", UTF_8));
+        layeredStore.newTopLayer();
+        try (var inputStream = layeredStore.readFile("test.txt")) {
+            assertThat(inputStream).hasContent("Hello world!");
+        }
+
+        // Change the archived content behind the store's back and archive it again
+        var layer = layerManager.getLayer(layerId);
+        layer.reopen();
+        Files.writeString(stagingRoot.resolve(Long.toString(layerId)).resolve("test.txt"), "Goodbye world!");
+        layer.close();
+        layeredStore.archiveLayer(layerId, true);
+
+        try (var inputStream = layeredStore.readFile("test.txt")) {
+            assertThat(inputStream).hasContent("Goodbye world!");
+        }
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
     @Test
     public void should_throw_no_such_file() throws IOException {
         var layerManager = new LayerManagerImpl(stagingRoot, new ZipArchiveProvider(archiveRoot), new DirectLayerArchiver());
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.commons.io.IOUtils.toInputStream;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+public class LayeredItemStoreReadFilesTest extends AbstractLayerDatabaseTest {
+    private static class StoreTxtContent extends NoopDatabaseBackedContentManager {
+        @Override
+        public boolean test(String path) {
+            return path.endsWith(".txt");
+        }
+    }
+
+    /*
+     * Records the bulk reads of the archives it creates.
+     */
+    private static class RecordingTarArchiveProvider extends TarArchiveProvider {
+        private final Path archiveRoot;
+        private final List<List<String>> bulkReads = new ArrayList<>();
+
+        RecordingTarArchiveProvider(Path archiveRoot) {
+            super(archiveRoot);
+            this.archiveRoot = archiveRoot;
+        }
+
+        @Override
+        public Archive createArchive(long layerId, boolean exists) {
+            return new TarArchive(archiveRoot.resolve(layerId + ".tar")) {
+
+                @Override
+                public void readFiles(Collection<String> filePaths, ItemStore.FileContentConsumer consumer) throws IOException {
+                    bulkReads.add(List.copyOf(filePaths));
+                    super.readFiles(filePaths, consumer);
+                }
+            };
+        }
+    }
+
+    private RecordingTarArchiveProvider archiveProvider;
+    private LayerManager layerManager;
+    private LayeredItemStore layeredStore;
+    private long firstLayerId;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        Files.createDirectories(archiveRoot);
+        archiveProvider = new RecordingTarArchiveProvider(archiveRoot);
+        layerManager = new LayerManagerImpl(stagingRoot, archiveProvider, new DirectLayerArchiver());
+        layeredStore = new LayeredItemStore(db, layerManager, new StoreTxtContent());
+        firstLayerId = layeredStore.newTopLayer();
+        layeredStore.createDirectories("dir");
+        for (var path : List.of("a.bin", "b.bin", "dir/c.bin", "d.txt")) {
+            layeredStore.writeFile(path, toInputStream(path + " in first layer", UTF_8));
+        }
+        // Archives the first layer
+        layeredStore.newTopLayer();
+        for (var path : List.of("a.bin", "e.bin")) {
+            layeredStore.writeFile(path, toInputStream(path + " in second layer", UTF_8));
+        }
+    }
+
+    private LinkedHashMap<String, String> readFiles(List<String> paths) throws IOException {
+        var contents = new LinkedHashMap<String, String>();
+        layeredStore.readFiles(paths, (path, content) -> contents.put(path, new String(content.readAllBytes(), UTF_8)));
+        return contents;
+    }
+
+    @Test
+    public void should_deliver_latest_content_of_each_file() throws Exception {
+        var contents = readFiles(List.of("e.bin", "a.bin", "dir/c.bin", "d.txt", "b.bin", "a.bin"));
+
+        assertThat(contents).containsOnly(
+            entry("a.bin", "a.bin in second layer"),
+            entry("b.bin", "b.bin in first layer"),
+            entry("dir/c.bin", "dir/c.bin in first layer"),
+            entry("d.txt", "d.txt in first layer"),
+            entry("e.bin", "e.bin in second layer"));
+    }
+
+    @Test
+    public void should_deliver_database_content_first_then_layer_by_layer_in_entry_order() throws Exception {
+        var contents = readFiles(List.of("e.bin", "a.bin", "dir/c.bin", "d.txt", "b.bin"));
+
+        var entryOrder = new ArrayList<String>();
+        for (var entry : TarArchiveIndex.load(archiveRoot.resolve(firstLayerId + ".tar")).getEntries()) {
+            if (entry.name().equals("b.bin") || entry.name().equals("dir/c.bin")) {
+                entryOrder.add(entry.name());
+            }
+        }
+        var expected = new ArrayList<String>();
+        expected.add("d.txt");
+        expected.addAll(entryOrder);
+        expected.addAll(List.of("a.bin", "e.bin"));
+        assertThat(contents.keySet()).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void should_read_the_files_of_an_archived_layer_with_one_bulk_read() throws Exception {
+        readFiles(List.of("e.bin", "a.bin", "dir/c.bin", "d.txt", "b.bin"));
+
+        assertThat(archiveProvider.bulkReads).hasSize(1);
+        assertThat(archiveProvider.bulkReads.get(0)).containsExactlyInAnyOrder("b.bin", "dir/c.bin");
+    }
+
+    @Test
+    public void should_not_read_the_archive_for_cached_files() throws Exception {
+        var cache = new DiskArchivedContentCache(testDir.resolve("cache"), 1000);
+        var cachingStore = new LayeredItemStore(db, layerManager, new StoreTxtContent(), new ItemsMatchDbConsistencyChecker(db), cache);
+        cachingStore.readFiles(List.of("b.bin"), (path, content) -> content.readAllBytes());
+        archiveProvider.bulkReads.clear();
+
+        var contents = new LinkedHashMap<String, String>();
+        cachingStore.readFiles(List.of("b.bin", "dir/c.bin"), (path, content) -> contents.put(path, new String(content.readAllBytes(), UTF_8)));
+        cachingStore.readFiles(List.of("b.bin"), (path, content) -> contents.put(path, new String(content.readAllBytes(), UTF_8)));
+
+        assertThat(contents).containsOnly(
+            entry("b.bin", "b.bin in first layer"),
+            entry("dir/c.bin", "dir/c.bin in first layer"));
+        assertThat(archiveProvider.bulkReads).containsExactly(List.of("dir/c.bin"));
+        assertThat(cache.getHitCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_deliver_nothing_if_a_path_does_not_exist() {
+        var delivered = new ArrayList<String>();
+
+        assertThatThrownBy(() -> layeredStore.readFiles(List.of("a.bin", "missing.bin"), (path, content) -> delivered.add(path)))
+            .isInstanceOf(NoSuchFileException.class)
+            .hasMessage("missing.bin");
+        assertThat(delivered).isEmpty();
+    }
+
+    @Test
+    public void should_deliver_nothing_if_a_path_is_a_directory() {
+        var delivered = new ArrayList<String>();
+
+        assertThatThrownBy(() -> layeredStore.readFiles(List.of("a.bin", "dir"), (path, content) -> delivered.add(path)))
+            .isInstanceOf(IOException.class)
+            .hasMessage("Path is a directory: dir");
+        assertThat(delivered).isEmpty();
+    }
+}
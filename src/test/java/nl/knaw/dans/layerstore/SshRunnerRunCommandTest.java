@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the connection sharing of the runner against a stand-in for ssh that logs its invocations. The stand-in master writes its process ID to the control path instead of creating a socket.
+ */
+@DisabledOnOs(OS.WINDOWS)
+public class SshRunnerRunCommandTest extends AbstractTestWithTestDir {
+    private static final String STUB_SCRIPT = """
+        #!/bin/bash
+        log="$(dirname "$0")/invocations.log"
+        for arg in "$@"; do
+          case "$arg" in ControlPath=*) socket="${arg#ControlPath=}";; esac
+        done
+        case " $* " in
+          *" -M "*)
+            echo "start master" >> "$log"
+            [ -f "$(dirname "$0")/failing-master" ] && exit 255
+            [ -f "$(dirname "$0")/slow-master" ] && sleep 0.5
+            echo $$ > "$socket"
+            trap 'rm -f "$socket"; exit 0' TERM
+            while true; do sleep 0.05; done
+            ;;
+          *" -O check "*)
+            [ -f "$socket" ] && kill -0 "$(cat "$socket")" 2>/dev/null && exit 0
+            exit 255
+            ;;
+          *" -O exit "*)
+            echo "stop master" >> "$log"
+            [ -f "$socket" ] && kill "$(cat "$socket")"
+            exit 0
+            ;;
+        esac
+        if [ -n "$socket" ] && [ -f "$socket" ]; then via="master"; else via="direct"; fi
+        echo "${@: -1} via $via" >> "$log"
+        """;
+
+    private Path ssh;
+    private Path invocationsLog;
+    private Path controlDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        var binDir = Files.createDirectories(testDir.resolve("bin").toAbsolutePath());
+        ssh = Files.writeString(binDir.resolve("ssh"), STUB_SCRIPT);
+        Files.setPosixFilePermissions(ssh, PosixFilePermissions.fromString("rwxr-xr-x"));
+        invocationsLog = binDir.resolve("invocations.log");
+        controlDir = testDir.resolve("control").toAbsolutePath();
+    }
+
+    private void killMaster() throws Exception {
+        var pid = Long.parseLong(Files.readString(controlDir.resolve("user@host")).trim());
+        var master = ProcessHandle.of(pid).orElseThrow();
+        // Killed without a chance to clean up, so the control socket stays behind
+        master.destroyForcibly();
+        master.onExit().get();
+    }
+
+    @Test
+    public void should_send_commands_over_one_master_connection() throws Exception {
+        try (var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 1, controlDir)) {
+            runner.runCommand("first");
+            runner.runCommand("second");
+            runner.runCommand("third");
+
+            assertThat(runner.isConnected()).isTrue();
+        }
+
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly(
+            "start master",
+            "first via master",
+            "second via master",
+            "third via master",
+            "stop master");
+    }
+
+    @Test
+    public void should_start_a_new_master_when_the_old_one_died() throws Exception {
+        try (var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 1, controlDir)) {
+            runner.runCommand("first");
+            killMaster();
+
+            assertThat(runner.isConnected()).isFalse();
+            // The master was up before, so it is restarted right away
+            runner.runCommand("second");
+
+            assertThat(runner.isConnected()).isTrue();
+        }
+
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly(
+            "start master",
+            "first via master",
+            "start master",
+            "second via master",
+            "stop master");
+    }
+
+    @Test
+    public void should_connect_directly_while_another_command_waits_for_the_master() throws Exception {
+        Files.createFile(ssh.resolveSibling("slow-master"));
+        try (var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 5, controlDir)) {
+            var first = new Thread(() -> runner.runCommand("first"));
+            first.start();
+            while (!Files.exists(invocationsLog)) {
+                Thread.sleep(10);
+            }
+
+            runner.runCommand("second");
+            first.join();
+        }
+
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly(
+            "start master",
+            "second via direct",
+            "first via master",
+            "stop master");
+    }
+
+    @Test
+    public void should_not_restart_a_master_that_just_failed_to_start() throws Exception {
+        Files.createFile(ssh.resolveSibling("failing-master"));
+        try (var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 5, controlDir)) {
+            runner.runCommand("first");
+            runner.runCommand("second");
+
+            assertThat(runner.isConnected()).isFalse();
+        }
+
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly(
+            "start master",
+            "first via direct",
+            "second via direct");
+    }
+
+    @Test
+    public void should_connect_directly_after_close() throws Exception {
+        var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 1, controlDir);
+        runner.runCommand("first");
+        runner.close();
+
+        runner.runCommand("second");
+
+        assertThat(runner.isConnected()).isFalse();
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly(
+            "start master",
+            "first via master",
+            "stop master",
+            "second via direct");
+    }
+
+    @Test
+    public void should_connect_directly_without_control_dir() throws Exception {
+        try (var runner = new SshRunner(ssh, "user", "host", Path.of("/remote"), 1)) {
+            runner.runCommand("first");
+
+            assertThat(runner.isConnected()).isFalse();
+        }
+
+        assertThat(Files.readAllLines(invocationsLog)).containsExactly("first via direct");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StagingDirWalkerWalkTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void should_visit_entries_in_the_same_order_as_files_walk() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            createStagingFileWithContent("dir" + (i % 3) + "/sub" + (i % 2) + "/file" + i, "content" + i);
+        }
+        List<Path> expected;
+        try (var files = Files.walk(stagingDir)) {
+            expected = files.filter(file -> !file.equals(stagingDir)).toList();
+        }
+        var visited = new ArrayList<Path>();
+
+        StagingDirWalker.walk(stagingDir, (file, attributes) -> visited.add(file));
+
+        assertThat(visited).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void should_pass_attributes_of_symbolic_links_themselves() throws Exception {
+        createStagingFileWithContent("dir/file", "content");
+        Files.createSymbolicLink(stagingDir.resolve("link"), stagingDir.resolve("dir").toAbsolutePath());
+        var symbolicLinks = new ArrayList<Path>();
+        var visited = new ArrayList<Path>();
+
+        StagingDirWalker.walk(stagingDir, (file, attributes) -> {
+            visited.add(stagingDir.relativize(file));
+            if (attributes.isSymbolicLink()) {
+                symbolicLinks.add(stagingDir.relativize(file));
+            }
+        });
+
+        assertThat(symbolicLinks).containsExactly(Path.of("link"));
+        assertThat(visited).containsExactlyInAnyOrder(Path.of("dir"), Path.of("dir/file"), Path.of("link"));
+    }
+
+    @Test
+    public void should_visit_nothing_if_staging_dir_does_not_exist() throws Exception {
+        var visited = new ArrayList<Path>();
+
+        StagingDirWalker.walk(stagingDir, (file, attributes) -> visited.add(file));
+
+        assertThat(visited).isEmpty();
+    }
+}
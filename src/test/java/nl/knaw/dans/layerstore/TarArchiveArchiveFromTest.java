@@ -20,7 +20,10 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarFile;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Map.entry;
@@ -40,12 +43,13 @@ public class TarArchiveArchiveFromTest extends AbstractTestWithTestDir {
         // Archive the files
         archive.archiveFrom(stagingDir);
 
-        // Check that the tar file exists and contains the files and not more than that
+        // Check that the tar file exists and contains the files and not more than that, apart from the manifest
         assertThat(archiveFile).exists();
         try (var tar = new TarFile(archiveFile.toFile())) {
-            assertThat(tar.getEntries().stream().map(tarArchiveEntry ->
-                getEntry(tarArchiveEntry, tar)
-            )).containsExactlyInAnyOrder(
+            assertThat(tar.getEntries().stream()
+                .filter(tarArchiveEntry -> !ArchiveManifest.isManifest(tarArchiveEntry.getName()))
+                .map(tarArchiveEntry -> getEntry(tarArchiveEntry, tar))
+            ).containsExactlyInAnyOrder(
                 entry("file1", "file1 content"),
                 entry("path/", ""),
                 entry("path/to/", ""),
@@ -59,6 +63,38 @@ public class TarArchiveArchiveFromTest extends AbstractTestWithTestDir {
         assertThat(stagingDir).isNotEmptyDirectory();
     }
 
+    @Test
+    public void should_write_entries_in_walk_order_when_reading_on_several_threads() throws Exception {
+        var archiveFile = testDir.resolve("test.tar");
+        var archive = new TarArchive(archiveFile, new ArchiveReaderPool(2), null, 3);
+        for (int i = 0; i < 100; i++) {
+            createStagingFileWithContent("dir" + (i % 7) + "/file" + i, "content of file" + i);
+        }
+        // Larger than the files that are read ahead, so that it is streamed by the writer
+        var largeContent = "0123456789".repeat(TarEntryPrefetcher.MAX_PREFETCHED_FILE_SIZE / 5);
+        createStagingFileWithContent("dir3/large", largeContent);
+        List<String> expectedOrder;
+        try (var files = Files.walk(stagingDir)) {
+            // The manifest is written after the files
+            expectedOrder = Stream.concat(files
+                .filter(file -> !file.equals(stagingDir))
+                .map(file -> stagingDir.relativize(file) + (Files.isDirectory(file) ? "/" : "")), Stream.of(ArchiveManifest.NAME))
+                .toList();
+        }
+
+        archive.archiveFrom(stagingDir);
+
+        try (var tar = new TarFile(archiveFile.toFile())) {
+            assertThat(tar.getEntries()).extracting(TarArchiveEntry::getName).containsExactlyElementsOf(expectedOrder);
+        }
+        try (var inputStream = archive.readFile("dir3/large")) {
+            assertThat(new String(inputStream.readAllBytes(), UTF_8)).isEqualTo(largeContent);
+        }
+        try (var inputStream = archive.readFile("dir5/file47")) {
+            assertThat(new String(inputStream.readAllBytes(), UTF_8)).isEqualTo("content of file47");
+        }
+    }
+
     @SneakyThrows
     private static Map.Entry<String, String> getEntry(TarArchiveEntry tarArchiveEntry, TarFile tar) {
         var bytes = tar.getInputStream(tarArchiveEntry)
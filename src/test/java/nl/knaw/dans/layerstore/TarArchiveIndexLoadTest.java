@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TarArchiveIndexLoadTest extends AbstractTestWithTestDir {
+    private final Path tarFile = testDir.resolve("test.tar");
+    private final Path sidecar = testDir.resolve("test.tar.idx");
+
+    @Test
+    public void should_write_sidecar_when_archiving() throws Exception {
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+
+        new TarArchive(tarFile).archiveFrom(stagingDir);
+
+        assertThat(sidecar).exists();
+        var index = TarArchiveIndex.load(tarFile);
+        assertThat(index.getEntries()).extracting(TarArchiveIndex.Entry::name)
+            .containsExactlyInAnyOrder("file1", "path/", "path/to/", "path/to/file2", ArchiveManifest.NAME);
+        assertThat(index.getEntry("path/to/file2")).hasValueSatisfying(entry -> {
+            assertThat(entry.size()).isEqualTo("path/to/file2 content".length());
+            assertThat(entry.directory()).isFalse();
+        });
+    }
+
+    @Test
+    public void should_build_index_for_archive_without_sidecar() throws Exception {
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+        new TarArchive(tarFile).archiveFrom(stagingDir);
+        Files.delete(sidecar);
+
+        // A new instance, as for an archive created by an older version of the library
+        var archive = new TarArchive(tarFile);
+
+        assertThat(archive.fileExists("path/to/file2")).isTrue();
+        assertThat(sidecar).exists();
+        try (var inputStream = archive.readFile("path/to/file2")) {
+            assertThat(inputStream.readAllBytes()).isEqualTo("path/to/file2 content".getBytes());
+        }
+    }
+
+    @Test
+    public void should_rebuild_stale_sidecar() throws Exception {
+        createStagingFileWithContent("file1", "file1 content");
+        new TarArchive(tarFile).archiveFrom(stagingDir);
+        var staleSidecar = Files.readAllBytes(sidecar);
+
+        // Archive different content to the same file and put back the old sidecar
+        createStagingFileWithContent("file2", "file2 content");
+        new TarArchive(tarFile).archiveFrom(stagingDir);
+        Files.write(sidecar, staleSidecar);
+
+        var index = TarArchiveIndex.load(tarFile);
+
+        assertThat(index.contains("file2")).isTrue();
+    }
+
+    @Test
+    public void should_rebuild_unreadable_sidecar() throws Exception {
+        createStagingFileWithContent("file1", "file1 content");
+        new TarArchive(tarFile).archiveFrom(stagingDir);
+        Files.write(sidecar, new byte[] { 1, 2, 3 });
+
+        var index = TarArchiveIndex.load(tarFile);
+
+        assertThat(index.contains("file1")).isTrue();
+    }
+
+    @Test
+    public void should_read_each_file_from_its_own_offset() throws Exception {
+        createStagingFileWithContent("a", "a".repeat(1000));
+        createStagingFileWithContent("b", "b".repeat(513));
+        createStagingFileWithContent("c", "");
+        createStagingFileWithContent("d", "d content");
+        var archive = new TarArchive(tarFile);
+        archive.archiveFrom(stagingDir);
+
+        try (var inputStream = archive.readFile("b")) {
+            assertThat(new String(inputStream.readAllBytes())).isEqualTo("b".repeat(513));
+        }
+        try (var inputStream = archive.readFile("c")) {
+            assertThat(inputStream.readAllBytes()).isEmpty();
+        }
+        try (var inputStream = archive.readFile("d")) {
+            assertThat(new String(inputStream.readAllBytes())).isEqualTo("d content");
+        }
+    }
+}
@@ -73,6 +73,45 @@ public class TarArchiveUnarchiveToTest extends AbstractTestWithTestDir {
         assertThat(emptyDir).exists();
     }
 
+    @Test
+    public void should_unarchive_files_on_several_threads() throws Exception {
+        var tarFile = testDir.resolve("test.tar");
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(2), null, 2, 4);
+        for (int i = 0; i < 50; i++) {
+            createStagingFileWithContent("dir" + (i % 5) + "/file" + i, "content of file " + i + "\n".repeat(i * 100));
+        }
+        createStagingFileWithContent("empty/file", "");
+        archive.archiveFrom(stagingDir);
+
+        var unarchived = testDir.resolve("unarchived");
+        archive.unarchiveTo(unarchived);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(unarchived.resolve("dir" + (i % 5) + "/file" + i)).hasContent("content of file " + i + "\n".repeat(i * 100));
+        }
+        assertThat(unarchived.resolve("empty/file")).isEmptyFile();
+    }
+
+    @Test
+    public void should_unarchive_block_compressed_files_on_several_threads() throws Exception {
+        var tarFile = testDir.resolve("test.tar.gz");
+        var archive = new TarArchive(tarFile, new ArchiveReaderPool(2), new GzipBlockCompression(1024, 6, 2), 2, 4);
+        for (int i = 0; i < 20; i++) {
+            createStagingFileWithContent("dir" + (i % 3) + "/file" + i, "content of file " + i + "\n".repeat(i * 100));
+        }
+        archive.archiveFrom(stagingDir);
+
+        var unarchived = testDir.resolve("unarchived");
+        archive.unarchiveTo(unarchived, path -> !path.startsWith("dir0"));
+
+        assertThat(unarchived.resolve("dir0")).doesNotExist();
+        for (int i = 0; i < 20; i++) {
+            if (i % 3 != 0) {
+                assertThat(unarchived.resolve("dir" + (i % 3) + "/file" + i)).hasContent("content of file " + i + "\n".repeat(i * 100));
+            }
+        }
+    }
+
     @Test
     public void should_report_zip_slip() throws Exception {
         var tarFile = testDir.resolve("test.tar");
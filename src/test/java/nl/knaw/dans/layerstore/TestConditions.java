@@ -27,4 +27,8 @@ public class TestConditions {
         }
     }
 
+    public static boolean benchmarksEnabled() {
+        return Boolean.getBoolean("layerstore.benchmarks");
+    }
+
 }
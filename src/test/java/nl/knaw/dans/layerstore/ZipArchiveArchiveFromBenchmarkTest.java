@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the wall-clock time and CPU time of {@link ZipArchive#archiveFrom(java.nio.file.Path)} on one thread with that on several threads, for a synthetic layer of text files. Only runs when
+ * the system property <code>layerstore.benchmarks</code> is set to <code>true</code>. The number of files can be set with <code>layerstore.benchmarks.files</code>.
+ */
+@Slf4j
+public class ZipArchiveArchiveFromBenchmarkTest extends AbstractTestWithTestDir {
+    private static final int NUMBER_OF_FILES = Integer.getInteger("layerstore.benchmarks.files", 2_000);
+
+    private static final int FILE_SIZE = 256 * 1024;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 4, 8 })
+    @EnabledIf("nl.knaw.dans.layerstore.TestConditions#benchmarksEnabled")
+    public void archiveFrom(int compressionThreads) throws Exception {
+        createSyntheticLayer();
+        var archiveFile = testDir.resolve("test.zip");
+        var archive = new ZipArchive(archiveFile, new ArchiveReaderPool(2), compressionThreads, Files.createDirectories(testDir.resolve("scratch")));
+        var osBean = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        long startCpu = osBean.getProcessCpuTime();
+        long start = System.nanoTime();
+        archive.archiveFrom(stagingDir);
+        long wallNanos = System.nanoTime() - start;
+        long cpuNanos = osBean.getProcessCpuTime() - startCpu;
+
+        log.info("compressionThreads={}: {} files in {} ms wall-clock time, {} ms CPU time, archive size {} bytes", compressionThreads, NUMBER_OF_FILES, wallNanos / 1_000_000,
+            cpuNanos / 1_000_000, Files.size(archiveFile));
+        assertThat(archive.fileExists("dir0/file0.xml")).isTrue();
+    }
+
+    private void createSyntheticLayer() throws Exception {
+        var line = "<record id=\"%d\"><title>Synthetic record %d</title><description>Lorem ipsum dolor sit amet</description></record>\n";
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            var content = new StringBuilder();
+            for (int j = 0; content.length() < FILE_SIZE; j++) {
+                content.append(String.format(line, j, i * j));
+            }
+            createStagingFileWithContent("dir" + (i / 100) + "/file" + i + ".xml", content.toString());
+        }
+    }
+}
@@ -20,8 +20,11 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Map.entry;
@@ -40,12 +43,13 @@ public class ZipArchiveArchiveFromTest extends AbstractTestWithTestDir {
         // Archive the files
         archive.archiveFrom(stagingDir);
 
-        // Check that the zip file exists and contains the files and not more than that
+        // Check that the zip file exists and contains the files and not more than that, apart from the manifest
         assertThat(archiveFile).exists();
         try (var zip = ZipFile.builder()
             .setFile(archiveFile.toFile())
             .get()) {
             assertThat(Collections.list(zip.getEntries()).stream()
+                .filter(archiveEntry -> !ArchiveManifest.isManifest(archiveEntry.getName()))
                 .map(archiveEntry -> getEntry(archiveEntry, zip))
             ).containsExactlyInAnyOrder(
                 entry("file1", "file1 content"),
@@ -61,6 +65,67 @@ public class ZipArchiveArchiveFromTest extends AbstractTestWithTestDir {
         assertThat(stagingDir).isNotEmptyDirectory();
     }
 
+    @Test
+    public void should_create_same_entries_when_compressing_in_parallel() throws Exception {
+        var archiveFile = testDir.resolve("test.zip");
+        var scratchDir = Files.createDirectories(testDir.resolve("scratch"));
+        var archive = new ZipArchive(archiveFile, new ArchiveReaderPool(2), 4, scratchDir);
+
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+        createStagingFileWithContent("path/to/file3", "path/to/file3 content");
+
+        archive.archiveFrom(stagingDir);
+
+        try (var zip = ZipFile.builder()
+            .setFile(archiveFile.toFile())
+            .get()) {
+            assertThat(Collections.list(zip.getEntries()).stream()
+                .filter(archiveEntry -> !ArchiveManifest.isManifest(archiveEntry.getName()))
+                .map(archiveEntry -> getEntry(archiveEntry, zip))
+            ).containsExactlyInAnyOrder(
+                entry("file1", "file1 content"),
+                entry("path/", ""),
+                entry("path/to/", ""),
+                entry("path/to/file2", "path/to/file2 content"),
+                entry("path/to/file3", "path/to/file3 content")
+            );
+        }
+        assertThat(archive.isArchived()).isTrue();
+        // The scatter files are removed after they have been appended to the archive
+        assertThat(scratchDir).isEmptyDirectory();
+    }
+
+    @Test
+    public void should_store_files_that_do_not_compress_and_deflate_the_others() throws Exception {
+        var archiveFile = testDir.resolve("test.zip");
+        var archive = new ZipArchive(archiveFile, new ArchiveReaderPool(2), 1, null, ZipEntryCompressionPolicy.defaults());
+        var random = new byte[10_000];
+        new Random(42).nextBytes(random);
+
+        createStagingFileWithContent("text.txt", "text content ".repeat(100));
+        createStagingFileWithContent("small.txt", "small");
+        createStagingFileWithContent("photo.jpg", "not really a jpeg ".repeat(100));
+        Files.write(stagingDir.resolve("random.bin"), random);
+
+        archive.archiveFrom(stagingDir);
+
+        try (var zip = ZipFile.builder()
+            .setFile(archiveFile.toFile())
+            .get()) {
+            assertThat(zip.getEntry("text.txt").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+            assertThat(zip.getEntry("small.txt").getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(zip.getEntry("photo.jpg").getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(zip.getEntry("random.bin").getMethod()).isEqualTo(ZipEntry.STORED);
+        }
+        try (var inputStream = archive.readFile("random.bin")) {
+            assertThat(inputStream.readAllBytes()).isEqualTo(random);
+        }
+        try (var inputStream = archive.readFile("text.txt")) {
+            assertThat(new String(inputStream.readAllBytes(), UTF_8)).isEqualTo("text content ".repeat(100));
+        }
+    }
+
     @SneakyThrows
     private static Map.Entry<String, String> getEntry(ZipArchiveEntry tarArchiveEntry, ZipFile zip) {
         var bytes = zip.getInputStream(tarArchiveEntry)
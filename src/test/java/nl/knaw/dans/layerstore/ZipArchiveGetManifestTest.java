@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZipArchiveGetManifestTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void should_list_items_with_sizes_and_checksums() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"));
+        createStagingFileWithContent("file1", "file1 content");
+        createStagingFileWithContent("path/to/file2", "path/to/file2 content");
+
+        archive.archiveFrom(stagingDir);
+
+        assertThat(archive.getManifest().orElseThrow().getEntries()).containsExactlyInAnyOrder(
+            new ArchiveManifest.Entry("file1", Item.Type.File, 13, DigestUtils.sha256Hex("file1 content")),
+            new ArchiveManifest.Entry("path", Item.Type.Directory, 0, null),
+            new ArchiveManifest.Entry("path/to", Item.Type.Directory, 0, null),
+            new ArchiveManifest.Entry("path/to/file2", Item.Type.File, 21, DigestUtils.sha256Hex("path/to/file2 content")));
+    }
+
+    @Test
+    public void should_fill_in_checksums_when_compressing_in_parallel() throws Exception {
+        var scratchDir = Files.createDirectories(testDir.resolve("scratch"));
+        var archive = new ZipArchive(testDir.resolve("test.zip"), new ArchiveReaderPool(2), 4, scratchDir);
+        for (int i = 0; i < 20; i++) {
+            createStagingFileWithContent("dir/file" + i, "content of file" + i);
+        }
+
+        archive.archiveFrom(stagingDir);
+
+        var manifest = archive.getManifest().orElseThrow();
+        for (int i = 0; i < 20; i++) {
+            assertThat(manifest.getEntry("dir/file" + i)).hasValueSatisfying(entry ->
+                assertThat(entry.sha256()).isEqualTo(DigestUtils.sha256Hex(entry.path().replace("dir/file", "content of file"))));
+        }
+    }
+
+    @Test
+    public void should_not_list_or_unarchive_the_manifest() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"));
+        createStagingFileWithContent("file1", "file1 content");
+        archive.archiveFrom(stagingDir);
+        FileUtils.deleteDirectory(stagingDir.toFile());
+
+        archive.unarchiveTo(stagingDir);
+
+        assertThat(archive.listAllItems()).toIterable().extracting(Item::getPath).containsExactlyInAnyOrder("", "file1");
+        assertThat(archive.fileExists(ArchiveManifest.NAME)).isFalse();
+        assertThat(stagingDir.resolve(ArchiveManifest.NAME)).doesNotExist();
+    }
+
+    @Test
+    public void should_keep_checksums_of_entries_that_are_not_replaced() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"));
+        createStagingFileWithContent("dataset1/file1", "old content");
+        createStagingFileWithContent("dataset2/file2", "file2 content");
+        archive.archiveFrom(stagingDir);
+        FileUtils.deleteDirectory(stagingDir.toFile());
+
+        createStagingFileWithContent("dataset1/file1", "new content");
+        archive.mergeFrom(stagingDir, path -> StagingOverlay.isAtOrBelow(path, "dataset1"));
+
+        var manifest = archive.getManifest().orElseThrow();
+        assertThat(manifest.getEntry("dataset1/file1")).hasValueSatisfying(entry ->
+            assertThat(entry.sha256()).isEqualTo(DigestUtils.sha256Hex("new content")));
+        assertThat(manifest.getEntry("dataset2/file2")).hasValueSatisfying(entry ->
+            assertThat(entry.sha256()).isEqualTo(DigestUtils.sha256Hex("file2 content")));
+        assertThat(manifest.getEntries()).hasSize(4);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZipArchiveMergeFromTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void should_keep_entries_that_are_not_replaced() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"));
+        createStagingFileWithContent("dataset1/file1", "old content");
+        createStagingFileWithContent("dataset1/file2", "file2 content");
+        createStagingFileWithContent("dataset2/file3", "file3 content");
+        archive.archiveFrom(stagingDir);
+        FileUtils.deleteDirectory(stagingDir.toFile());
+
+        createStagingFileWithContent("dataset1/file1", "new content");
+        archive.mergeFrom(stagingDir, path -> StagingOverlay.isAtOrBelow(path, "dataset1"));
+
+        assertThat(archive.listAllItems()).toIterable().extracting(Item::getPath)
+            .containsExactlyInAnyOrder("", "dataset1/", "dataset1/file1", "dataset2/", "dataset2/file3");
+        try (var inputStream = archive.readFile("dataset1/file1")) {
+            assertThat(inputStream).hasContent("new content");
+        }
+        try (var inputStream = archive.readFile("dataset2/file3")) {
+            assertThat(inputStream).hasContent("file3 content");
+        }
+    }
+
+    @Test
+    public void should_archive_staging_dir_if_there_is_no_archive_yet() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"));
+        createStagingFileWithContent("dataset1/file1", "content");
+
+        archive.mergeFrom(stagingDir, path -> true);
+
+        assertThat(archive.isArchived()).isTrue();
+        assertThat(archive.fileExists("dataset1/file1")).isTrue();
+    }
+
+    @Test
+    public void should_keep_serving_reads_from_the_existing_archive_while_merging() throws Exception {
+        var archive = new ZipArchive(testDir.resolve("test.zip"), new ArchiveReaderPool(2));
+        createStagingFileWithContent("dataset1/file1", "old content");
+        createStagingFileWithContent("dataset2/file3", "file3 content");
+        archive.archiveFrom(stagingDir);
+        FileUtils.deleteDirectory(stagingDir.toFile());
+
+        createStagingFileWithContent("dataset1/file1", "new content");
+        var readsDuringMerge = new ArrayList<String>();
+        archive.mergeFrom(stagingDir, path -> {
+            // Called while the merged archive is being written
+            if (readsDuringMerge.isEmpty()) {
+                readsDuringMerge.add(readOnOtherThread(archive, "dataset1/file1"));
+                readsDuringMerge.add(readOnOtherThread(archive, "dataset2/file3"));
+            }
+            return StagingOverlay.isAtOrBelow(path, "dataset1");
+        });
+
+        assertThat(readsDuringMerge).containsExactly("old content", "file3 content");
+        assertThat(readOnOtherThread(archive, "dataset1/file1")).isEqualTo("new content");
+        assertThat(readOnOtherThread(archive, "dataset2/file3")).isEqualTo("file3 content");
+        try (var files = Files.list(testDir)) {
+            assertThat(files).noneMatch(file -> file.getFileName().toString().endsWith(".tmp"));
+        }
+    }
+
+    private static String readOnOtherThread(Archive archive, String path) {
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(() -> {
+                try (var inputStream = archive.readFile(path)) {
+                    return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }).get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
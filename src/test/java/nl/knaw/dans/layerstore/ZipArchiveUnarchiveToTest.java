@@ -73,6 +73,26 @@ public class ZipArchiveUnarchiveToTest extends AbstractTestWithTestDir {
         assertThat(emptyDir).exists();
     }
 
+    @Test
+    public void should_unarchive_stored_and_deflated_files_on_several_threads() throws Exception {
+        var zipFile = testDir.resolve("test.zip");
+        var archive = new ZipArchive(zipFile, new ArchiveReaderPool(2), 1, null, ZipEntryCompressionPolicy.defaults(), 4);
+        for (int i = 0; i < 50; i++) {
+            // The small files are stored, the larger ones deflated
+            createStagingFileWithContent("dir" + (i % 5) + "/file" + i, "content of file " + i + "\n".repeat(i * 10));
+        }
+        createStagingFileWithContent("empty/file", "");
+        archive.archiveFrom(stagingDir);
+
+        var unarchived = testDir.resolve("unarchived");
+        archive.unarchiveTo(unarchived);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(unarchived.resolve("dir" + (i % 5) + "/file" + i)).hasContent("content of file " + i + "\n".repeat(i * 10));
+        }
+        assertThat(unarchived.resolve("empty/file")).isEmptyFile();
+    }
+
     @Test
     public void should_report_zip_slip() throws Exception {
         var zipFile = testDir.resolve("test.tar");
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.layerstore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ZipEntryCompressionPolicyChooseMethodTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void should_store_files_smaller_than_the_minimum_size() throws Exception {
+        var file = Files.writeString(testDir.resolve("small.txt"), "aaaa");
+
+        assertThat(ZipEntryCompressionPolicy.defaults().chooseMethod(file, 4)).isEqualTo(ZipEntry.STORED);
+    }
+
+    @Test
+    public void should_store_files_with_a_compressed_extension_regardless_of_case() throws Exception {
+        var file = Files.writeString(testDir.resolve("archive.GZ"), "a".repeat(1000));
+
+        assertThat(ZipEntryCompressionPolicy.defaults().chooseMethod(file, 1000)).isEqualTo(ZipEntry.STORED);
+    }
+
+    @Test
+    public void should_store_files_whose_sample_does_not_compress() throws Exception {
+        var content = new byte[100_000];
+        new Random(42).nextBytes(content);
+        var file = Files.write(testDir.resolve("random.bin"), content);
+
+        assertThat(ZipEntryCompressionPolicy.defaults().chooseMethod(file, content.length)).isEqualTo(ZipEntry.STORED);
+    }
+
+    @Test
+    public void should_deflate_files_whose_sample_compresses() throws Exception {
+        var file = Files.writeString(testDir.resolve("text.txt"), "some text ".repeat(1000));
+
+        assertThat(ZipEntryCompressionPolicy.defaults().chooseMethod(file, Files.size(file))).isEqualTo(ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void should_deflate_everything_when_always_deflating() throws Exception {
+        var content = new byte[1000];
+        new Random(42).nextBytes(content);
+        var file = Files.write(testDir.resolve("random.zip"), content);
+
+        assertThat(ZipEntryCompressionPolicy.alwaysDeflate().chooseMethod(file, content.length)).isEqualTo(ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void should_not_accept_a_negative_minimum_size() {
+        assertThatThrownBy(() -> new ZipEntryCompressionPolicy(Set.of(), -1, 0, 1.0))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("minSizeToCompress must not be negative");
+    }
+}